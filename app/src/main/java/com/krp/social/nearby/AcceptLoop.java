@@ -0,0 +1,205 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listens for incoming connections to one service and hands every accepted channel to a
+ * {@link Handler} right away, on a thread of its own.
+ *
+ * The handler must not block: it queues the channel for a worker and returns, so the
+ * next accept() is not held up. If the service can not be opened, or accept() fails
+ * while the loop is running (say Bluetooth was switched off), the server channel is
+ * reopened after a backoff which doubles on every failure in a row.
+ */
+public class AcceptLoop {
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    /**
+     * Receives the accepted channels, on the accept thread.
+     */
+    public interface Handler {
+        void onAccepted(Channel channel);
+    }
+
+    private final Transport mTransport;
+    private final String mName;
+    private final UUID mService;
+    private final Handler mHandler;
+    private final Thread mThread;
+    private volatile long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private volatile long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private volatile ServerChannel mServerChannel;
+    private volatile boolean mCancelled;
+    private volatile long mStartTime;
+
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mHandOffNanos = new AtomicLong();
+    private final AtomicLong mMaxHandOffNanos = new AtomicLong();
+
+    /**
+     * @param transport Transport to listen on
+     * @param name      Service name, used for the SDP record on Bluetooth
+     * @param service   UUID identifying the service
+     * @param handler   Receives the accepted channels
+     */
+    public AcceptLoop(Transport transport, String name, UUID service, Handler handler) {
+        mTransport = transport;
+        mName = name;
+        mService = service;
+        mHandler = handler;
+        mThread = new Thread("NearByAccept-" + name) {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        mThread.setDaemon(true);
+    }
+
+    /**
+     * Set the wait before reopening the service after the first failure, and the
+     * longest wait it doubles up to.
+     */
+    public void setBackoff(long initialMillis, long maxMillis) {
+        if (initialMillis <= 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Bad backoff " + initialMillis + ".." + maxMillis);
+        }
+        mInitialBackoffMillis = initialMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    /**
+     * Open the service and start accepting. The service is open when this returns,
+     * unless opening failed; the loop then keeps trying in the background.
+     */
+    public void start() {
+        mStartTime = System.currentTimeMillis();
+        try {
+            mServerChannel = mTransport.listen(mName, mService);
+        } catch (IOException e) {
+            mFailures.incrementAndGet();
+        }
+        mThread.start();
+    }
+
+    /**
+     * Stop listening. Channels already handed off are not affected.
+     */
+    public void cancel() {
+        mCancelled = true;
+        closeServerChannel();
+        // wake up a backoff
+        mThread.interrupt();
+    }
+
+    /**
+     * @return true while the service is open for connections
+     */
+    public boolean isListening() {
+        return mServerChannel != null;
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted.get();
+    }
+
+    /**
+     * @return number of failures to open the service or to accept
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return accepted connections per second since the loop started
+     */
+    public double getAcceptRate() {
+        long elapsed = System.currentTimeMillis() - mStartTime;
+        return mStartTime == 0 || elapsed <= 0 ? 0 : mAccepted.get() * 1000d / elapsed;
+    }
+
+    /**
+     * @return average time from accept() returning until the handler took the channel
+     */
+    public long getAverageHandOffMicros() {
+        long accepted = mAccepted.get();
+        return accepted == 0 ? 0 : mHandOffNanos.get() / accepted / 1000;
+    }
+
+    public long getMaxHandOffMicros() {
+        return mMaxHandOffNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "AcceptLoop{" +
+                "name=" + mName +
+                ", listening=" + isListening() +
+                ", accepted=" + getAcceptedCount() +
+                ", failures=" + getFailureCount() +
+                ", avgHandOffMicros=" + getAverageHandOffMicros() +
+                ", maxHandOffMicros=" + getMaxHandOffMicros() +
+                '}';
+    }
+
+    private void acceptLoop() {
+        long backoff = mInitialBackoffMillis;
+        while (!mCancelled) {
+            ServerChannel serverChannel = mServerChannel;
+            Channel channel;
+            try {
+                if (serverChannel == null) {
+                    serverChannel = mTransport.listen(mName, mService);
+                    mServerChannel = serverChannel;
+                    if (mCancelled) {
+                        // cancel() came while the service was opening
+                        closeServerChannel();
+                        break;
+                    }
+                }
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (mCancelled) {
+                    // server channel closed by cancel()
+                    break;
+                }
+                mFailures.incrementAndGet();
+                closeServerChannel();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    // cancel(), checked by the loop
+                }
+                backoff = Math.min(backoff * 2, mMaxBackoffMillis);
+                continue;
+            }
+            backoff = mInitialBackoffMillis;
+
+            long acceptedAt = System.nanoTime();
+            mAccepted.incrementAndGet();
+            mHandler.onAccepted(channel);
+            long handOff = System.nanoTime() - acceptedAt;
+            mHandOffNanos.addAndGet(handOff);
+            long max;
+            while (handOff > (max = mMaxHandOffNanos.get())
+                    && !mMaxHandOffNanos.compareAndSet(max, handOff)) {
+                // retry
+            }
+        }
+    }
+
+    private void closeServerChannel() {
+        ServerChannel serverChannel = mServerChannel;
+        mServerChannel = null;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
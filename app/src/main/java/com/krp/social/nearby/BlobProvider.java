@@ -0,0 +1,14 @@
+package com.krp.social.nearby;
+
+/**
+ * Supplies the large payloads of the local user, such as the profile photo, which are
+ * sent in chunks by {@link BlobTransfer}.
+ */
+public interface BlobProvider {
+
+    /**
+     * @param kind one of the BlobTransfer.KIND_ constants
+     * @return the payload, or null if there is none
+     */
+    byte[] getBlob(int kind);
+}
@@ -0,0 +1,260 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Transfer of a large payload, such as a profile photo, in checksummed chunks over a
+ * fetch session. The receiver keeps what it got so far; when the link drops it asks
+ * again from where it stopped instead of from the start.
+ *
+ * <pre>
+ *   BLOB_REQUEST  kind 1 | offset 4 | chunk size 4 | digest 8
+ *   BLOB_CHUNK    digest 8 | total 4 | offset 4 | CRC32 of data 4 | data
+ *   BLOB_END      digest 8 | total 4
+ * </pre>
+ * The digest identifies the version of the payload. A request carries the digest of the
+ * partial payload being resumed; if the sender's payload changed since, it starts over
+ * from offset 0. An END with digest 0 means the sender has no such payload.
+ *
+ * A transfer object holds the receiving side and must only be used by one thread at a
+ * time. {@link #serve} is the sending side.
+ */
+public class BlobTransfer {
+    public static final int KIND_PROFILE_IMAGE = 1;
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024;
+    public static final int MIN_CHUNK_SIZE = 256;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // Bigger payloads are refused, so a broken peer can not run us out of memory
+    public static final int MAX_BLOB_SIZE = 4 * 1024 * 1024;
+
+    private static final int REQUEST_SIZE = 17;
+    private static final int CHUNK_HEADER_SIZE = 20;
+    private static final int END_SIZE = 12;
+
+    private final String mAddress;
+    private final int mKind;
+    private long mDigest;
+    private int mTotal = -1;
+    private byte[] mData;
+    private int mReceived;
+    private boolean mComplete;
+    private boolean mMissing;
+    private int mResumes;
+    private final CRC32 mCrc = new CRC32();
+
+    public BlobTransfer(String address, int kind) {
+        mAddress = address;
+        mKind = kind;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return bytes received so far, where the next request resumes
+     */
+    public int getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return size of the whole payload, or -1 until the first chunk arrived
+     */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @return true if the sender has no such payload
+     */
+    public boolean isMissing() {
+        return mMissing;
+    }
+
+    /**
+     * @return number of requests which resumed a partial payload
+     */
+    public int getResumeCount() {
+        return mResumes;
+    }
+
+    /**
+     * @return the payload once complete, else null
+     */
+    public byte[] getData() {
+        return mComplete ? mData : null;
+    }
+
+    /**
+     * @return payload of the BLOB_REQUEST asking for the rest of the payload
+     */
+    public byte[] request(int chunkSize) {
+        if (mReceived > 0) {
+            mResumes++;
+        }
+        byte[] request = new byte[REQUEST_SIZE];
+        request[0] = (byte) mKind;
+        putInt(request, 1, mReceived);
+        putInt(request, 5, chunkSize);
+        putLong(request, 9, mDigest);
+        return request;
+    }
+
+    /**
+     * Take in a BLOB_CHUNK or BLOB_END frame.
+     *
+     * @return true once the transfer is over, complete or missing
+     * @throws IOException if the frame is corrupt or does not follow on from what was
+     *                     received; the partial payload is kept for the next request
+     */
+    public boolean onFrame(Frame frame) throws IOException {
+        byte[] payload = frame.payload;
+        if (frame.type == Frame.TYPE_BLOB_END) {
+            if (frame.length < END_SIZE) {
+                throw new IOException("Truncated blob end");
+            }
+            long digest = getLong(payload, 0);
+            int total = getInt(payload, 8);
+            if (digest == 0) {
+                mMissing = true;
+                return true;
+            }
+            if (total == 0 && digest != mDigest) {
+                // an empty payload comes without chunks
+                mDigest = digest;
+                mTotal = 0;
+                mData = new byte[0];
+                mReceived = 0;
+            }
+            if (digest != mDigest || total != mReceived || total != mTotal) {
+                throw new IOException("Blob ended at " + mReceived + " of " + total);
+            }
+            mComplete = true;
+            return true;
+        }
+        if (frame.type != Frame.TYPE_BLOB_CHUNK) {
+            return false;
+        }
+
+        if (frame.length < CHUNK_HEADER_SIZE) {
+            throw new IOException("Truncated blob chunk");
+        }
+        long digest = getLong(payload, 0);
+        int total = getInt(payload, 8);
+        int offset = getInt(payload, 12);
+        int crc = getInt(payload, 16);
+        int length = frame.length - CHUNK_HEADER_SIZE;
+        if (total < 0 || total > MAX_BLOB_SIZE) {
+            throw new IOException("Blob too large: " + total);
+        }
+
+        if (digest != mDigest || total != mTotal) {
+            // a new payload, or it changed since the partial one: start over
+            if (offset != 0) {
+                throw new IOException("New blob does not start at 0");
+            }
+            mDigest = digest;
+            mTotal = total;
+            mData = new byte[total];
+            mReceived = 0;
+        }
+        if (offset != mReceived || length > total - offset) {
+            throw new IOException("Unexpected blob chunk at " + offset + ", have " + mReceived);
+        }
+        mCrc.reset();
+        mCrc.update(payload, CHUNK_HEADER_SIZE, length);
+        if ((int) mCrc.getValue() != crc) {
+            throw new IOException("Blob chunk at " + offset + " is corrupt");
+        }
+        System.arraycopy(payload, CHUNK_HEADER_SIZE, mData, offset, length);
+        mReceived += length;
+        return false;
+    }
+
+    /**
+     * Answer a BLOB_REQUEST: send the payload in chunks from the requested offset,
+     * followed by BLOB_END.
+     *
+     * @param provider supplies the payload asked for, may be null if there is none
+     */
+    public static void serve(Frame request, BlobProvider provider, FrameWriter writer)
+            throws IOException {
+        byte[] payload = request.payload;
+        if (request.length < REQUEST_SIZE) {
+            throw new IOException("Truncated blob request");
+        }
+        byte[] blob = provider == null ? null : provider.getBlob(payload[0] & 0xff);
+        byte[] end = new byte[END_SIZE];
+        if (blob == null || blob.length > MAX_BLOB_SIZE) {
+            writer.write(Frame.TYPE_BLOB_END, end);
+            return;
+        }
+        int offset = getInt(payload, 1);
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(getInt(payload, 5), MAX_CHUNK_SIZE));
+        long digest = ProfileCodec.digest(blob, 0, blob.length);
+        if (getLong(payload, 9) != digest || offset < 0 || offset > blob.length) {
+            offset = 0;
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHUNK_HEADER_SIZE + Math.min(chunkSize, blob.length)];
+        putLong(chunk, 0, digest);
+        putInt(chunk, 8, blob.length);
+        while (offset < blob.length) {
+            int length = Math.min(chunkSize, blob.length - offset);
+            crc.reset();
+            crc.update(blob, offset, length);
+            putInt(chunk, 12, offset);
+            putInt(chunk, 16, (int) crc.getValue());
+            System.arraycopy(blob, offset, chunk, CHUNK_HEADER_SIZE, length);
+            writer.write(Frame.TYPE_BLOB_CHUNK, chunk, 0, CHUNK_HEADER_SIZE + length);
+            offset += length;
+        }
+        putLong(end, 0, digest);
+        putInt(end, 8, blob.length);
+        writer.write(Frame.TYPE_BLOB_END, end);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return "BlobTransfer{" +
+                "address=" + mAddress +
+                ", kind=" + mKind +
+                ", received=" + mReceived +
+                ", total=" + mTotal +
+                ", resumes=" + mResumes +
+                '}';
+    }
+}
@@ -17,16 +17,14 @@
 package com.krp.social.nearby;
 
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Message;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -34,6 +32,11 @@ import java.util.UUID;
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connectedReceiver.
+ *
+ * The sockets come from a {@link Transport}, so the same protocol runs over
+ * Bluetooth RFCOMM on the phone and over in-memory or loopback links in tests.
+ * On the phone the connections to a device are streams of one {@link MuxTransport}
+ * link.
  */
 public class BluetoothConnectionService {
     private static final String TAG = "BluetoothConnectionService";
@@ -47,296 +50,710 @@ public class BluetoothConnectionService {
     private static final UUID MY_FETCH_UUID_INSECURE =
             UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
+    // Profiles bigger than this are cut down to a summary on the discovery connection
+    private static final int MAX_INLINE_PROFILE_SIZE = 512;
+
+    // Default deadlines: a whole presence probe, and the connect of a profile fetch
+    public static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_FETCH_CONNECT_TIMEOUT_MILLIS = 8000;
+
+    // How long a fetch waits for the sender to confirm the close before cutting it off
+    private static final long CLOSE_ACK_TIMEOUT_MILLIS = 2000;
+
+    // Connections a blob fetch may use before giving up, resuming on each new one
+    private static final int MAX_BLOB_ATTEMPTS = 3;
+    // Partial blobs kept for a later resume
+    private static final int MAX_PARTIAL_BLOBS = 4;
+
     // Member fields
-    private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
-    private AcceptThread mInsecureAcceptThread;
-    private AcceptFetchThread mInsecureAcceptFetchThread;
-    private ConnectedReceiverThread mConnectedReceiverThread;
-    private ConnectedSenderThread mConnectedSenderThread;
+    private final Transport mTransport;
+    private final ConnectionListener mListener;
+    private final ProfileProvider mProfileProvider;
+    private AcceptLoop mInsecureAcceptLoop;
+    private AcceptLoop mInsecureAcceptFetchLoop;
+    private final SessionTable mReceiverSessions;
+    private final SessionTable mSenderSessions;
+    private final SessionTable mPresenceSessions;
+    private final ProbeScheduler mProbeScheduler;
+    private final SessionPool mSessionPool;
+    private volatile boolean mCombinedSession = true;
+    private final ConnectWatchdog mConnectWatchdog = new ConnectWatchdog();
+    // deadlines of incoming probes, apart from our connects which hold back inquiries
+    private final ConnectWatchdog mPresenceWatchdog = new ConnectWatchdog();
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+    private final DiscoveryCache mDiscoveryCache = new DiscoveryCache();
+    private volatile ServiceFilter mServiceFilter;
+    private volatile PeerRegistry mPeerRegistry;
+    private volatile DiscoveryScheduler mDiscoveryScheduler;
+    private final RadioCoordinator mRadio = new RadioCoordinator();
+    private final ProfileCache mProfileCache = new ProfileCache();
+    private final OutboundQueue.Stats mWriteStats = new OutboundQueue.Stats();
+    private volatile BlobProvider mBlobProvider;
+    private volatile int mBlobChunkSize = BlobTransfer.DEFAULT_CHUNK_SIZE;
+    private final LinkedHashMap<String, BlobTransfer> mPartialBlobs =
+            new LinkedHashMap<String, BlobTransfer>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BlobTransfer> eldest) {
+                    return size() > MAX_PARTIAL_BLOBS;
+                }
+            };
+    private volatile long mProbeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;
+    private volatile long mFetchConnectTimeoutMillis = DEFAULT_FETCH_CONNECT_TIMEOUT_MILLIS;
+    private final LatencyHistogram mFetchLatency = new LatencyHistogram();
+    private final LatencyHistogram mCloseLatency = new LatencyHistogram();
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
      *
-     * @param context The UI Activity Context
-     * @param handler A Handler to send messages back to the UI Activity
+     * @param context  The Context hosting the service
+     * @param listener Receives the connection events
      */
-    public BluetoothConnectionService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mHandler = handler;
+    public BluetoothConnectionService(Context context, ConnectionListener listener) {
+        this(new MuxTransport(new BluetoothTransport(BluetoothAdapter.getDefaultAdapter())),
+                listener, NearByApplication.getInstance());
+        setBlobProvider(NearByApplication.getInstance());
+        setServiceRecordSource(new BluetoothServiceRecordSource(context,
+                BluetoothAdapter.getDefaultAdapter()));
+        setPeerRegistry(NearByApplication.getInstance().getPeerRegistry());
+
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        setInquiry(new DiscoveryScheduler.Inquiry() {
+            @Override
+            public boolean start() {
+                return adapter.startDiscovery();
+            }
+
+            @Override
+            public boolean isRunning() {
+                return adapter.isDiscovering();
+            }
+
+            @Override
+            public boolean cancel() {
+                return adapter.cancelDiscovery();
+            }
+        });
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Constructor. Prepares a new session on any transport.
+     *
+     * @param transport       The transport providing the sockets
+     * @param listener        Receives the connection events
+     * @param profileProvider Supplies the profile sent to requesting devices
+     */
+    public BluetoothConnectionService(Transport transport, ConnectionListener listener,
+                                      ProfileProvider profileProvider) {
+        mTransport = transport;
+        mListener = listener;
+        mProfileProvider = profileProvider;
+        mProbeScheduler = new ProbeScheduler();
+        mSessionPool = new SessionPool();
+        mReceiverSessions = new SessionTable("NearByReceiver");
+        mSenderSessions = new SessionTable("NearBySender");
+        mPresenceSessions = new SessionTable("NearByPresence");
+    }
+
+    /**
+     * Start the chat service. Specifically start the AcceptLoops to begin a
+     * session in listening (server) mode. Called by the NearByService
      */
     public synchronized void start() {
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread();
-            mInsecureAcceptThread.start();
+        // Listen to the server socket to allow nearBy users to find me
+        if (mInsecureAcceptLoop == null) {
+            mInsecureAcceptLoop = new AcceptLoop(mTransport, NAME_INSECURE, MY_UUID_INSECURE,
+                    new AcceptLoop.Handler() {
+                        @Override
+                        public void onAccepted(Channel channel) {
+                            connectedPresence(channel);
+                        }
+                    });
+            mInsecureAcceptLoop.start();
         }
 
-        if (mInsecureAcceptFetchThread == null) {
-            mInsecureAcceptFetchThread = new AcceptFetchThread();
-            mInsecureAcceptFetchThread.start();
+        // Listen to the server socket to allow transfer profile data
+        if (mInsecureAcceptFetchLoop == null) {
+            mInsecureAcceptFetchLoop = new AcceptLoop(mTransport, NAME_INSECURE,
+                    MY_FETCH_UUID_INSECURE, new AcceptLoop.Handler() {
+                        @Override
+                        public void onAccepted(Channel channel) {
+                            connectedSender(channel);
+                        }
+                    });
+            mInsecureAcceptFetchLoop.start();
+        }
+
+        DiscoveryScheduler scheduler = mDiscoveryScheduler;
+        if (scheduler != null) {
+            scheduler.start();
         }
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
-     * @param device The BluetoothDevice to connect
+     * Queue a ConnectTask to probe a remote device whose signal strength is not known.
+     *
+     * @see #connect(String, int)
      */
-    public synchronized void connect(BluetoothDevice device) {
-        new ConnectThread(device).start();
+    public boolean connect(String address) {
+        return connect(address, ProbeScheduler.RSSI_UNKNOWN);
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
-     * @param device The BluetoothDevice to connect
+     * Queue a ConnectTask to probe a remote device. Probes run on the bounded
+     * ProbeScheduler pool instead of a thread of their own, stronger signals first. A
+     * device reported again while its probe is queued or running, or whose last outcome
+     * is still fresh in the {@link DiscoveryCache}, is not probed again; devices whose
+     * last probes failed are held back by the {@link RetryPolicy}.
+     * @param address Address of the device to connect
+     * @param rssi    Signal strength of the device as reported by discovery, in dBm, or
+     *                ProbeScheduler.RSSI_UNKNOWN
+     * @return false if the device was not probed
      */
-    public synchronized void fetch(BluetoothDevice device) {
-        new ConnectFetchThread(device).start();
+    public boolean connect(String address, int rssi) {
+        if (!mDiscoveryCache.beginProbe(address)) {
+            return false;
+        }
+        if (!mRetryPolicy.allowAttempt(address)) {
+            mDiscoveryCache.cancelProbe(address);
+            return false;
+        }
+        if (!mProbeScheduler.submit(new ConnectTask(address), rssi)) {
+            mRetryPolicy.cancelAttempt(address);
+            mDiscoveryCache.cancelProbe(address);
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Start the ConnectedReceiverThread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connectedReceiver
+     * Set how many presence probes may connect at the same time.
      */
-    public synchronized void connectedReceiver(BluetoothSocket socket, BluetoothDevice device) {
+    public void setMaxConcurrentProbes(int maxConcurrentProbes) {
+        mProbeScheduler.setMaxConcurrentProbes(maxConcurrentProbes);
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        if(mConnectedReceiverThread != null) {
-            mConnectedReceiverThread.cancel();
-            mConnectedReceiverThread = null;
+    /**
+     * Set the deadlines of outgoing connections. A presence probe, including the profile
+     * swap, is aborted after probeMillis; the connect of a profile fetch after
+     * fetchConnectMillis.
+     */
+    public void setConnectTimeouts(long probeMillis, long fetchConnectMillis) {
+        if (probeMillis <= 0 || fetchConnectMillis <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive");
         }
+        mProbeTimeoutMillis = probeMillis;
+        mFetchConnectTimeoutMillis = fetchConnectMillis;
+    }
 
-        mConnectedReceiverThread = new ConnectedReceiverThread(socket);
-        mConnectedReceiverThread.start();
+    /**
+     * @return the watchdog of outgoing connects, for pending and timeout counters
+     */
+    public ConnectWatchdog getConnectWatchdog() {
+        return mConnectWatchdog;
+    }
+
+    /**
+     * @return the policy holding back devices whose probes fail, for per device statistics
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
     }
 
     /**
-     * Start the ConnectedReceiverThread to begin managing a Bluetooth connection
+     * Check the service records of devices before probing them, so devices not
+     * advertising the app get no socket. A {@link MuxTransport} checks them as well
+     * before connecting to a device directly.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connectedReceiver
+     * @param source Where the service records come from, null to probe every device
      */
-    public synchronized void connectedSender(BluetoothSocket socket, BluetoothDevice device) {
+    public void setServiceRecordSource(ServiceRecordSource source) {
+        mServiceFilter = source != null ? new ServiceFilter(source, MY_UUID_INSECURE) : null;
+        if (mTransport instanceof MuxTransport) {
+            ((MuxTransport) mTransport).setServiceRecordSource(source);
+        }
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        if(mConnectedSenderThread != null) {
-            mConnectedSenderThread.cancel();
-            mConnectedSenderThread = null;
+    /**
+     * Remember found peers and fetched profiles across runs. Profiles remembered from
+     * earlier runs are not fetched again while their peers announce them unchanged.
+     *
+     * @param registry The registry to keep peers in, null to keep none
+     */
+    public void setPeerRegistry(PeerRegistry registry) {
+        mPeerRegistry = registry;
+        if (registry != null) {
+            registry.load(new PeerRegistry.LoadListener() {
+                @Override
+                public void onPeersLoaded(List<PeerRegistry.Peer> peers) {
+                    for (PeerRegistry.Peer peer : peers) {
+                        if (peer.profile != null && peer.profileDigest != 0) {
+                            mProfileCache.seed(peer.address, peer.profileDigest, peer.profile);
+                        }
+                    }
+                }
+            });
         }
+    }
+
+    /**
+     * Let the service pace the inquiries of the radio from {@link #start()} to
+     * {@link #stop()}, never starting one while connects are in progress. Probes wait
+     * for a running inquiry to end, and fetches cut it short. Call before start().
+     *
+     * @param inquiry The inquiry to pace, null to leave inquiries to the caller
+     */
+    public void setInquiry(DiscoveryScheduler.Inquiry inquiry) {
+        mDiscoveryScheduler = inquiry != null
+                ? new DiscoveryScheduler(inquiry, mConnectWatchdog) : null;
+        mRadio.setDiscoveryScheduler(mDiscoveryScheduler);
+    }
 
-        mConnectedSenderThread = new ConnectedSenderThread(socket);
-        mConnectedSenderThread.start();
+    /**
+     * @return the scheduler pacing inquiries, to report their progress to; null if
+     * there is none
+     */
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return mDiscoveryScheduler;
     }
 
     /**
-     * Stop all threads
+     * @return the coordinator sharing the radio between inquiries, probes and fetches
      */
-    public synchronized void stop() {
-        if (mConnectedReceiverThread != null) {
-            mConnectedReceiverThread.cancel();
-            mConnectedReceiverThread = null;
-        }
+    public RadioCoordinator getRadioCoordinator() {
+        return mRadio;
+    }
 
-        if (mConnectedSenderThread != null) {
-            mConnectedSenderThread.cancel();
-            mConnectedSenderThread = null;
+    /**
+     * @return the filter checking service records before probes, null if there is none
+     */
+    public ServiceFilter getServiceFilter() {
+        return mServiceFilter;
+    }
+
+    /**
+     * @return the cache of probe outcomes, for merged and skipped probe counters
+     */
+    public DiscoveryCache getDiscoveryCache() {
+        return mDiscoveryCache;
+    }
+
+    /**
+     * @return the scheduler running presence probes, for queue depth and throughput counters
+     */
+    public ProbeScheduler getProbeScheduler() {
+        return mProbeScheduler;
+    }
+
+    /**
+     * Choose whether presence probes exchange profiles on the discovery connection.
+     * When disabled, probes only connect and a profile costs a second connection
+     * through {@link #fetch(String)}, which is all that older peers understand.
+     * Incoming probes are served in both modes.
+     */
+    public void setCombinedSessionEnabled(boolean enabled) {
+        mCombinedSession = enabled;
+    }
+
+    public boolean isCombinedSessionEnabled() {
+        return mCombinedSession;
+    }
+
+    /**
+     * Start the ConnectFetchThread to fetch the profile of a remote device.
+     * A warm session to the device from the SessionPool is reused when there is one.
+     * If the device announced the digest of the profile fetched last time, that profile
+     * is delivered right away without connecting.
+     * @param address Address of the device to connect
+     */
+    public void fetch(String address) {
+        User cached = mProfileCache.getIfCurrent(address);
+        if (cached != null) {
+            mListener.onConnectionEvent(Constants.MESSAGE_READ_OBJ, cached);
+            return;
         }
+        new ConnectFetchThread(address, true, System.nanoTime()).start();
+    }
 
-        if (mInsecureAcceptFetchThread != null) {
-            mInsecureAcceptFetchThread.cancel();
-            mInsecureAcceptFetchThread = null;
+    /**
+     * Fetch a large payload of a remote device, such as its profile photo, in chunks.
+     * If an earlier fetch of it was cut off, this one resumes where that stopped. The
+     * result is posted as MESSAGE_READ_BLOB with the {@link BlobTransfer}.
+     * @param address Address of the device to connect
+     * @param kind    One of the BlobTransfer.KIND_ constants
+     */
+    public void fetchBlob(String address, int kind) {
+        String key = address + '/' + kind;
+        BlobTransfer transfer;
+        synchronized (mPartialBlobs) {
+            transfer = mPartialBlobs.remove(key);
+        }
+        if (transfer == null) {
+            transfer = new BlobTransfer(address, kind);
         }
+        mReceiverSessions.submit(new BlobFetchSession(transfer));
+    }
+
+    /**
+     * Set the provider of the local payloads served to {@link #fetchBlob} requests.
+     */
+    public void setBlobProvider(BlobProvider blobProvider) {
+        mBlobProvider = blobProvider;
+    }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+    /**
+     * Set the chunk size asked for by {@link #fetchBlob}. Smaller chunks lose less on a
+     * dropped link, bigger ones cost less framing.
+     */
+    public void setBlobChunkSize(int chunkSize) {
+        if (chunkSize < BlobTransfer.MIN_CHUNK_SIZE || chunkSize > BlobTransfer.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
         }
+        mBlobChunkSize = chunkSize;
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * @return write counters of all fetch sessions: throughput, coalescing, failures
+     * and time producers spent waiting for a full queue
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        mHandler.sendMessage(msg);
+    public OutboundQueue.Stats getWriteStats() {
+        return mWriteStats;
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * @return the cache of fetched profiles, for hit/miss counters
      */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        mHandler.sendMessage(msg);
+    public ProfileCache getProfileCache() {
+        return mProfileCache;
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs infinitely to able other nearBy users to discover me/others
+     * @return the pool of open fetch sessions, for tuning and hit/miss counters
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+    public SessionPool getSessionPool() {
+        return mSessionPool;
+    }
 
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+    /**
+     * @return the loop accepting presence probes, for accept rate and hand-off counters;
+     * null until the service is started
+     */
+    public synchronized AcceptLoop getPresenceAcceptLoop() {
+        return mInsecureAcceptLoop;
+    }
 
-            // Create a new listening server socket
-            try {
-                tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                        NAME_INSECURE, MY_UUID_INSECURE);
-            } catch (IOException e) {
-            }
-            mmServerSocket = tmp;
-        }
+    /**
+     * @return the loop accepting profile fetches; null until the service is started
+     */
+    public synchronized AcceptLoop getFetchAcceptLoop() {
+        return mInsecureAcceptFetchLoop;
+    }
 
-        public void run() {
-            BluetoothSocket socket = null;
+    /**
+     * @return the table running our profile fetches, for limits and counters
+     */
+    public SessionTable getReceiverSessions() {
+        return mReceiverSessions;
+    }
 
-            // Listen to the server socket if we're not connectedReceiver
-            while (true) {
-                try {
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    // TODO nothing
-                }
+    /**
+     * @return the table serving our profile to requesting devices, for limits and counters
+     */
+    public SessionTable getSenderSessions() {
+        return mSenderSessions;
+    }
 
-                // Listen to the server socket to allow nearBy users to find me
-                if (socket != null) {
-                    synchronized (BluetoothConnectionService.this) {
-                        mHandler.obtainMessage(Constants.NEAR_BY_USER_FOUND, new Device(
-                                socket, socket.getRemoteDevice()))
-                                .sendToTarget();
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * @return the table answering presence probes of nearby devices, for limits and counters
+     */
+    public SessionTable getPresenceSessions() {
+        return mPresenceSessions;
+    }
 
-        public void cancel() {
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-            }
-        }
+    /**
+     * Run a ConnectedReceiverSession to fetch a profile. Fetches from several devices
+     * run side by side in the receiver SessionTable.
+     *
+     * @param session The session on which the profile is fetched
+     * @param reused  true if the session came from the pool and already delivered a profile
+     */
+    public void connectedReceiver(PeerSession session, boolean reused) {
+        connectedReceiver(session, reused, System.nanoTime());
     }
 
+    private void connectedReceiver(PeerSession session, boolean reused, long fetchStartedAt) {
+        mReceiverSessions.submit(new ConnectedReceiverSession(session, reused, fetchStartedAt));
+    }
 
+    /**
+     * @return time from fetch() until the profile was delivered
+     */
+    public LatencyHistogram getFetchLatencyHistogram() {
+        return mFetchLatency;
+    }
 
+    /**
+     * @return time from sending DISCONNECT until the sender confirmed it and the fetch
+     * connection was released, the part of a fetch which used to be a fixed 100 ms sleep
+     */
+    public LatencyHistogram getCloseLatencyHistogram() {
+        return mCloseLatency;
+    }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * Run a ConnectedSenderSession to serve our profile. Every requesting device gets a
+     * session of its own in the sender SessionTable, so concurrent requests no longer
+     * cut each other off.
      *
-     * This thread is used to accept a request to get my profile data
+     * @param channel The Channel on which the connection was made
      */
-    private class AcceptFetchThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+    public void connectedSender(Channel channel) {
+        mSenderSessions.submit(new ConnectedSenderSession(channel));
+    }
 
-        public AcceptFetchThread() {
-            BluetoothServerSocket tmp = null;
+    /**
+     * Run a PresenceSession to answer a presence probe. Probes are answered in the
+     * presence SessionTable, so a crowded room costs a bounded number of threads.
+     *
+     * @param channel The Channel on which the probe was accepted
+     */
+    public void connectedPresence(Channel channel) {
+        mPresenceSessions.submit(new PresenceSession(channel));
+    }
 
-            // Create a new listening server socket
-            try {
-                tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                        NAME_INSECURE, MY_FETCH_UUID_INSECURE);
-            } catch (IOException e) {
-            }
-            mmServerSocket = tmp;
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        DiscoveryScheduler scheduler = mDiscoveryScheduler;
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        // abort outgoing connects first, so probe workers and fetch threads are freed
+        mConnectWatchdog.shutdown();
+        mProbeScheduler.shutdown();
+        mSessionPool.shutdown();
+        mReceiverSessions.shutdown();
+        mSenderSessions.shutdown();
+        mPresenceSessions.shutdown();
+        mPresenceWatchdog.shutdown();
+        PeerRegistry registry = mPeerRegistry;
+        if (registry != null) {
+            registry.flush();
         }
 
-        public void run() {
-            BluetoothSocket socket = null;
+        if (mInsecureAcceptFetchLoop != null) {
+            mInsecureAcceptFetchLoop.cancel();
+            mInsecureAcceptFetchLoop = null;
+        }
 
-            // Listen to the server socket to allow transfer profile data
-            while (true) {
-                try {
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    // TODO nothing
-                }
+        if (mInsecureAcceptLoop != null) {
+            mInsecureAcceptLoop.cancel();
+            mInsecureAcceptLoop = null;
+        }
+    }
 
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (BluetoothConnectionService.this) {
-                        connectedSender(socket, socket.getRemoteDevice());
-                    }
-                }
-            }
+    /**
+     * Note a nearBy user found by a probe of either side, and notify the UI Activity.
+     */
+    private void peerFound(Device device) {
+        PeerRegistry registry = mPeerRegistry;
+        if (registry != null) {
+            registry.seen(device);
         }
+        mListener.onConnectionEvent(Constants.NEAR_BY_USER_FOUND, device);
+    }
 
-        public void cancel() {
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-            }
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed() {
+        // Send a failure message back to the Activity
+        mListener.onConnectionEvent(Constants.MESSAGE_TOAST, null);
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the UI Activity.
+     */
+    private void connectionLost() {
+        // Send a failure message back to the Activity
+        mListener.onConnectionEvent(Constants.MESSAGE_TOAST, null);
+    }
+
+    /**
+     * Write the local profile for a discovery connection: the full profile when it is
+     * small, else a summary without the interests. Either is followed by the digest of
+     * the full profile.
+     */
+    private void writeInlineProfile(FrameWriter writer, ProfileCodec codec) throws IOException {
+        User profile = mProfileProvider.getLocalProfile();
+        int type = Frame.TYPE_PROFILE;
+        int length = codec.encode(profile);
+        long digest = codec.digest();
+        if (length > MAX_INLINE_PROFILE_SIZE) {
+            type = Frame.TYPE_PROFILE_SUMMARY;
+            codec.encode(new User(profile.username, profile.age, profile.male, null));
         }
+        length = codec.appendDigest(digest);
+        writer.write(type, codec.getBuffer(), 0, length);
     }
 
+    /**
+     * Store a profile received on a discovery connection in the device, and note its
+     * digest in the profile cache.
+     *
+     * @return false if the frame does not carry a profile
+     */
+    private boolean readInlineProfile(Frame frame, ProfileCodec codec, Device device)
+            throws IOException {
+        if (frame == null || (frame.type != Frame.TYPE_PROFILE
+                && frame.type != Frame.TYPE_PROFILE_SUMMARY)) {
+            return false;
+        }
+        device.profile = codec.decode(frame.payload, 0, frame.length);
+        device.profileComplete = frame.type == Frame.TYPE_PROFILE;
+        device.profileDigest = codec.decodeDigest(frame.payload);
+        if (device.profileDigest != 0) {
+            mProfileCache.announce(device.address, device.profileDigest);
+        }
+        return true;
+    }
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * This task runs on a ProbeScheduler worker while attempting to make an
+     * outgoing connection with a device. It runs straight through; the
+     * connection either succeeds or fails.
      *
-     * This thread is used to find a nearBy user of this APP
+     * This task is used to find a nearBy user of this APP
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class ConnectTask implements ProbeScheduler.DroppableProbe {
+        private final String mmAddress;
+        private volatile Channel mmSocket;
 
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectTask(String address) {
+            mmAddress = address;
+        }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+        @Override
+        public void onDropped() {
+            // made room for a device with a stronger signal
+            mRetryPolicy.cancelAttempt(mmAddress);
+            mDiscoveryCache.cancelProbe(mmAddress);
+        }
+
+        public void run() {
+            // only devices advertising our service get a socket
+            ServiceFilter filter = mServiceFilter;
             try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(
-                        MY_UUID_INSECURE);
+                // an inquiry would slow the SDP query and the connect down
+                mRadio.awaitProbeWindow();
+                if (filter != null && filter.check(mmAddress) == ServiceFilter.NOT_ADVERTISED) {
+                    mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_NOT_APP);
+                    // settles a trial probe of an open circuit, which would hold it otherwise
+                    mRetryPolicy.recordFailure(mmAddress);
+                    connectionFailed();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // stopped before trying, give the attempt back
+                mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_UNKNOWN);
+                mRetryPolicy.cancelAttempt(mmAddress);
+                return;
+            }
+
+            // Get a Channel for a connection with the given device
+            try {
+                mmSocket = mTransport.createChannel(mmAddress, MY_UUID_INSECURE);
             } catch (IOException e) {
             }
-            mmSocket = tmp;
-        }
+            if (mmSocket == null) {
+                mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_UNKNOWN);
+                mRetryPolicy.recordFailure(mmAddress);
+                connectionFailed();
+                return;
+            }
 
-        public void run() {
+            // the deadline covers the connect and the profile swap
+            ConnectWatchdog.Attempt attempt =
+                    mConnectWatchdog.watch(mmSocket, mProbeTimeoutMillis);
             try {
                 mmSocket.connect();
             } catch (IOException e) {
+                // even an early failure says little: a busy link, a paging failure or a
+                // peer whose accept loop is backing off fail the same; the backoff of
+                // the RetryPolicy takes care of it, only the service record check
+                // proves a device lacks the app
+                attempt.finish();
                 // Close the socket
                 try {
                     mmSocket.close();
                 } catch (IOException e2) {
                 }
+                mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_UNKNOWN);
+                mRetryPolicy.recordFailure(mmAddress);
                 connectionFailed();
                 return;
             }
 
+            Device device = new Device(mmAddress, mmSocket.getRemoteName());
+            if (mCombinedSession) {
+                exchangeProfiles(device);
+            }
+            if (!attempt.finish()) {
+                // the deadline passed, or stop() came, while we were at it and closed the
+                // socket; a peer which stalls after accepting is not reported as found
+                try {
+                    mmSocket.close();
+                } catch (IOException e) {
+                }
+                mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_UNKNOWN);
+                if (attempt.isTimedOut()) {
+                    mRetryPolicy.recordFailure(mmAddress);
+                    connectionFailed();
+                } else {
+                    mRetryPolicy.cancelAttempt(mmAddress);
+                }
+                return;
+            }
+
             // found a nearBy user
-            mHandler.obtainMessage(Constants.NEAR_BY_USER_FOUND, new Device(mmSocket, mmDevice))
-                    .sendToTarget();
+            mDiscoveryCache.endProbe(mmAddress, DiscoveryCache.RESULT_APP);
+            mRetryPolicy.recordSuccess(mmAddress);
+            peerFound(device);
             try {
                 mmSocket.close();
             } catch (IOException e) {
             }
         }
 
+        /**
+         * Swap profiles on the discovery connection, saving the separate fetch connection.
+         * Older peers close the connection right after accepting it; their profile is
+         * then fetched separately as before.
+         */
+        private void exchangeProfiles(Device device) {
+            try {
+                ProfileCodec codec = new ProfileCodec();
+                FrameWriter writer = new FrameWriter(mmSocket.getOutputStream());
+                writer.write(Frame.TYPE_HELLO, null);
+                writeInlineProfile(writer, codec);
+
+                Frame frame = new FrameDecoder().readFrame(mmSocket.getInputStream());
+                if (readInlineProfile(frame, codec, device)) {
+                    // let the peer close once its profile has been delivered
+                    writer.write(Frame.TYPE_DISCONNECT, null);
+                }
+            } catch (IOException e) {
+                // older peer, the profile will be fetched on demand
+            }
+        }
+
         public void cancel() {
+            Channel socket = mmSocket;
+            if (socket == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
             }
         }
@@ -351,40 +768,142 @@ public class BluetoothConnectionService {
      * This thread is to fetch nearBy user's Profile data
      */
     private class ConnectFetchThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final String mmAddress;
+        private final boolean mmUsePool;
+        private final long mmStartedAt;
+        private volatile Channel mmSocket;
+
+        /**
+         * @param address   Address of the device to fetch from
+         * @param usePool   false to skip the pool, after a pooled session turned out stale
+         * @param startedAt System.nanoTime() of the fetch() call
+         */
+        public ConnectFetchThread(String address, boolean usePool, long startedAt) {
+            mmAddress = address;
+            mmUsePool = usePool;
+            mmStartedAt = startedAt;
+        }
 
-        public ConnectFetchThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public void run() {
+            if (mmUsePool) {
+                PeerSession session = mSessionPool.acquire(mmAddress);
+                if (session != null) {
+                    connectedReceiver(session, true, mmStartedAt);
+                    return;
+                }
+            }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // the user is waiting, the radio is ours until connected
+            mRadio.beginFetch();
+            PeerSession session;
             try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(
-                        MY_FETCH_UUID_INSECURE);
-            } catch (IOException e) {
+                session = connectFetch();
+            } finally {
+                mRadio.endFetch();
+            }
+            if (session == null) {
+                connectionFailed();
+                return;
             }
-            mmSocket = tmp;
+
+            // Start the connectedReceiver session
+            connectedReceiver(session, false, mmStartedAt);
         }
 
-        public void run() {
+        /**
+         * @return the connected session, null if the connect failed
+         */
+        private PeerSession connectFetch() {
+            // Get a Channel for a connection with the given device
+            try {
+                mmSocket = mTransport.createChannel(mmAddress, MY_FETCH_UUID_INSECURE);
+            } catch (IOException e) {
+                return null;
+            }
+
+            ConnectWatchdog.Attempt attempt =
+                    mConnectWatchdog.watch(mmSocket, mFetchConnectTimeoutMillis);
             try {
                 mmSocket.connect();
+                if (!attempt.finish()) {
+                    // connected just as the deadline passed and closed the socket
+                    throw new IOException("Connect to " + mmAddress + " timed out");
+                }
+                mRetryPolicy.recordSuccess(mmAddress);
+                return new PeerSession(mmAddress, mmSocket, mWriteStats);
             } catch (IOException e) {
+                attempt.finish();
                 // Close the socket
                 try {
                     mmSocket.close();
                 } catch (IOException e2) {
                 }
-                connectionFailed();
+                return null;
+            }
+        }
+
+        public void cancel() {
+            Channel socket = mmSocket;
+            if (socket == null) {
                 return;
             }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * This session runs during a presence probe from a nearby device. A prober in combined
+     * mode sends HELLO and its profile and gets ours back on the same connection; an older
+     * prober just closes the connection. The exchange has the probe deadline, so a prober
+     * which connects and then says nothing does not keep the slot.
+     */
+    private class PresenceSession extends SessionTable.Session {
+        private final Channel mmSocket;
 
-            // Start the connectedReceiver thread
-            connectedReceiver(mmSocket, mmDevice);
+        public PresenceSession(Channel socket) {
+            super(socket.getRemoteAddress());
+            mmSocket = socket;
         }
 
+        public void run() {
+            Device device = new Device(mmSocket.getRemoteAddress(), mmSocket.getRemoteName());
+            ConnectWatchdog.Attempt deadline =
+                    mPresenceWatchdog.watch(mmSocket, mProbeTimeoutMillis);
+            try {
+                InputStream in = mmSocket.getInputStream();
+                FrameDecoder decoder = new FrameDecoder();
+                ProfileCodec codec = new ProfileCodec();
+
+                setIdle(true);
+                Frame hello = decoder.readFrame(in);
+                if (hello != null && hello.type == Frame.TYPE_HELLO) {
+                    Frame profile = decoder.readFrame(in);
+                    setIdle(false);
+                    readInlineProfile(profile, codec, device);
+                    writeInlineProfile(new FrameWriter(mmSocket.getOutputStream()), codec);
+
+                    // wait for the prober to confirm before closing, so the profile is not cut off
+                    setIdle(true);
+                    decoder.readFrame(in);
+                }
+            } catch (IOException e) {
+                // the prober went away or ran out of time, it has found us all the same
+            } finally {
+                deadline.finish();
+            }
+
+            // a nearBy user found me: clear its backoff, and skip probing it back while
+            // the news is fresh
+            mRetryPolicy.recordSuccess(device.address);
+            mDiscoveryCache.markApp(device.address);
+            peerFound(device);
+            cancel();
+        }
+
+        @Override
         public void cancel() {
             try {
                 mmSocket.close();
@@ -394,128 +913,258 @@ public class BluetoothConnectionService {
     }
 
     /**
-     * This thread runs during a connection with a nearby device, with this current APP
+     * This session runs during a connection with a nearby device, with this current APP
      * It handles the transfer of SUCCESSFULL transfer of Profile data to the sending device
+     *
+     * A new session starts with the peer's profile; a pooled one asks for it again with
+     * a FETCH frame. Afterwards the session goes back to the SessionPool, or is
+     * disconnected if pooling is disabled.
      */
-    private class ConnectedReceiverThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedReceiverThread(BluetoothSocket socket) {
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+    private class ConnectedReceiverSession extends SessionTable.Session {
+        private final PeerSession mmSession;
+        private final boolean mmReused;
+        private final long mmFetchStartedAt;
+        // set once the session is handed back to the pool, which then owns it
+        private volatile boolean mmReleased;
+
+        public ConnectedReceiverSession(PeerSession session, boolean reused,
+                                        long fetchStartedAt) {
+            super(session.getAddress());
+            mmSession = session;
+            mmReused = reused;
+            mmFetchStartedAt = fetchStartedAt;
+        }
 
-            // Get the BluetoothSocket input and output streams
+        public void run() {
+            User profile;
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                if (mmReused) {
+                    mmSession.write(Frame.TYPE_FETCH, null);
+                }
+
+                // Read frames until the profile arrives, however many reads it takes
+                Frame frame;
+                do {
+                    frame = mmSession.readFrame();
+                    if (frame == null) {
+                        throw new EOFException("Connection closed before the profile arrived");
+                    }
+                } while (frame.type != Frame.TYPE_PROFILE);
+
+                profile = mmSession.getCodec().decode(frame.payload, 0, frame.length);
+                long digest = ProfileCodec.digest(frame.payload, 0, frame.length);
+                mProfileCache.put(mmSession.getAddress(), digest, profile);
+                PeerRegistry registry = mPeerRegistry;
+                if (registry != null) {
+                    registry.putProfile(mmSession.getAddress(), digest, profile);
+                }
             } catch (IOException e) {
-                // TODO "temp sockets not created"
+                mmSession.abort();
+                if (mmReused) {
+                    // the pooled session went stale, fetch on a fresh connection instead
+                    new ConnectFetchThread(mmSession.getAddress(), false, mmFetchStartedAt)
+                            .start();
+                } else {
+                    // TODO "on ConnectionLost"
+                    connectionLost();
+                }
+                return;
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            // keep the session warm for the next fetch from this device, before anyone
+            // learns about the profile and asks for it again
+            mmReleased = mSessionPool.release(mmSession);
+
+            // Send the obtained bytes to the Profile data
+            mFetchLatency.recordNanos(System.nanoTime() - mmFetchStartedAt);
+            mListener.onConnectionEvent(Constants.MESSAGE_READ_OBJ, profile);
+            if (mmReleased) {
+                return;
+            }
+
+            // send the sender an DISCONNET request and SUCCESSFULL retrieval of profile data,
+            // the connection is released as soon as the sender confirms
+            long closeStartedAt = System.nanoTime();
+            mmSession.closeGracefully(CLOSE_ACK_TIMEOUT_MILLIS);
+            mCloseLatency.recordNanos(System.nanoTime() - closeStartedAt);
+            mListener.onConnectionEvent(777, "Disconnected");
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-            // Keep listening to the InputStream while connectedReceiver
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    String readMessage = new String(buffer, 0, bytes);
+        @Override
+        public void cancel() {
+            if (!mmReleased) {
+                mmSession.abort();
+            }
+        }
+    }
 
-                    // Send the obtained bytes to the Profile data
-                    if(readMessage != null) {
-                        mHandler.obtainMessage(Constants.MESSAGE_READ_OBJ, readMessage)
-                                .sendToTarget();
+    /**
+     * This session fetches a large payload of a nearby device in chunks. When the link
+     * drops, the transfer resumes on a new connection from the last chunk received; if
+     * all attempts fail the partial payload is kept for the next fetchBlob().
+     */
+    private class BlobFetchSession extends SessionTable.Session {
+        private final BlobTransfer mmTransfer;
+        private volatile PeerSession mmSession;
+        private volatile boolean mmCancelled;
+
+        public BlobFetchSession(BlobTransfer transfer) {
+            super(transfer.getAddress());
+            mmTransfer = transfer;
+        }
 
-                        // send the sender an DISCONNET request and SUCCESSFULL retrieval of profile data
-                        write("disconnect".getBytes());
-                        try {
-                            sleep(100);
-                            mmSocket.close();
-                            mHandler.obtainMessage(777, "Disconnected").sendToTarget();
-                        } catch (InterruptedException e) {
-                        } catch (IOException e) {
-                        }
+        public void run() {
+            String address = mmTransfer.getAddress();
+            for (int attempt = 0; attempt < MAX_BLOB_ATTEMPTS && !mmCancelled; attempt++) {
+                PeerSession session = attempt == 0 ? mSessionPool.acquire(address) : null;
+                try {
+                    if (session == null) {
+                        session = openFetchSession(address);
+                    }
+                    mmSession = session;
+                    if (mmCancelled) {
+                        break;
+                    }
+                    if (!receive(session)) {
+                        // an older peer, it does not know blobs
+                        session.abort();
                         break;
                     }
                 } catch (IOException e) {
-                    // TODO "on ConnectionLost"
-                    connectionLost();
-                    try {
-                        mmSocket.close();
-                    } catch (IOException ee) {
+                    if (session != null) {
+                        session.abort();
                     }
-                    break;
+                    continue;
                 }
+
+                mmSession = null;
+                if (!mSessionPool.release(session)) {
+                    session.closeGracefully(CLOSE_ACK_TIMEOUT_MILLIS);
+                }
+                mListener.onConnectionEvent(Constants.MESSAGE_READ_BLOB, mmTransfer);
+                return;
+            }
+
+            mmSession = null;
+            if (mmTransfer.getReceived() > 0) {
+                synchronized (mPartialBlobs) {
+                    mPartialBlobs.put(address + '/' + mmTransfer.getKind(), mmTransfer);
+                }
+            }
+            if (!mmCancelled) {
+                connectionFailed();
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Ask for the rest of the payload and take it in. The request is followed by a
+         * PING: an older peer ignores the request and answers the PING right away.
          *
-         * @param buffer The bytes to write
+         * @return false if the peer does not serve blobs
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-            } catch (IOException e) {
-                // TODO "Exception during write"
+        private boolean receive(PeerSession session) throws IOException {
+            session.write(Frame.TYPE_BLOB_REQUEST, mmTransfer.request(mBlobChunkSize));
+            session.write(Frame.TYPE_PING, null);
+            boolean over = false;
+            while (true) {
+                Frame frame = session.readFrame();
+                if (frame == null) {
+                    throw new EOFException("Connection closed during blob transfer");
+                }
+                if (frame.type == Frame.TYPE_PONG) {
+                    // everything sent before the PONG has been read
+                    return over;
+                }
+                if (mmTransfer.onFrame(frame)) {
+                    over = true;
+                }
             }
         }
 
+        @Override
         public void cancel() {
+            mmCancelled = true;
+            PeerSession session = mmSession;
+            if (session != null) {
+                session.abort();
+            }
+        }
+    }
+
+    /**
+     * Connect to the fetch service of a device within the fetch connect deadline,
+     * keeping the radio from inquiries meanwhile.
+     */
+    private PeerSession openFetchSession(String address) throws IOException {
+        mRadio.beginFetch();
+        try {
+            Channel channel = mTransport.createChannel(address, MY_FETCH_UUID_INSECURE);
+            ConnectWatchdog.Attempt attempt =
+                    mConnectWatchdog.watch(channel, mFetchConnectTimeoutMillis);
             try {
-                mmSocket.close();
+                channel.connect();
+                if (!attempt.finish()) {
+                    throw new IOException("Connect to " + address + " timed out");
+                }
+                return new PeerSession(address, channel, mWriteStats);
             } catch (IOException e) {
-                // TODO "close() of connect socket failed"
+                attempt.finish();
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                }
+                throw e;
             }
+        } finally {
+            mRadio.endFetch();
         }
     }
 
     /**
-     * This thread runs during a connection with a nearby device, with this current APP
-     * It handles the transfer of profile data to the requesting device
+     * This session runs during a connection with a nearby device, with this current APP
+     * It handles the transfer of profile data to the requesting device. It counts as idle
+     * while it waits for the requester's next frame. Its frames are written by an
+     * OutboundQueue, so a burst such as the chunks of a blob is coalesced and stays
+     * within the queue's bound.
      */
-    private class ConnectedSenderThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedSenderSession extends SessionTable.Session {
+        private final Channel mmSocket;
+        private volatile boolean mmCancelled;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        private final OutboundQueue mmQueue;
+        private final FrameWriter mmFrameWriter;
 
-        public ConnectedSenderThread(BluetoothSocket socket) {
+        public ConnectedSenderSession(Channel socket) {
+            super(socket.getRemoteAddress());
             mmSocket = socket;
             InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            OutboundQueue tmpQueue = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the Channel input and output streams
             try {
                 tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpQueue = new OutboundQueue(socket, socket.getRemoteAddress(), mWriteStats);
             } catch (IOException e) {
-                // TODO "temp sockets not created"
+                // the channel is of no use, run() closes it
+                tmpQueue = null;
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmQueue = tmpQueue;
+            mmFrameWriter = tmpQueue != null ? new FrameWriter(tmpQueue) : null;
         }
 
         public void run() {
+            if (mmQueue == null) {
+                try {
+                    mmSocket.close();
+                } catch (IOException e) {
+                }
+                return;
+            }
+            ProfileCodec codec = new ProfileCodec();
             try {
-                NearByApplication application = NearByApplication.getInstance();
-
-                String message = new StringBuilder()
-                        .append(application.getUserName()).append(":")
-                        .append(application.getUserAge()).append(":")
-                        .append(application.isUserGenderMale()).append(":")
-                        .append(application.getUserInterests()).toString();
-                byte[] sendBuffer = message.getBytes();
-                mmOutStream.write(sendBuffer);
+                writeProfile(codec);
             } catch (IOException e) {
                 try {
                     mmSocket.close();
@@ -523,18 +1172,35 @@ public class BluetoothConnectionService {
                 }
             }
 
-            byte[] buffer = new byte[1024];
-            int bytes;
-            // Keep listening to the InputStream while connectedReceiver
+            FrameDecoder decoder = new FrameDecoder(BufferPool.shared());
+            // Keep serving the requester while it keeps the session open
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    String readMessage = new String(buffer, 0, bytes);
+                    setIdle(true);
+                    Frame frame = decoder.readFrame(mmInStream);
+                    setIdle(false);
+                    if (frame == null) {
+                        throw new EOFException("Connection closed before the disconnect request");
+                    }
+
+                    if (frame.type == Frame.TYPE_FETCH) {
+                        writeProfile(codec);
+                    } else if (frame.type == Frame.TYPE_PING) {
+                        mmFrameWriter.write(Frame.TYPE_PONG, null);
+                    } else if (frame.type == Frame.TYPE_BLOB_REQUEST) {
+                        BlobTransfer.serve(frame, mBlobProvider, mmFrameWriter);
 
                     // read the disconnection message to disconnect the socket
                     // ensuring the data sent successfully
-                    if(readMessage != null && readMessage.equalsIgnoreCase("disconnect")) {
+                    } else if (frame.type == Frame.TYPE_DISCONNECT) {
+                        // everything we sent has been read, confirm so the
+                        // requester can release the connection right away
+                        try {
+                            mmFrameWriter.write(Frame.TYPE_DISCONNECT_ACK, null);
+                            mmQueue.drain(CLOSE_ACK_TIMEOUT_MILLIS);
+                        } catch (IOException e) {
+                            // older requesters do not wait for the confirmation
+                        }
                         try {
                             mmSocket.close();
                         } catch (IOException e) {
@@ -543,7 +1209,9 @@ public class BluetoothConnectionService {
                     }
                 } catch (IOException e) {
                     // TODO "on connection lost"
-                    connectionLost();
+                    if (!mmCancelled) {
+                        connectionLost();
+                    }
                     try {
                         mmSocket.close();
                     } catch (IOException ee) {
@@ -551,9 +1219,19 @@ public class BluetoothConnectionService {
                     break;
                 }
             }
+            decoder.release();
+            mmQueue.close();
+        }
+
+        private void writeProfile(ProfileCodec codec) throws IOException {
+            int length = codec.encode(mProfileProvider.getLocalProfile());
+            mmFrameWriter.write(Frame.TYPE_PROFILE, codec.getBuffer(), 0, length);
         }
 
+        @Override
         public void cancel() {
+            // closed to make room for another requester, or by stop()
+            mmCancelled = true;
             try {
                 mmSocket.close();
             } catch (IOException e) {
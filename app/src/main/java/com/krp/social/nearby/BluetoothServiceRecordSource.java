@@ -0,0 +1,105 @@
+package com.krp.social.nearby;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ServiceRecordSource} over the SDP queries of the Bluetooth stack. The answer
+ * of a query comes back as an ACTION_UUID broadcast; the receiver is registered only
+ * while queries are pending.
+ */
+public class BluetoothServiceRecordSource implements ServiceRecordSource {
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+
+    // guarded by itself
+    private final Map<String, PendingFetch> mPending = new HashMap<String, PendingFetch>();
+
+    private static class PendingFetch {
+        final CountDownLatch mmDone = new CountDownLatch(1);
+        volatile UUID[] mmUuids;
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            PendingFetch fetch;
+            synchronized (mPending) {
+                fetch = mPending.get(device.getAddress());
+            }
+            if (fetch != null) {
+                fetch.mmUuids = toUuids(intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID));
+                fetch.mmDone.countDown();
+            }
+        }
+    };
+
+    public BluetoothServiceRecordSource(Context context, BluetoothAdapter adapter) {
+        mContext = context.getApplicationContext();
+        mAdapter = adapter;
+    }
+
+    @Override
+    public UUID[] getCachedUuids(String address) {
+        return toUuids(mAdapter.getRemoteDevice(address).getUuids());
+    }
+
+    @Override
+    public UUID[] fetchUuids(String address, long timeoutMillis) throws InterruptedException {
+        PendingFetch fetch;
+        synchronized (mPending) {
+            fetch = mPending.get(address);
+            if (fetch == null) {
+                fetch = new PendingFetch();
+                if (mPending.isEmpty()) {
+                    mContext.registerReceiver(mReceiver,
+                            new IntentFilter(BluetoothDevice.ACTION_UUID));
+                }
+                mPending.put(address, fetch);
+            }
+        }
+        try {
+            if (!mAdapter.getRemoteDevice(address).fetchUuidsWithSdp()) {
+                return null;
+            }
+            fetch.mmDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            return fetch.mmUuids;
+        } finally {
+            synchronized (mPending) {
+                if (mPending.get(address) == fetch) {
+                    mPending.remove(address);
+                    if (mPending.isEmpty()) {
+                        mContext.unregisterReceiver(mReceiver);
+                    }
+                }
+            }
+        }
+    }
+
+    private static UUID[] toUuids(Parcelable[] parcels) {
+        if (parcels == null) {
+            return null;
+        }
+        UUID[] uuids = new UUID[parcels.length];
+        for (int i = 0; i < parcels.length; i++) {
+            uuids[i] = ((ParcelUuid) parcels[i]).getUuid();
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,90 @@
+package com.krp.social.nearby;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over insecure Bluetooth RFCOMM sockets.
+ */
+public class BluetoothTransport implements Transport {
+    private final BluetoothAdapter mAdapter;
+
+    public BluetoothTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID service) throws IOException {
+        return new BluetoothServerChannel(
+                mAdapter.listenUsingInsecureRfcommWithServiceRecord(name, service));
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID service) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return new BluetoothChannel(device.createInsecureRfcommSocketToServiceRecord(service));
+    }
+
+    private static class BluetoothServerChannel implements ServerChannel {
+        private final BluetoothServerSocket mServerSocket;
+
+        BluetoothServerChannel(BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            return new BluetoothChannel(mServerSocket.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static class BluetoothChannel implements Channel {
+        private final BluetoothSocket mSocket;
+
+        BluetoothChannel(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
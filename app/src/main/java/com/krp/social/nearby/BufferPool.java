@@ -0,0 +1,110 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays in power of two sizes, from 64 bytes to 64 KB, shared by the
+ * frame decoders and writers. Taking and giving back a buffer allocates nothing once
+ * the pool is warm, so a steady exchange of frames makes no garbage.
+ *
+ * Buffers come back dirty; they are only ever written before being read.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+    // Buffers kept per size, the rest is left to the garbage collector
+    private static final int MAX_PER_SIZE = 16;
+
+    private static final BufferPool sShared = new BufferPool();
+
+    // one stack per size class, each guarded by itself
+    private final byte[][][] mFree = new byte[MAX_SHIFT - MIN_SHIFT + 1][MAX_PER_SIZE][];
+    private final int[] mCount = new int[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mAllocations = new AtomicLong();
+
+    /**
+     * @return the pool shared by the whole app
+     */
+    public static BufferPool shared() {
+        return sShared;
+    }
+
+    /**
+     * @return a buffer of at least minSize bytes
+     */
+    public byte[] get(int minSize) {
+        int index = sizeClass(minSize);
+        if (index < 0) {
+            // too big to pool
+            mAllocations.incrementAndGet();
+            return new byte[minSize];
+        }
+        byte[][] free = mFree[index];
+        synchronized (free) {
+            int count = mCount[index];
+            if (count > 0) {
+                byte[] buffer = free[--count];
+                free[count] = null;
+                mCount[index] = count;
+                mHits.incrementAndGet();
+                return buffer;
+            }
+        }
+        mAllocations.incrementAndGet();
+        return new byte[1 << (index + MIN_SHIFT)];
+    }
+
+    /**
+     * Give a buffer back. It must not be used any more by the caller.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = sizeClass(buffer.length);
+        if (index < 0 || buffer.length != 1 << (index + MIN_SHIFT)) {
+            // not one of ours
+            return;
+        }
+        byte[][] free = mFree[index];
+        synchronized (free) {
+            int count = mCount[index];
+            if (count < MAX_PER_SIZE) {
+                free[count] = buffer;
+                mCount[index] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * @return number of buffers handed out from the pool
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of buffers which had to be allocated
+     */
+    public long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    private static int sizeClass(int size) {
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" +
+                "hits=" + getHitCount() +
+                ", allocations=" + getAllocationCount() +
+                '}';
+    }
+}
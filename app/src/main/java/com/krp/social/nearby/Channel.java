@@ -0,0 +1,36 @@
+package com.krp.social.nearby;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream between this device and a remote one,
+ * modelled after {@link android.bluetooth.BluetoothSocket}.
+ */
+public interface Channel extends Closeable {
+
+    /**
+     * Attempt to connect to the remote device. Blocks until a connection is
+     * made or the attempt fails; {@link #close()} aborts a pending attempt.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return address of the remote device
+     */
+    String getRemoteAddress();
+
+    /**
+     * @return friendly name of the remote device, may be null
+     */
+    String getRemoteName();
+
+    @Override
+    void close() throws IOException;
+}
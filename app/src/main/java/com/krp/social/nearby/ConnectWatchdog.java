@@ -0,0 +1,162 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts a deadline on {@link Channel#connect()}. A connect to a device which is half gone
+ * can block for the whole stack timeout; the watchdog closes the channel once the
+ * deadline has passed, which makes connect() fail right away.
+ *
+ * Every connect in progress is known to the watchdog, so {@link #shutdown()} aborts all
+ * of them at once.
+ */
+public class ConnectWatchdog {
+
+    /**
+     * One watched connect. Call {@link #finish()} once connect() returned or failed.
+     */
+    public class Attempt implements Runnable {
+        private final Channel mChannel;
+        private volatile ScheduledFuture<?> mDeadline;
+        private volatile boolean mTimedOut;
+        private volatile boolean mAborted;
+
+        Attempt(Channel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * Stop watching the connect.
+         *
+         * @return false if the watchdog closed the channel, because the deadline passed
+         * or the watchdog was shut down
+         */
+        public boolean finish() {
+            ScheduledFuture<?> deadline = mDeadline;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            mPending.remove(this);
+            return !mAborted;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        @Override
+        public void run() {
+            if (mPending.remove(this)) {
+                mTimedOut = true;
+                mAborted = true;
+                mTimeouts.incrementAndGet();
+                abort();
+            }
+        }
+
+        void abort() {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final Set<Attempt> mPending =
+            Collections.newSetFromMap(new ConcurrentHashMap<Attempt, Boolean>());
+    private volatile boolean mShutdown;
+
+    private final AtomicLong mWatched = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+
+    public ConnectWatchdog() {
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NearByConnectWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start watching a connect which is about to begin.
+     *
+     * @param channel       The channel to close when the deadline passes
+     * @param timeoutMillis Time allowed for the connect
+     */
+    public Attempt watch(Channel channel, long timeoutMillis) {
+        Attempt attempt = new Attempt(channel);
+        mWatched.incrementAndGet();
+        mPending.add(attempt);
+        if (!mShutdown) {
+            try {
+                attempt.mDeadline = mTimer.schedule(attempt, timeoutMillis, TimeUnit.MILLISECONDS);
+                return attempt;
+            } catch (RejectedExecutionException e) {
+                // shut down meanwhile
+            }
+        }
+        // too late, fail the connect right away
+        mPending.remove(attempt);
+        attempt.mAborted = true;
+        attempt.abort();
+        return attempt;
+    }
+
+    /**
+     * @return number of connects in progress
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    public long getWatchedCount() {
+        return mWatched.get();
+    }
+
+    /**
+     * @return number of connects aborted because they missed their deadline
+     */
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    /**
+     * Abort every connect in progress, and every connect watched later.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mTimer.shutdownNow();
+        List<Attempt> pending = new ArrayList<>(mPending);
+        mPending.removeAll(pending);
+        for (Attempt attempt : pending) {
+            attempt.mAborted = true;
+            attempt.abort();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectWatchdog{" +
+                "pending=" + getPendingCount() +
+                ", watched=" + getWatchedCount() +
+                ", timeouts=" + getTimeoutCount() +
+                '}';
+    }
+}
@@ -0,0 +1,16 @@
+package com.krp.social.nearby;
+
+/**
+ * Receives the events of a {@link BluetoothConnectionService}. The message types are
+ * the ones defined in {@link Constants}, so the UI can forward them to its Handler.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called from the service's worker threads.
+     *
+     * @param what Message type, see {@link Constants}
+     * @param obj  Message payload, may be null
+     */
+    void onConnectionEvent(int what, Object obj);
+}
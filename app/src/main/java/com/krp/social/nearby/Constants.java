@@ -26,10 +26,13 @@ public interface Constants {
     public static final int MESSAGE_WRITE_OBJ = 2;
     public static final int MESSAGE_READ_OBJ = 3;
     public static final int NEAR_BY_USER_FOUND = 4;
+    public static final int MESSAGE_READ_BLOB = 5;
+    public static final int MESSAGE_KNOWN_PEERS = 6;
 
 
     public static final String KEY_PREF_USER_NAME = "userName";
     public static final String KEY_PREF_USER_AGE = "userAge";
     public static final String KEY_PREF_USER_GENDER_MALE = "userGender";
     public static final String KEY_PREF_USER_INTEREST = "userInterest";
+    public static final String KEY_PREF_USER_IMAGE_PATH = "userImagePath";
 }
@@ -5,11 +5,14 @@ import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.design.widget.NavigationView;
 import android.support.v4.app.DialogFragment;
@@ -29,10 +32,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class DashboardActivity extends AppCompatActivity
         implements NavigationView.OnNavigationItemSelectedListener, View.OnClickListener, NearByRecyclerAdapter.OnNearByUserSelectListener {
@@ -55,11 +55,11 @@ public class DashboardActivity extends AppCompatActivity
     private final int REQUEST_BT_DEVICE_DISCOVERY = 1002;
     private static final int REQUEST_SHOW_USER_PROFILE = 1003;
 
-    private List<User> connectedUsers = new ArrayList<>();
     /**
-     * Member object for the chat services
+     * The service hosting the connections, null while not bound
      */
-    private BluetoothConnectionService mChatService = null;
+    private NearByService mNearByService = null;
+    private boolean mBound;
 
     private ProgressDialog mWaitingDialog;
 
@@ -108,26 +108,27 @@ public class DashboardActivity extends AppCompatActivity
                         break;
 
                     case BluetoothAdapter.STATE_ON:
+                        // the NearByService starts listening and scanning again
                         mBtnRefreshSearch.setVisibility(View.GONE);
                         mProgressSearching.setVisibility(View.VISIBLE);
-                        setupChat();
                         break;
                 }
 
             } else if(action.equals(BluetoothDevice.ACTION_FOUND)) {
+                // probed by the NearByService; still around, even if the probe is skipped
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                connectDevice(device.getAddress());
+                nearBy.touch(device.getAddress(), System.currentTimeMillis());
 
             } else if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
                 mBtnRefreshSearch.setVisibility(View.VISIBLE);
                 mProgressSearching.setVisibility(View.GONE);
-                mRecyclerAdapter.notifyDataSetChanged();
             }
         }
     };
 
     private final Handler mHandler = new Handler() {
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             DashboardActivity activity = DashboardActivity.this;
             switch (msg.what) {
@@ -138,17 +139,7 @@ public class DashboardActivity extends AppCompatActivity
 
                 case Constants.MESSAGE_READ_OBJ:
                     dismissWaitingDialog();
-                    User user1;
-                    try {
-                        user1 = (User) msg.obj;
-                    } catch (Exception e) {
-                        String[] inputs = msg.obj.toString().split(":");
-                        user1 = new User(inputs[0], inputs[1], Boolean.valueOf(inputs[2]), inputs[3]);
-                    }
-                    connectedUsers.add(user1);
-                    startActivityForResult(new Intent(DashboardActivity.this, LoginActivity.class)
-                                    .putExtra(LoginActivity.KEY_INTENT_ACTIVITY_PROFILE, user1),
-                            REQUEST_SHOW_USER_PROFILE);
+                    showUserProfile((User) msg.obj);
                     break;
 
                 case Constants.MESSAGE_TOAST:
@@ -160,17 +151,79 @@ public class DashboardActivity extends AppCompatActivity
                 case Constants.NEAR_BY_USER_FOUND:
                     if (null != activity) {
                         Device device = (Device) msg.obj;
-                        nearBy.put(device.bluetoothDevice.getAddress(), device);
-                        mRecyclerAdapter.addData(new User(
-                                device.bluetoothDevice.getName(), device.bluetoothDevice.getAddress()));
-                        mRecyclerAdapter.notifyDataSetChanged();
+                        Device known = nearBy.get(device.address);
+                        if (device.profile == null && known != null) {
+                            // a plain probe must not drop a profile we already got
+                            device.profile = known.profile;
+                            device.profileComplete = known.profileComplete;
+                        }
+                        nearBy.put(device, System.currentTimeMillis());
+                        mRecyclerAdapter.addData(new User(device.name, device.address));
+                    }
+                    break;
+
+                case Constants.MESSAGE_KNOWN_PEERS:
+                    // peers from earlier runs, shown until discovery confirms them
+                    for (PeerRegistry.Peer peer : (List<PeerRegistry.Peer>) msg.obj) {
+                        if (!peer.app || nearBy.contains(peer.address)) {
+                            continue;
+                        }
+                        // the stored profile may be stale: a tap fetches, and the profile
+                        // cache serves it only once the peer announces the same digest
+                        Device device = new Device(peer.address, peer.name);
+                        // a full TTL for discovery to confirm it
+                        nearBy.put(device, System.currentTimeMillis());
+                        mRecyclerAdapter.addData(new User(device.name, device.address));
                     }
                     break;
             }
         }
     };
 
-    private Map<String, Device> nearBy = new HashMap<>();
+    /**
+     * Peers nearby, forgotten once not seen for a while.
+     */
+    private final PeerTable nearBy = new PeerTable(new PeerTable.Listener() {
+        @Override
+        public void onPeerRemoved(Device device) {
+            mRecyclerAdapter.removeData(new User(device.name, device.address));
+        }
+    });
+
+    private final ConnectionListener mServiceListener = new ConnectionListener() {
+        @Override
+        public void onConnectionEvent(int what, Object obj) {
+            mHandler.obtainMessage(what, obj).sendToTarget();
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mNearByService = ((NearByService.LocalBinder) binder).getService();
+            mNearByService.attach(mServiceListener);
+            // peers of earlier runs, and the ones found while we were away
+            NearByApplication.getInstance().getPeerRegistry().load(new PeerRegistry.LoadListener() {
+                @Override
+                public void onPeersLoaded(List<PeerRegistry.Peer> peers) {
+                    mHandler.obtainMessage(Constants.MESSAGE_KNOWN_PEERS, peers).sendToTarget();
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mNearByService = null;
+        }
+    };
+
+    private final Runnable mExpireNearBy = new Runnable() {
+        @Override
+        public void run() {
+            nearBy.expire(System.currentTimeMillis());
+            mHandler.postDelayed(this, PeerTable.DEFAULT_TICK_MILLIS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -193,15 +246,29 @@ public class DashboardActivity extends AppCompatActivity
                 new IntentFilter(BluetoothDevice.ACTION_FOUND));
         registerReceiver(mBluetoothReceiver,
                 new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
+        mHandler.postDelayed(mExpireNearBy, PeerTable.DEFAULT_TICK_MILLIS);
+
+        // started as well as bound, so it keeps running while we are away
+        startService(new Intent(this, NearByService.class));
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        if (mBluetoothAdapter.isEnabled()) {
-            if(mChatService == null) {
-                setupChat();
-            }
+        mBound = bindService(new Intent(this, NearByService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (mNearByService != null) {
+            mNearByService.detach(mServiceListener);
+            mNearByService = null;
+        }
+        if (mBound) {
+            unbindService(mServiceConnection);
+            mBound = false;
         }
     }
 
@@ -222,9 +289,7 @@ public class DashboardActivity extends AppCompatActivity
                 if(resultCode == RESULT_CANCELED) {
                     alert("Turnning off \"Discovery\" other users will not be able to find you!");
                 }
-                if(!mBluetoothAdapter.isDiscovering()) {
-                    mBluetoothAdapter.startDiscovery();
-                }
+                scanNow();
         }
     }
 
@@ -237,19 +302,19 @@ public class DashboardActivity extends AppCompatActivity
                 Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
                 discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, 0);
                 startActivityForResult(discoverableIntent, REQUEST_BT_DEVICE_DISCOVERY);
-
-            } else if(!mBluetoothAdapter.isDiscovering()) {
-                mBluetoothAdapter.startDiscovery();
             }
+            // inquiries are paced by the DiscoveryScheduler of the chat service
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mExpireNearBy);
 
-        if (mChatService != null) {
-            mChatService.stop();
+        if (isFinishing()) {
+            // left for good, not just recreated
+            stopService(new Intent(this, NearByService.class));
         }
         // Unregister broadcast listeners
         unregisterReceiver(mBluetoothReceiver);
@@ -366,18 +431,6 @@ public class DashboardActivity extends AppCompatActivity
         }
     }
 
-    /**
-     * Set up the UI and background operations for chat.
-     */
-    private void setupChat() {
-        // Initialize the BluetoothConnectionService to perform bluetooth connections
-        if(mChatService != null) {
-            mChatService.stop();
-        }
-        mChatService = new BluetoothConnectionService(this, mHandler);
-        mChatService.start();
-    }
-
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -448,7 +501,7 @@ public class DashboardActivity extends AppCompatActivity
                     discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, 0);
                     startActivityForResult(discoverableIntent, REQUEST_BT_DEVICE_DISCOVERY);
                 } else {
-                    mBluetoothAdapter.startDiscovery();
+                    scanNow();
                 }
                 break;
         }
@@ -456,16 +509,40 @@ public class DashboardActivity extends AppCompatActivity
 
     @Override
     public void onUserSelected(User user) {
-        showWaitingDialog();
         Device device = nearBy.get(user.deviceAddress);
-        mChatService.fetch(device.bluetoothDevice);
+        if (device == null) {
+            // gone meanwhile
+            return;
+        }
+        if (device.profile != null && device.profileComplete) {
+            // profile came along with discovery, no need to connect again
+            showUserProfile(device.profile);
+            return;
+        }
+        BluetoothConnectionService chatService =
+                mNearByService != null ? mNearByService.getConnectionService() : null;
+        if (chatService == null) {
+            // not bound yet, or Bluetooth off
+            return;
+        }
+        showWaitingDialog();
+        chatService.fetch(device.address);
+    }
+
+    private void showUserProfile(User user) {
+        startActivityForResult(new Intent(DashboardActivity.this, LoginActivity.class)
+                        .putExtra(LoginActivity.KEY_INTENT_ACTIVITY_PROFILE, user),
+                REQUEST_SHOW_USER_PROFILE);
     }
 
     /**
-     * Establish connection with other divice
+     * Start an inquiry as soon as no connect is in progress.
      */
-    private void connectDevice(String address) {
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        mChatService.connect(device);
+    private void scanNow() {
+        DiscoveryScheduler scheduler =
+                mNearByService != null ? mNearByService.getDiscoveryScheduler() : null;
+        if (scheduler != null) {
+            scheduler.requestScan();
+        }
     }
 }
@@ -1,17 +1,21 @@
 package com.krp.social.nearby;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-
 /**
  * Created by Kumar Purushottam on 28-12-2015.
  */
 public class Device {
-    BluetoothSocket bluetoothSocket;
-    BluetoothDevice bluetoothDevice;
+    String address;
+    String name;
+
+    // Profile received on the discovery connection, null if the peer did not send one
+    User profile;
+    // false if profile is only a summary and the full one still needs a fetch
+    boolean profileComplete;
+    // digest of the peer's full profile, 0 if the peer did not send one
+    long profileDigest;
 
-    public Device(BluetoothSocket bluetoothSocket, BluetoothDevice bluetoothDevice) {
-        this.bluetoothSocket = bluetoothSocket;
-        this.bluetoothDevice = bluetoothDevice;
+    public Device(String address, String name) {
+        this.address = address;
+        this.name = name;
     }
 }
@@ -0,0 +1,222 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the outcome of presence probes per device, so a device reported again by an
+ * inquiry is not probed again right away.
+ *
+ * A device found to run the app is not probed again until the positive TTL ran out; a
+ * device confirmed not to offer our service, because its service records lack it (a
+ * headset, a car, a laptop), is left alone for the much longer negative TTL. While a
+ * probe to a device is in flight, more requests to probe it are merged into that one.
+ *
+ * Probes which failed to connect, early or at the deadline, say nothing sure about the
+ * device and are not cached; the {@link RetryPolicy} takes care of those.
+ */
+public class DiscoveryCache {
+    public static final long DEFAULT_POSITIVE_TTL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10 * 60 * 1000;
+
+    // Outcomes of a probe
+    public static final int RESULT_UNKNOWN = 0;
+    public static final int RESULT_APP = 1;
+    public static final int RESULT_NOT_APP = 2;
+
+    private static class DeviceState {
+        int result = RESULT_UNKNOWN;
+        long expiresAt;
+        boolean inFlight;
+        long probeStartedAt;
+    }
+
+    private final LruMap<String, DeviceState> mDevices = new LruMap<String, DeviceState>() {
+        @Override
+        protected boolean isEvictable(DeviceState state) {
+            // a probe in flight must find its entry when it ends
+            return !state.inFlight;
+        }
+    };
+    private long mPositiveTtlMillis = DEFAULT_POSITIVE_TTL_MILLIS;
+    private long mNegativeTtlMillis = DEFAULT_NEGATIVE_TTL_MILLIS;
+
+    private final AtomicLong mProbes = new AtomicLong();
+    private final AtomicLong mMerged = new AtomicLong();
+    private final AtomicLong mPositiveHits = new AtomicLong();
+    private final AtomicLong mNegativeHits = new AtomicLong();
+    private final AtomicLong mWastedMillis = new AtomicLong();
+
+    /**
+     * @param positiveMillis how long a device running the app is not probed again
+     * @param negativeMillis how long a device without our service is not probed again
+     */
+    public synchronized void setTtls(long positiveMillis, long negativeMillis) {
+        if (positiveMillis < 0 || negativeMillis < 0) {
+            throw new IllegalArgumentException("TTLs must not be negative");
+        }
+        mPositiveTtlMillis = positiveMillis;
+        mNegativeTtlMillis = negativeMillis;
+    }
+
+    /**
+     * Ask to probe a device. If this returns true, the caller must report the outcome
+     * with {@link #endProbe}.
+     *
+     * @return false if the device is being probed already, or its last outcome is fresh
+     */
+    public boolean beginProbe(String address) {
+        return beginProbe(address, System.currentTimeMillis());
+    }
+
+    synchronized boolean beginProbe(String address, long now) {
+        DeviceState entry = mDevices.get(address);
+        if (entry == null) {
+            entry = new DeviceState();
+            mDevices.put(address, entry);
+        }
+        if (entry.inFlight) {
+            mMerged.incrementAndGet();
+            return false;
+        }
+        if (now < entry.expiresAt) {
+            if (entry.result == RESULT_APP) {
+                mPositiveHits.incrementAndGet();
+            } else {
+                mNegativeHits.incrementAndGet();
+            }
+            return false;
+        }
+        entry.inFlight = true;
+        entry.probeStartedAt = now;
+        return true;
+    }
+
+    /**
+     * Report the outcome of a probe started with {@link #beginProbe}.
+     *
+     * @param result one of the RESULT_ constants
+     */
+    public void endProbe(String address, int result) {
+        endProbe(address, result, System.currentTimeMillis());
+    }
+
+    synchronized void endProbe(String address, int result, long now) {
+        DeviceState entry = mDevices.get(address);
+        if (entry == null || !entry.inFlight) {
+            return;
+        }
+        entry.inFlight = false;
+        mProbes.incrementAndGet();
+        if (result != RESULT_APP) {
+            mWastedMillis.addAndGet(Math.max(0, now - entry.probeStartedAt));
+        }
+        store(entry, result, now);
+    }
+
+    /**
+     * Give up a probe started with {@link #beginProbe} before it connected, leaving the
+     * last outcome in place.
+     */
+    public synchronized void cancelProbe(String address) {
+        DeviceState entry = mDevices.get(address);
+        if (entry != null) {
+            entry.inFlight = false;
+        }
+    }
+
+    /**
+     * Note a device found to run the app some other way, say because it probed us.
+     */
+    public void markApp(String address) {
+        markApp(address, System.currentTimeMillis());
+    }
+
+    synchronized void markApp(String address, long now) {
+        DeviceState entry = mDevices.get(address);
+        if (entry == null) {
+            entry = new DeviceState();
+            mDevices.put(address, entry);
+        }
+        store(entry, RESULT_APP, now);
+    }
+
+    /**
+     * Forget the outcome for a device, so the next request probes it.
+     */
+    public synchronized void invalidate(String address) {
+        DeviceState entry = mDevices.get(address);
+        if (entry != null) {
+            entry.result = RESULT_UNKNOWN;
+            entry.expiresAt = 0;
+        }
+    }
+
+    /**
+     * @return the cached outcome for a device, RESULT_UNKNOWN if there is none or it
+     * expired
+     */
+    public int getResult(String address) {
+        return getResult(address, System.currentTimeMillis());
+    }
+
+    synchronized int getResult(String address, long now) {
+        DeviceState entry = mDevices.get(address);
+        return entry == null || now >= entry.expiresAt ? RESULT_UNKNOWN : entry.result;
+    }
+
+    /**
+     * @return probes which ran to an outcome
+     */
+    public long getProbeCount() {
+        return mProbes.get();
+    }
+
+    /**
+     * @return probe requests merged into one already in flight
+     */
+    public long getMergedCount() {
+        return mMerged.get();
+    }
+
+    public long getPositiveHitCount() {
+        return mPositiveHits.get();
+    }
+
+    /**
+     * @return probe requests skipped because the device does not offer our service
+     */
+    public long getNegativeHitCount() {
+        return mNegativeHits.get();
+    }
+
+    /**
+     * @return time spent in probes which did not find the app
+     */
+    public long getWastedMillis() {
+        return mWastedMillis.get();
+    }
+
+    // callers hold the lock
+    private void store(DeviceState entry, int result, long now) {
+        entry.result = result;
+        if (result == RESULT_APP) {
+            entry.expiresAt = now + mPositiveTtlMillis;
+        } else if (result == RESULT_NOT_APP) {
+            entry.expiresAt = now + mNegativeTtlMillis;
+        } else {
+            entry.expiresAt = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiscoveryCache{" +
+                "devices=" + mDevices.size() +
+                ", probes=" + getProbeCount() +
+                ", merged=" + getMergedCount() +
+                ", positiveHits=" + getPositiveHitCount() +
+                ", negativeHits=" + getNegativeHitCount() +
+                ", wastedMillis=" + getWastedMillis() +
+                '}';
+    }
+}
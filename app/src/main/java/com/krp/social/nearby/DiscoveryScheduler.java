@@ -0,0 +1,391 @@
+package com.krp.social.nearby;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the inquiries of the radio. The pause between two inquiries follows the churn
+ * of peers: as long as inquiries turn up devices the previous one did not see, the
+ * next one starts after the shortest pause; each inquiry finding the same devices
+ * doubles the pause, up to the longest.
+ *
+ * An inquiry slows down RFCOMM connects, so none is started while connects are in
+ * progress; it waits for them, though not for longer than a pause. A connect the user
+ * waits for may also {@link #hold()} the radio, cutting a running inquiry short; the
+ * inquiry is run again once the radio is released.
+ */
+public class DiscoveryScheduler {
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 10 * 1000;
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    // How often an inquiry held back by connects checks again
+    private static final long CONNECT_POLL_MILLIS = 500;
+    // An inquiry lasts about 12 s; one not reported finished by then is taken as lost
+    private static final long MAX_INQUIRY_MILLIS = 30 * 1000;
+
+    /**
+     * The inquiry of the radio.
+     */
+    public interface Inquiry {
+        /**
+         * @return false if the inquiry could not be started, say with the radio off
+         */
+        boolean start();
+
+        boolean isRunning();
+
+        /**
+         * Cut the running inquiry short; its end is reported as for any other.
+         *
+         * @return false if no inquiry could be cancelled
+         */
+        boolean cancel();
+    }
+
+    private final Inquiry mInquiry;
+    private final ConnectWatchdog mConnects;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    // all state below is guarded by this
+    private long mMinIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private long mMaxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+    private long mIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private boolean mRunning;
+    private ScheduledFuture<?> mNext;
+    // devices seen by the last finished inquiry, and by the current one
+    private Set<String> mLastSeen = new HashSet<String>();
+    private Set<String> mSeen = new HashSet<String>();
+    private boolean mScanning;
+    private long mScanStartedAt;
+    private long mIdleStartedAt;
+    // when an inquiry held back by connects gives up waiting
+    private long mWaitUntil;
+    // connects holding the radio
+    private int mHolds;
+    // the current inquiry was cancelled for a hold, and is to be run again
+    private boolean mCutShort;
+    private boolean mResumePending;
+
+    private long mScanMillis;
+    private long mIdleMillis;
+    private long mInquiries;
+    private long mDeferred;
+    private long mNewPeers;
+    private long mCutShortCount;
+
+    /**
+     * @param inquiry  The inquiry to run
+     * @param connects Watchdog of the outgoing connects, none of which an inquiry may
+     *                 slow down
+     */
+    public DiscoveryScheduler(Inquiry inquiry, ConnectWatchdog connects) {
+        mInquiry = inquiry;
+        mConnects = connects;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NearByDiscoveryScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the shortest and the longest pause between two inquiries.
+     */
+    public synchronized void setIntervals(long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Bad intervals " + minMillis + ", " + maxMillis);
+        }
+        mMinIntervalMillis = minMillis;
+        mMaxIntervalMillis = maxMillis;
+        mIntervalMillis = Math.max(minMillis, Math.min(mIntervalMillis, maxMillis));
+    }
+
+    /**
+     * Start the first inquiry right away, then keep pacing them.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mIdleStartedAt = System.currentTimeMillis();
+        mIntervalMillis = mMinIntervalMillis;
+        schedule(0);
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        if (mNext != null) {
+            mNext.cancel(false);
+            mNext = null;
+        }
+        long now = System.currentTimeMillis();
+        if (!mScanning) {
+            mIdleMillis += now - mIdleStartedAt;
+        }
+    }
+
+    /**
+     * Scan as soon as the connects allow, say because the user asked for it. The pause
+     * starts over from the shortest.
+     */
+    public synchronized void requestScan() {
+        if (!mRunning) {
+            start();
+            return;
+        }
+        mIntervalMillis = mMinIntervalMillis;
+        if (!mScanning) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Note an inquiry started, by this scheduler or anyone else.
+     */
+    public synchronized void onInquiryStarted() {
+        if (mScanning) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        mScanning = true;
+        mScanStartedAt = now;
+        if (mRunning) {
+            mIdleMillis += now - mIdleStartedAt;
+            // nothing to schedule until it finishes, but do not wait forever for that
+            schedule(MAX_INQUIRY_MILLIS);
+        }
+    }
+
+    /**
+     * Keep the radio for a connect the user waits for: a running inquiry is cancelled,
+     * and none starts until {@link #release()}, though not for longer than a pause.
+     */
+    public synchronized void hold() {
+        mHolds++;
+        if (mScanning && !mCutShort && mInquiry.cancel()) {
+            mCutShort = true;
+            mCutShortCount++;
+        }
+    }
+
+    /**
+     * Give the radio back after {@link #hold()}; an inquiry cut short runs again as
+     * soon as the connects allow.
+     */
+    public synchronized void release() {
+        if (mHolds == 0) {
+            return;
+        }
+        mHolds--;
+        if (mHolds == 0 && mResumePending) {
+            mResumePending = false;
+            if (mRunning && !mScanning) {
+                schedule(0);
+            }
+        }
+    }
+
+    /**
+     * @return true while an inquiry is running
+     */
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Note a device found by the current inquiry.
+     */
+    public synchronized void onPeerFound(String address) {
+        mSeen.add(address);
+    }
+
+    /**
+     * Note the current inquiry finished, and schedule the next one after a pause
+     * following the churn it saw.
+     */
+    public synchronized void onInquiryFinished() {
+        if (!mScanning) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        mScanning = false;
+        mScanMillis += now - mScanStartedAt;
+        mIdleStartedAt = now;
+
+        if (mCutShort) {
+            // half an inquiry says nothing about churn; the devices it saw count
+            // towards the one run in its place
+            mCutShort = false;
+            if (mHolds > 0) {
+                mResumePending = true;
+            } else if (mRunning) {
+                schedule(0);
+            }
+            return;
+        }
+
+        int arrived = 0;
+        for (String address : mSeen) {
+            if (!mLastSeen.contains(address)) {
+                arrived++;
+            }
+        }
+        mNewPeers += arrived;
+        if (arrived > 0) {
+            mIntervalMillis = mMinIntervalMillis;
+        } else if (mSeen.equals(mLastSeen)) {
+            mIntervalMillis = Math.min(mIntervalMillis * 2, mMaxIntervalMillis);
+        }
+        // peers only leaving keep the pace as it is
+        Set<String> last = mLastSeen;
+        mLastSeen = mSeen;
+        mSeen = last;
+        mSeen.clear();
+
+        if (mRunning) {
+            schedule(mIntervalMillis);
+        }
+    }
+
+    /**
+     * @return the pause before the next inquiry
+     */
+    public synchronized long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * @return time spent in inquiries
+     */
+    public synchronized long getScanMillis() {
+        return mScanMillis + (mScanning ? System.currentTimeMillis() - mScanStartedAt : 0);
+    }
+
+    /**
+     * @return time spent between inquiries while the scheduler ran
+     */
+    public synchronized long getIdleMillis() {
+        return mIdleMillis + (mRunning && !mScanning
+                ? System.currentTimeMillis() - mIdleStartedAt : 0);
+    }
+
+    /**
+     * @return the share of time the radio spent in inquiries, 0 to 1
+     */
+    public synchronized double getDutyCycle() {
+        long scan = getScanMillis();
+        long total = scan + getIdleMillis();
+        return total == 0 ? 0 : (double) scan / total;
+    }
+
+    /**
+     * @return inquiries started by the scheduler
+     */
+    public synchronized long getInquiryCount() {
+        return mInquiries;
+    }
+
+    /**
+     * @return times an inquiry was held back by connects in progress
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferred;
+    }
+
+    /**
+     * @return inquiries cancelled to keep the radio for a connect
+     */
+    public synchronized long getCutShortCount() {
+        return mCutShortCount;
+    }
+
+    /**
+     * @return devices which an inquiry saw and the one before it did not
+     */
+    public synchronized long getNewPeerCount() {
+        return mNewPeers;
+    }
+
+    // callers hold the lock
+    private void schedule(long delayMillis) {
+        if (mNext != null) {
+            mNext.cancel(false);
+        }
+        mWaitUntil = 0;
+        try {
+            mNext = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mNext = null;
+        }
+    }
+
+    private synchronized void tick() {
+        mNext = null;
+        if (!mRunning) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (mScanning) {
+            if (!mInquiry.isRunning()) {
+                // the end of the inquiry was never reported
+                onInquiryFinished();
+            } else {
+                schedule(MAX_INQUIRY_MILLIS);
+            }
+            return;
+        }
+
+        if (mHolds > 0 || mConnects.getPendingCount() > 0) {
+            if (mWaitUntil == 0) {
+                mDeferred++;
+                mWaitUntil = now + mIntervalMillis;
+            }
+            if (now < mWaitUntil) {
+                long waitUntil = mWaitUntil;
+                schedule(CONNECT_POLL_MILLIS);
+                mWaitUntil = waitUntil;
+                return;
+            }
+        }
+
+        if (mInquiry.start()) {
+            mInquiries++;
+            onInquiryStarted();
+        } else {
+            // radio off, try again later
+            schedule(mIntervalMillis);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiscoveryScheduler{" +
+                "intervalMillis=" + mIntervalMillis +
+                ", inquiries=" + mInquiries +
+                ", deferred=" + mDeferred +
+                ", cutShort=" + mCutShortCount +
+                ", newPeers=" + mNewPeers +
+                ", scanMillis=" + getScanMillis() +
+                ", idleMillis=" + getIdleMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,88 @@
+package com.krp.social.nearby;
+
+/**
+ * A single message of the wire protocol spoken between two devices.
+ *
+ * Every frame starts with a fixed size header followed by the payload:
+ * <pre>
+ *   +-------+------+----------------+-----------------+
+ *   | magic | type | length (4, BE) | payload         |
+ *   +-------+------+----------------+-----------------+
+ * </pre>
+ * The magic byte lets a reader reject a peer which does not speak the protocol.
+ */
+public class Frame {
+    public static final int MAGIC = 0x4E;
+    public static final int HEADER_SIZE = 6;
+
+    // Upper bound on a payload, anything bigger is treated as a corrupt stream
+    public static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    // Frame types
+    public static final int TYPE_PROFILE = 1;
+    public static final int TYPE_DISCONNECT = 2;
+    // Sent first by a prober which wants to swap profiles on the discovery connection
+    public static final int TYPE_HELLO = 3;
+    // A profile cut down to fit a discovery connection, the interests are left out
+    public static final int TYPE_PROFILE_SUMMARY = 4;
+    // Asks for the profile again on a kept-alive fetch session
+    public static final int TYPE_FETCH = 5;
+    // Health check of an idle session, answered with PONG
+    public static final int TYPE_PING = 6;
+    public static final int TYPE_PONG = 7;
+    // Multiplexer frames, the payload starts with the 4 byte id of the stream
+    public static final int TYPE_MUX_OPEN = 8;
+    public static final int TYPE_MUX_DATA = 9;
+    public static final int TYPE_MUX_CREDIT = 10;
+    public static final int TYPE_MUX_CLOSE = 11;
+    // Answers DISCONNECT once everything sent before it has been read
+    public static final int TYPE_DISCONNECT_ACK = 12;
+    // Chunked transfer of large payloads, see BlobTransfer
+    public static final int TYPE_BLOB_REQUEST = 13;
+    public static final int TYPE_BLOB_CHUNK = 14;
+    public static final int TYPE_BLOB_END = 15;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    int type;
+    byte[] payload;
+    // bytes of the payload in use, the array may be bigger when it is pooled
+    int length;
+
+    public Frame(int type, byte[] payload) {
+        this(type, payload, payload == null ? 0 : payload.length);
+    }
+
+    public Frame(int type, byte[] payload, int length) {
+        set(type, payload, length);
+    }
+
+    /**
+     * Reuse the frame for another message.
+     */
+    void set(int type, byte[] payload, int length) {
+        this.type = type;
+        this.payload = payload == null ? EMPTY : payload;
+        this.length = length;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" +
+                "type=" + type +
+                ", length=" + length +
+                '}';
+    }
+}
@@ -0,0 +1,178 @@
+package com.krp.social.nearby;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for {@link Frame}s.
+ *
+ * Bytes may arrive in pieces of any size: a header split across reads, or a payload many
+ * times bigger than one read. The payload array is allocated once the header is known and
+ * the bytes are copied straight into it, so each byte is copied exactly once.
+ *
+ * A decoder made with a {@link BufferPool} allocates nothing per frame instead: it
+ * reads every payload into the same pooled buffer and hands out the same Frame object,
+ * which are only valid until the next frame is read. Its owner gives the buffer back
+ * with {@link #release()}.
+ *
+ * A decoder keeps state between calls and must only be used by one thread.
+ */
+public class FrameDecoder {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] mHeader = new byte[Frame.HEADER_SIZE];
+    private final BufferPool mPool;
+    private final Frame mFrame;
+    private byte[] mBuffer;
+    private int mHeaderRead;
+    private int mType;
+    private byte[] mPayload;
+    private int mLength;
+    private int mPayloadRead;
+
+    /**
+     * A decoder handing out frames which the caller may keep.
+     */
+    public FrameDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param pool Pool of the payload buffer, null to allocate a payload per frame
+     */
+    public FrameDecoder(BufferPool pool) {
+        mPool = pool;
+        mFrame = pool == null ? null : new Frame(0, null);
+    }
+
+    /**
+     * Feed received bytes to the decoder. Decoding stops at the end of a frame, so
+     * the caller should check {@link #hasFrame()} and feed the remaining bytes again.
+     *
+     * @return number of bytes consumed from the buffer
+     * @throws IOException if the bytes do not form a valid frame header
+     */
+    public int feed(byte[] buffer, int offset, int length) throws IOException {
+        int consumed = 0;
+        if (mPayload == null) {
+            int n = Math.min(length, Frame.HEADER_SIZE - mHeaderRead);
+            System.arraycopy(buffer, offset, mHeader, mHeaderRead, n);
+            mHeaderRead += n;
+            consumed = n;
+            if (mHeaderRead < Frame.HEADER_SIZE) {
+                return consumed;
+            }
+            parseHeader();
+        }
+        int n = Math.min(length - consumed, mLength - mPayloadRead);
+        System.arraycopy(buffer, offset + consumed, mPayload, mPayloadRead, n);
+        mPayloadRead += n;
+        return consumed + n;
+    }
+
+    /**
+     * @return true if a complete frame is ready to be taken with {@link #takeFrame()}
+     */
+    public boolean hasFrame() {
+        return mPayload != null && mPayloadRead == mLength;
+    }
+
+    /**
+     * @return the completed frame, or null if it is not complete yet
+     */
+    public Frame takeFrame() {
+        if (!hasFrame()) {
+            return null;
+        }
+        Frame frame;
+        if (mFrame != null) {
+            frame = mFrame;
+            frame.set(mType, mPayload, mLength);
+        } else {
+            frame = new Frame(mType, mPayload, mLength);
+        }
+        reset();
+        return frame;
+    }
+
+    /**
+     * Block until a complete frame has been read from the stream. Bytes are read
+     * straight into the header and payload, without an intermediate buffer.
+     *
+     * @return the frame, or null if the stream ended cleanly between two frames
+     * @throws EOFException if the stream ended in the middle of a frame
+     */
+    public Frame readFrame(InputStream in) throws IOException {
+        while (mHeaderRead < Frame.HEADER_SIZE) {
+            int n = in.read(mHeader, mHeaderRead, Frame.HEADER_SIZE - mHeaderRead);
+            if (n == -1) {
+                if (mHeaderRead == 0) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside a frame header");
+            }
+            mHeaderRead += n;
+        }
+        if (mPayload == null) {
+            parseHeader();
+        }
+        while (mPayloadRead < mLength) {
+            int n = in.read(mPayload, mPayloadRead, mLength - mPayloadRead);
+            if (n == -1) {
+                throw new EOFException("Stream ended inside a frame payload");
+            }
+            mPayloadRead += n;
+        }
+        return takeFrame();
+    }
+
+    /**
+     * Drop any partially decoded frame.
+     */
+    public void reset() {
+        mHeaderRead = 0;
+        mType = 0;
+        mPayload = null;
+        mLength = 0;
+        mPayloadRead = 0;
+    }
+
+    /**
+     * Give the pooled payload buffer back. The last frame read must not be used any more.
+     */
+    public void release() {
+        reset();
+        if (mPool != null) {
+            mPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    private void parseHeader() throws IOException {
+        if ((mHeader[0] & 0xff) != Frame.MAGIC) {
+            throw new IOException("Bad frame magic " + (mHeader[0] & 0xff));
+        }
+        int length = ((mHeader[2] & 0xff) << 24)
+                | ((mHeader[3] & 0xff) << 16)
+                | ((mHeader[4] & 0xff) << 8)
+                | (mHeader[5] & 0xff);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Bad frame length " + length);
+        }
+        mType = mHeader[1] & 0xff;
+        mLength = length;
+        mPayloadRead = 0;
+        if (length == 0) {
+            mPayload = EMPTY;
+        } else if (mPool == null) {
+            mPayload = new byte[length];
+        } else {
+            if (mBuffer == null || mBuffer.length < length) {
+                mPool.release(mBuffer);
+                mBuffer = mPool.get(length);
+            }
+            mPayload = mBuffer;
+        }
+    }
+}
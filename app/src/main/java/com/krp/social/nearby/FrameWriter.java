@@ -0,0 +1,49 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link Frame}s to an OutputStream.
+ *
+ * Small frames are assembled in a reusable buffer and go out in a single write, so the
+ * header and payload share one RFCOMM packet. Bigger payloads are written in place
+ * after the header. A writer must only be used by one thread.
+ */
+public class FrameWriter {
+    private static final int BUFFER_SIZE = 1024;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    public FrameWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    public void write(int type, byte[] payload) throws IOException {
+        write(type, payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    public void write(int type, byte[] payload, int offset, int length) throws IOException {
+        if (length > Frame.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Frame payload too large: " + length);
+        }
+        mBuffer[0] = (byte) Frame.MAGIC;
+        mBuffer[1] = (byte) type;
+        mBuffer[2] = (byte) (length >>> 24);
+        mBuffer[3] = (byte) (length >>> 16);
+        mBuffer[4] = (byte) (length >>> 8);
+        mBuffer[5] = (byte) length;
+
+        if (Frame.HEADER_SIZE + length <= mBuffer.length) {
+            if (length > 0) {
+                System.arraycopy(payload, offset, mBuffer, Frame.HEADER_SIZE, length);
+            }
+            mOut.write(mBuffer, 0, Frame.HEADER_SIZE + length);
+        } else {
+            mOut.write(mBuffer, 0, Frame.HEADER_SIZE);
+            mOut.write(payload, offset, length);
+        }
+        mOut.flush();
+    }
+}
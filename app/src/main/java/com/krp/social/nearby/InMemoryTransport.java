@@ -0,0 +1,287 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@link Transport} connecting endpoints of the same process through in-memory pipes.
+ * Every endpoint sharing a {@link Network} can reach the others by address.
+ */
+public class InMemoryTransport implements Transport {
+    private static final int PIPE_CAPACITY = 8 * 1024;
+
+    private final Network mNetwork;
+    private final String mAddress;
+    private final String mName;
+
+    /**
+     * @param network The network shared by all endpoints able to reach each other
+     * @param address Address of this endpoint
+     * @param name    Friendly name of this endpoint
+     */
+    public InMemoryTransport(Network network, String address, String name) {
+        mNetwork = network;
+        mAddress = address;
+        mName = name;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID service) throws IOException {
+        String key = Network.key(mAddress, service);
+        InMemoryServerChannel serverChannel = new InMemoryServerChannel(key);
+        if (mNetwork.mListeners.putIfAbsent(key, serverChannel) != null) {
+            throw new IOException("Service " + service + " already listening on " + mAddress);
+        }
+        return serverChannel;
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID service) {
+        return new InMemoryChannel(address, Network.key(address, service));
+    }
+
+    /**
+     * The set of endpoints able to reach each other.
+     */
+    public static class Network {
+        private final ConcurrentMap<String, InMemoryServerChannel> mListeners =
+                new ConcurrentHashMap<>();
+
+        private static String key(String address, UUID service) {
+            return address + '/' + service;
+        }
+    }
+
+    private class InMemoryServerChannel implements ServerChannel {
+        private final String mKey;
+        private final LinkedBlockingQueue<InMemoryChannel> mPending = new LinkedBlockingQueue<>();
+        private volatile boolean mClosed;
+
+        InMemoryServerChannel(String key) {
+            mKey = key;
+        }
+
+        void offer(InMemoryChannel channel) throws IOException {
+            if (mClosed) {
+                throw new IOException("Connection refused");
+            }
+            mPending.add(channel);
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            InMemoryChannel channel;
+            try {
+                channel = mPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mClosed) {
+                throw new IOException("Server channel closed");
+            }
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mNetwork.mListeners.remove(mKey, this);
+                // wake up a blocked accept()
+                mPending.add(new InMemoryChannel(null, null));
+            }
+        }
+    }
+
+    private class InMemoryChannel implements Channel {
+        private final String mRemoteAddress;
+        private final String mKey;
+        private String mRemoteName;
+        private Pipe mIn;
+        private Pipe mOut;
+        private volatile boolean mClosed;
+
+        InMemoryChannel(String remoteAddress, String key) {
+            mRemoteAddress = remoteAddress;
+            mKey = key;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mClosed) {
+                throw new IOException("Channel closed");
+            }
+            InMemoryServerChannel server = mNetwork.mListeners.get(mKey);
+            if (server == null) {
+                throw new IOException("Connection refused: " + mKey);
+            }
+            InMemoryChannel peer = new InMemoryChannel(mAddress, null);
+            peer.mRemoteName = mName;
+            peer.mIn = new Pipe();
+            peer.mOut = new Pipe();
+            mIn = peer.mOut;
+            mOut = peer.mIn;
+            server.offer(peer);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            checkConnected();
+            return mIn.mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            checkConnected();
+            return mOut.mOutput;
+        }
+
+        private void checkConnected() throws IOException {
+            if (mIn == null) {
+                throw new IOException("Channel not connected");
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteName;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            if (mIn != null) {
+                mIn.closeReader();
+                mOut.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * A bounded single-producer single-consumer byte pipe. Closing the writer lets the
+     * reader drain what is left and then see end of stream; closing the reader fails
+     * both sides right away.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer = new byte[PIPE_CAPACITY];
+        private int mReadPos;
+        private int mCount;
+        private boolean mWriterClosed;
+        private boolean mReaderClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCount == 0) {
+                if (mReaderClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mWriterClosed) {
+                    return -1;
+                }
+                await();
+            }
+            if (mReaderClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mReadPos);
+            System.arraycopy(mBuffer, mReadPos, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mReadPos = (mReadPos + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mReaderClosed && !mWriterClosed) {
+                    await();
+                }
+                if (mReaderClosed || mWriterClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeWriter() {
+            mWriterClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeReader() {
+            mReaderClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in power of two millisecond buckets: under 1 ms, 1 ms, 2-3 ms,
+ * 4-7 ms and so on up to 32 s and more. Recording is lock free and cheap enough for
+ * every fetch.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 17;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalMicros = new AtomicLong();
+
+    /**
+     * Record a latency measured with {@link System#nanoTime()}.
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mCounts.incrementAndGet(bucket(micros / 1000));
+        mCount.incrementAndGet();
+        mTotalMicros.addAndGet(micros);
+    }
+
+    public void recordMillis(long millis) {
+        recordNanos(millis * 1000 * 1000);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public double getMeanMillis() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalMicros.get() / 1000d / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in milliseconds of the bucket holding the percentile,
+     * or 0 if nothing was recorded
+     */
+    public long getPercentileMillis(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return number of latencies recorded in each bucket; bucket 0 is under 1 ms and
+     * bucket i holds 2^(i-1) up to 2^i ms
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalMicros.set(0);
+    }
+
+    private static int bucket(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + getCount() +
+                ", meanMillis=" + String.format("%.2f", getMeanMillis()) +
+                ", p50=" + getPercentileMillis(50) +
+                ", p90=" + getPercentileMillis(90) +
+                ", p99=" + getPercentileMillis(99) +
+                '}';
+    }
+}
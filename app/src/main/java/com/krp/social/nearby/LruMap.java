@@ -0,0 +1,39 @@
+package com.krp.social.nearby;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map of at most a fixed number of entries; past that the least recently used entry
+ * is forgotten. The per-device tables use it so they stay bounded however many devices
+ * come by.
+ */
+class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    // Devices a table remembers by default
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final int mMaxEntries;
+
+    LruMap() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    LruMap(int maxEntries) {
+        super(16, 0.75f, true);
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * @return false to keep the least recently used entry past the limit for now
+     */
+    protected boolean isEvictable(V value) {
+        return true;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > mMaxEntries && isEvictable(eldest.getValue());
+    }
+}
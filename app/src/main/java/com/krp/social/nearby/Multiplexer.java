@@ -0,0 +1,659 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Runs several logical {@link Channel}s, called streams, over one physical Channel to
+ * a peer.
+ *
+ * Every multiplexer frame starts with the id of its stream. A stream may only send as
+ * many bytes as the peer granted it in CREDIT frames, so a stream whose reader falls
+ * behind stalls itself and not the whole link. Outbound data goes out one chunk per
+ * stream in turn; control frames go ahead of any data.
+ *
+ * The side which connected the link numbers its streams odd and the accepting side
+ * even, so both can open streams at the same time. A link without streams is closed
+ * after the linger time.
+ */
+public class Multiplexer {
+    // Bytes a stream may have in flight before the peer grants more
+    public static final int INITIAL_WINDOW = 16 * 1024;
+    public static final long DEFAULT_LINGER_MILLIS = 10 * 1000;
+
+    // Data per frame, so that a frame goes out in a single FrameWriter write
+    private static final int MAX_CHUNK = 1024 - Frame.HEADER_SIZE - 4;
+    // Sent frames kept for reuse
+    private static final int MAX_FREE_FRAMES = 32;
+
+    /**
+     * Receives the streams opened by the peer. Called on the link's reader thread.
+     */
+    public interface Listener {
+
+        /**
+         * @return false to refuse the stream, the peer's connect() then fails
+         */
+        boolean onStreamOpened(Multiplexer mux, UUID service, Channel stream);
+
+        void onLinkClosed(Multiplexer mux);
+    }
+
+    private final Channel mLink;
+    private final Listener mListener;
+    private final InputStream mIn;
+    private final FrameWriter mWriter;
+    private final String mRemoteAddress;
+    private final String mRemoteName;
+    private volatile long mLingerMillis = DEFAULT_LINGER_MILLIS;
+
+    // all state below is guarded by this
+    private final Map<Integer, Stream> mStreams = new HashMap<>();
+    private final ArrayDeque<Frame> mControl = new ArrayDeque<>();
+    // streams with data pending, served round robin
+    private final ArrayDeque<Stream> mReady = new ArrayDeque<>();
+    // frames whose payload went out, ready to carry the next one
+    private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<>();
+    // the stream of the last frame received, looked up without boxing its id
+    private Stream mLastStream;
+    private int mNextId;
+    private long mIdleSince;
+    private boolean mClosed;
+
+    /**
+     * @param link      A connected channel to the peer
+     * @param initiator true on the side which connected the link
+     * @param listener  Receives the streams opened by the peer
+     */
+    public Multiplexer(Channel link, boolean initiator, Listener listener) throws IOException {
+        mLink = link;
+        mListener = listener;
+        mIn = link.getInputStream();
+        mWriter = new FrameWriter(link.getOutputStream());
+        mRemoteAddress = link.getRemoteAddress();
+        mRemoteName = link.getRemoteName();
+        mNextId = initiator ? 1 : 2;
+        mIdleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Start the reader and writer threads of the link.
+     */
+    public void start() {
+        Thread reader = new Thread("NearByMuxReader") {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        Thread writer = new Thread("NearByMuxWriter") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Create an unconnected stream to a service of the peer. {@link Channel#connect()}
+     * opens it, and fails if the peer does not listen for the service.
+     */
+    public Channel createStream(UUID service) {
+        return new Stream(service);
+    }
+
+    /**
+     * Set how long the link stays open without any stream.
+     */
+    public void setLingerTime(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    public synchronized int getStreamCount() {
+        return mStreams.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Close the link and every stream on it.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mStreams.clear();
+            mLastStream = null;
+            mControl.clear();
+            mReady.clear();
+            notifyAll();
+        }
+        try {
+            mLink.close();
+        } catch (IOException e) {
+        }
+        mListener.onLinkClosed(this);
+    }
+
+    private void readLoop() {
+        // every frame is dispatched before the next is read, so the payload buffer is reused
+        FrameDecoder decoder = new FrameDecoder(BufferPool.shared());
+        try {
+            Frame frame;
+            while ((frame = decoder.readFrame(mIn)) != null) {
+                dispatch(frame);
+            }
+        } catch (IOException e) {
+            // link lost or the peer broke the protocol
+        }
+        decoder.release();
+        close();
+    }
+
+    private void dispatch(Frame frame) throws IOException {
+        byte[] payload = frame.payload;
+        int length = frame.length;
+        if (length < 4) {
+            throw new IOException("Multiplexer frame without stream id");
+        }
+        int id = getInt(payload, 0);
+        switch (frame.type) {
+            case Frame.TYPE_MUX_OPEN:
+                if (length != 20) {
+                    throw new IOException("Bad open frame for stream " + id);
+                }
+                onOpen(id, new UUID(getLong(payload, 4), getLong(payload, 12)));
+                break;
+            case Frame.TYPE_MUX_DATA:
+                onData(id, payload, length);
+                break;
+            case Frame.TYPE_MUX_CREDIT:
+                if (length != 8) {
+                    throw new IOException("Bad credit frame for stream " + id);
+                }
+                onCredit(id, getInt(payload, 4));
+                break;
+            case Frame.TYPE_MUX_CLOSE:
+                onClose(id);
+                break;
+            default:
+                // sent by a newer peer, not for us
+                break;
+        }
+    }
+
+    private void onOpen(int id, UUID service) throws IOException {
+        Stream stream = new Stream(service);
+        synchronized (this) {
+            if (id <= 0 || (id & 1) == (mNextId & 1) || mStreams.containsKey(id)) {
+                throw new IOException("Bad stream id " + id);
+            }
+            stream.mmId = id;
+            stream.mmOpen = true;
+            // the peer allocated its window when it opened the stream
+            stream.mmSendCredit = INITIAL_WINDOW;
+            mStreams.put(id, stream);
+        }
+
+        if (mListener.onStreamOpened(this, service, stream)) {
+            sendControl(Frame.TYPE_MUX_CREDIT, id, INITIAL_WINDOW);
+        } else {
+            synchronized (this) {
+                removeStream(stream);
+            }
+            sendControl(Frame.TYPE_MUX_CLOSE, id, -1);
+        }
+    }
+
+    private synchronized void onData(int id, byte[] payload, int frameLength)
+            throws IOException {
+        Stream stream = findStream(id);
+        if (stream == null || stream.mmLocalClosed) {
+            // closed on our side, the peer will see our CLOSE soon
+            return;
+        }
+        int length = frameLength - 4;
+        if (length > stream.mmIn.length - stream.mmInCount) {
+            throw new IOException("Stream " + id + " overran its window");
+        }
+        int writePos = (stream.mmInPos + stream.mmInCount) % stream.mmIn.length;
+        int first = Math.min(length, stream.mmIn.length - writePos);
+        System.arraycopy(payload, 4, stream.mmIn, writePos, first);
+        System.arraycopy(payload, 4 + first, stream.mmIn, 0, length - first);
+        stream.mmInCount += length;
+        notifyAll();
+    }
+
+    private synchronized void onCredit(int id, int credit) throws IOException {
+        Stream stream = findStream(id);
+        if (stream == null) {
+            return;
+        }
+        if (credit <= 0 || stream.mmSendCredit + credit > INITIAL_WINDOW) {
+            throw new IOException("Bad credit " + credit + " for stream " + id);
+        }
+        stream.mmSendCredit += credit;
+        // the first grant accepts a stream we opened
+        stream.mmOpen = true;
+        notifyAll();
+    }
+
+    private synchronized void onClose(int id) {
+        Stream stream = findStream(id);
+        if (stream == null) {
+            return;
+        }
+        stream.mmRemoteClosed = true;
+        if (stream.mmCloseSent || !stream.mmOpen) {
+            removeStream(stream);
+        }
+        notifyAll();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Frame frame;
+                Stream from = null;
+                synchronized (this) {
+                    while (!mClosed && mControl.isEmpty() && mReady.isEmpty()) {
+                        long wait = 0;
+                        if (mStreams.isEmpty()) {
+                            wait = mIdleSince + mLingerMillis - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                break;
+                            }
+                        }
+                        await(wait);
+                    }
+                    if (mClosed || (mControl.isEmpty() && mReady.isEmpty())) {
+                        break;
+                    }
+
+                    frame = mControl.poll();
+                    if (frame == null) {
+                        from = mReady.poll();
+                        frame = from.mmPending.poll();
+                        if (from.mmPending.isEmpty()) {
+                            from.mmQueued = false;
+                            // wake up flush()
+                            notifyAll();
+                        } else {
+                            mReady.add(from);
+                        }
+                    }
+                }
+
+                mWriter.write(frame.type, frame.payload, 0, frame.length);
+
+                synchronized (this) {
+                    if (from != null && frame.type == Frame.TYPE_MUX_CLOSE) {
+                        from.mmCloseSent = true;
+                        if (from.mmRemoteClosed) {
+                            removeStream(from);
+                        }
+                    }
+                    recycleFrame(frame);
+                }
+            }
+        } catch (IOException e) {
+            // link lost
+        }
+        close();
+    }
+
+    private synchronized void sendControl(int type, int id, int value) {
+        Frame frame = obtainFrame(type, value < 0 ? 4 : 8);
+        putInt(frame.payload, 0, id);
+        if (value >= 0) {
+            putInt(frame.payload, 4, value);
+        }
+        mControl.add(frame);
+        notifyAll();
+    }
+
+    /**
+     * @return a frame with a pooled payload of the given length. Callers hold the lock.
+     */
+    private Frame obtainFrame(int type, int length) {
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new Frame(0, null);
+        }
+        frame.set(type, BufferPool.shared().get(length), length);
+        return frame;
+    }
+
+    // callers hold the lock
+    private void recycleFrame(Frame frame) {
+        BufferPool.shared().release(frame.payload);
+        frame.set(0, null, 0);
+        if (mFreeFrames.size() < MAX_FREE_FRAMES) {
+            mFreeFrames.add(frame);
+        }
+    }
+
+    // callers hold the lock
+    private Stream findStream(int id) {
+        Stream stream = mLastStream;
+        if (stream == null || stream.mmId != id) {
+            stream = mStreams.get(id);
+            mLastStream = stream;
+        }
+        return stream;
+    }
+
+    // callers hold the lock
+    private void enqueue(Stream stream, Frame frame) {
+        stream.mmPending.add(frame);
+        if (!stream.mmQueued) {
+            stream.mmQueued = true;
+            mReady.add(stream);
+        }
+        notifyAll();
+    }
+
+    // callers hold the lock
+    private void removeStream(Stream stream) {
+        if (mLastStream == stream) {
+            mLastStream = null;
+        }
+        if (mStreams.remove(stream.mmId) != null && mStreams.isEmpty()) {
+            mIdleSince = System.currentTimeMillis();
+        }
+        notifyAll();
+    }
+
+    private void await(long millis) throws InterruptedIOException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xffffffffL);
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] b, int off, long value) {
+        putInt(b, off, (int) (value >>> 32));
+        putInt(b, off + 4, (int) value);
+    }
+
+    /**
+     * One logical channel of the link. All its state is guarded by the Multiplexer.
+     */
+    private class Stream implements Channel {
+        private final UUID mmService;
+        private int mmId;
+
+        // inbound bytes, never more than the window granted to the peer
+        private final byte[] mmIn = new byte[INITIAL_WINDOW];
+        private int mmInPos;
+        private int mmInCount;
+        // bytes read since the last grant to the peer
+        private int mmConsumed;
+
+        private int mmSendCredit;
+        private final ArrayDeque<Frame> mmPending = new ArrayDeque<>();
+        private boolean mmQueued;
+        // for the single byte read() and write(), guarded by the stream's user
+        private final byte[] mmOneIn = new byte[1];
+        private final byte[] mmOneOut = new byte[1];
+
+        private boolean mmOpen;
+        private boolean mmLocalClosed;
+        private boolean mmRemoteClosed;
+        private boolean mmCloseSent;
+
+        private final InputStream mmInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return read(mmOneIn, 0, 1) == -1 ? -1 : mmOneIn[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Stream.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Multiplexer.this) {
+                    return mmInCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        };
+
+        private final OutputStream mmOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                mmOneOut[0] = (byte) b;
+                write(mmOneOut, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Stream.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                Stream.this.flush();
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        };
+
+        Stream(UUID service) {
+            mmService = service;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            synchronized (Multiplexer.this) {
+                if (mmOpen || mmId != 0) {
+                    throw new IOException("Stream already connected");
+                }
+                if (mmLocalClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+                mmId = mNextId;
+                mNextId += 2;
+                mStreams.put(mmId, this);
+
+                Frame open = obtainFrame(Frame.TYPE_MUX_OPEN, 20);
+                putInt(open.payload, 0, mmId);
+                putLong(open.payload, 4, mmService.getMostSignificantBits());
+                putLong(open.payload, 12, mmService.getLeastSignificantBits());
+                mControl.add(open);
+                Multiplexer.this.notifyAll();
+
+                while (!mmOpen && !mmRemoteClosed && !mmLocalClosed && !mClosed) {
+                    await(0);
+                }
+                if (!mmOpen) {
+                    String reason = mmLocalClosed ? "Stream closed"
+                            : mClosed ? "Link closed" : "Connection refused: " + mmService;
+                    close();
+                    throw new IOException(reason);
+                }
+            }
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (Multiplexer.this) {
+                while (mmInCount == 0) {
+                    if (mmLocalClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (mmRemoteClosed) {
+                        return -1;
+                    }
+                    if (mClosed) {
+                        throw new IOException("Link closed");
+                    }
+                    await(0);
+                }
+                int n = Math.min(len, mmInCount);
+                int first = Math.min(n, mmIn.length - mmInPos);
+                System.arraycopy(mmIn, mmInPos, b, off, first);
+                System.arraycopy(mmIn, 0, b, off + first, n - first);
+                mmInPos = (mmInPos + n) % mmIn.length;
+                mmInCount -= n;
+
+                // hand the space back in batches rather than a frame per read
+                mmConsumed += n;
+                if (mmConsumed >= INITIAL_WINDOW / 2 && !mmRemoteClosed && !mClosed) {
+                    sendControl(Frame.TYPE_MUX_CREDIT, mmId, mmConsumed);
+                    mmConsumed = 0;
+                }
+                return n;
+            }
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                synchronized (Multiplexer.this) {
+                    while (mmSendCredit == 0 && !mmLocalClosed && !mmRemoteClosed && !mClosed) {
+                        await(0);
+                    }
+                    checkWritable();
+                    int n = Math.min(len, Math.min(mmSendCredit, MAX_CHUNK));
+                    Frame data = obtainFrame(Frame.TYPE_MUX_DATA, 4 + n);
+                    putInt(data.payload, 0, mmId);
+                    System.arraycopy(b, off, data.payload, 4, n);
+                    mmSendCredit -= n;
+                    enqueue(this, data);
+                    off += n;
+                    len -= n;
+                }
+            }
+        }
+
+        /**
+         * Block until the writer thread has taken every pending chunk of this stream.
+         */
+        void flush() throws IOException {
+            synchronized (Multiplexer.this) {
+                while (!mmPending.isEmpty() && !mClosed) {
+                    await(0);
+                }
+                if (!mmPending.isEmpty()) {
+                    throw new IOException("Link closed");
+                }
+            }
+        }
+
+        private void checkWritable() throws IOException {
+            if (mmLocalClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mmRemoteClosed || mClosed) {
+                throw new IOException("Stream closed by peer");
+            }
+            if (!mmOpen) {
+                throw new IOException("Stream not connected");
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmOutput;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteName;
+        }
+
+        @Override
+        public void close() {
+            synchronized (Multiplexer.this) {
+                if (mmLocalClosed) {
+                    return;
+                }
+                mmLocalClosed = true;
+                if (mmId == 0) {
+                    // never opened
+                } else if (mClosed || mmRemoteClosed && !mmOpen) {
+                    // nothing to tell the peer, or it refused the stream already
+                    removeStream(this);
+                } else if (!mmOpen) {
+                    // given up before the peer answered, the CLOSE follows the OPEN
+                    removeStream(this);
+                    mControl.add(closeFrame(mmId));
+                } else {
+                    // the CLOSE goes out behind the data still pending
+                    enqueue(this, closeFrame(mmId));
+                }
+                Multiplexer.this.notifyAll();
+            }
+        }
+    }
+
+    // callers hold the lock
+    private Frame closeFrame(int id) {
+        Frame frame = obtainFrame(Frame.TYPE_MUX_CLOSE, 4);
+        putInt(frame.payload, 0, id);
+        return frame;
+    }
+}
@@ -0,0 +1,494 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Transport} which runs every connection to a device as a stream of one
+ * {@link Multiplexer} link, so presence probes, fetch sessions and whatever comes next
+ * share a single socket of the wrapped transport per peer instead of competing for
+ * the few RFCOMM channels of the adapter.
+ *
+ * Peers on older builds do not listen for the multiplexer. Connections to them fall back
+ * to a direct channel of the wrapped transport, and their direct connections are still
+ * accepted, as every service also listens on the wrapped transport. A device is taken
+ * for such a peer only when its service records lack the multiplexer, so a link which
+ * failed for any other reason, a page timeout or a busy radio, is not paged again
+ * directly; and only for a while, in case it is updated.
+ */
+public class MuxTransport implements Transport {
+    // Name and UUID of the service carrying the multiplexer links
+    private static final String MUX_NAME = "NearByMux";
+    private static final UUID MUX_UUID = UUID.fromString("5d3c2e70-8f0b-11e6-bdf4-0800200c9a66");
+
+    // How often a channel waiting for another channel's link checks whether it was closed
+    private static final long LINK_WAIT_POLL_MILLIS = 100;
+
+    // How long a device without the multiplexer is connected to directly
+    public static final long DEFAULT_LEGACY_TTL_MILLIS = 10 * 60 * 1000;
+
+    private final Transport mTransport;
+    private final ConcurrentMap<UUID, MuxServerChannel> mServices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Multiplexer> mLinks = new ConcurrentHashMap<>();
+    // links being connected, so concurrent channels to a device wait for the same link
+    private final ConcurrentMap<String, FutureTask<Multiplexer>> mConnecting =
+            new ConcurrentHashMap<>();
+    // devices which do not speak the multiplexer, until when; guarded by itself
+    private final LruMap<String, Long> mLegacyPeers = new LruMap<>();
+    private volatile boolean mLegacyFallback = true;
+    private volatile long mLegacyTtlMillis = DEFAULT_LEGACY_TTL_MILLIS;
+    private volatile ServiceRecordSource mServiceRecords;
+    private volatile long mLingerMillis = Multiplexer.DEFAULT_LINGER_MILLIS;
+    private ServerChannel mLinkServer;
+
+    private final Multiplexer.Listener mLinkListener = new Multiplexer.Listener() {
+        @Override
+        public boolean onStreamOpened(Multiplexer mux, UUID service, Channel stream) {
+            MuxServerChannel server = mServices.get(service);
+            return server != null && server.offer(stream);
+        }
+
+        @Override
+        public void onLinkClosed(Multiplexer mux) {
+            mLinks.remove(mux.getRemoteAddress(), mux);
+        }
+    };
+
+    public MuxTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID service) throws IOException {
+        MuxServerChannel server = new MuxServerChannel(service, mTransport.listen(name, service));
+        if (mServices.putIfAbsent(service, server) != null) {
+            server.mmDirect.close();
+            throw new IOException("Service " + service + " already listening");
+        }
+        try {
+            startLinkServer();
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        server.start();
+        return server;
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID service) {
+        return new MuxChannel(address, service);
+    }
+
+    /**
+     * Choose whether a device which does not accept multiplexer links is connected to
+     * directly, as a peer on an older build. On by default.
+     */
+    public void setLegacyFallbackEnabled(boolean enabled) {
+        mLegacyFallback = enabled;
+    }
+
+    /**
+     * Tell where the service records of devices come from, so a device whose records
+     * lack the multiplexer is connected to directly. Without them no device is.
+     */
+    public void setServiceRecordSource(ServiceRecordSource source) {
+        mServiceRecords = source;
+    }
+
+    /**
+     * Set how long a device found without the multiplexer is connected to directly
+     * before a link is tried again.
+     */
+    public void setLegacyTtl(long ttlMillis) {
+        mLegacyTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Set how long a link stays open after its last stream closed.
+     */
+    public void setLingerTime(long lingerMillis) {
+        mLingerMillis = lingerMillis;
+    }
+
+    /**
+     * @return number of open links, one per device at most
+     */
+    public int getLinkCount() {
+        return mLinks.size();
+    }
+
+    /**
+     * Close every link and stop accepting new ones.
+     */
+    public void close() {
+        stopLinkServer();
+        List<Multiplexer> links = new ArrayList<>(mLinks.values());
+        for (Multiplexer link : links) {
+            link.close();
+        }
+    }
+
+    private synchronized void startLinkServer() throws IOException {
+        if (mLinkServer != null) {
+            return;
+        }
+        final ServerChannel linkServer = mTransport.listen(MUX_NAME, MUX_UUID);
+        mLinkServer = linkServer;
+        Thread acceptThread = new Thread("NearByMuxAccept") {
+            @Override
+            public void run() {
+                while (true) {
+                    Channel link;
+                    try {
+                        link = linkServer.accept();
+                    } catch (IOException e) {
+                        // closed by stopLinkServer()
+                        break;
+                    }
+                    try {
+                        addLink(link, false);
+                    } catch (IOException e) {
+                        try {
+                            link.close();
+                        } catch (IOException e2) {
+                        }
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private synchronized void stopLinkServer() {
+        if (mLinkServer == null) {
+            return;
+        }
+        try {
+            mLinkServer.close();
+        } catch (IOException e) {
+        }
+        mLinkServer = null;
+    }
+
+    private Multiplexer addLink(Channel link, boolean initiator) throws IOException {
+        Multiplexer mux = new Multiplexer(link, initiator, mLinkListener);
+        mux.setLingerTime(mLingerMillis);
+        // the newest link serves new streams, an older one lingers out with its own
+        mLinks.put(mux.getRemoteAddress(), mux);
+        synchronized (mLegacyPeers) {
+            mLegacyPeers.remove(mux.getRemoteAddress());
+        }
+        mux.start();
+        return mux;
+    }
+
+    /**
+     * @return whether a device is known to be on a build without the multiplexer
+     */
+    private boolean isLegacyPeer(String address) {
+        synchronized (mLegacyPeers) {
+            Long until = mLegacyPeers.get(address);
+            if (until == null) {
+                return false;
+            }
+            if (System.currentTimeMillis() < until) {
+                return true;
+            }
+            mLegacyPeers.remove(address);
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the service records of a device show it lacks the multiplexer;
+     * false if they are not known
+     */
+    private boolean lacksMultiplexer(String address) {
+        ServiceRecordSource source = mServiceRecords;
+        UUID[] uuids = source != null ? source.getCachedUuids(address) : null;
+        if (uuids == null) {
+            return false;
+        }
+        for (UUID uuid : uuids) {
+            if (MUX_UUID.equals(uuid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the open link to a device, connecting a new one if there is none
+     * @param caller The channel asking for the link; closing it aborts the wait, and
+     *               the link connect if it is the caller's own
+     */
+    private Multiplexer link(final String address, final MuxChannel caller) throws IOException {
+        Multiplexer mux = mLinks.get(address);
+        if (mux != null && !mux.isClosed()) {
+            return mux;
+        }
+
+        FutureTask<Multiplexer> task = new FutureTask<>(new Callable<Multiplexer>() {
+            @Override
+            public Multiplexer call() throws IOException {
+                Channel link = mTransport.createChannel(address, MUX_UUID);
+                caller.mmDelegate = link;
+                try {
+                    if (caller.mmClosed) {
+                        throw new IOException("Channel closed");
+                    }
+                    link.connect();
+                    return addLink(link, true);
+                } catch (IOException e) {
+                    try {
+                        link.close();
+                    } catch (IOException e2) {
+                    }
+                    throw e;
+                }
+            }
+        });
+        FutureTask<Multiplexer> running = mConnecting.putIfAbsent(address, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                mConnecting.remove(address, task);
+            }
+            running = task;
+        }
+
+        try {
+            while (true) {
+                try {
+                    return running.get(LINK_WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (caller.mmClosed) {
+                        throw new IOException("Channel closed");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A channel to a service of a device: a stream on the link to the device, or a direct
+     * channel of the wrapped transport for a legacy peer.
+     */
+    private class MuxChannel implements Channel {
+        private final String mmAddress;
+        private final UUID mmService;
+        private volatile Channel mmDelegate;
+        private volatile boolean mmClosed;
+
+        MuxChannel(String address, UUID service) {
+            mmAddress = address;
+            mmService = service;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmClosed) {
+                throw new IOException("Channel closed");
+            }
+            if (isLegacyPeer(mmAddress)) {
+                connectDirect();
+            } else {
+                connectStream();
+            }
+            if (mmClosed) {
+                // closed while connecting
+                close();
+                throw new IOException("Channel closed");
+            }
+        }
+
+        private void connectStream() throws IOException {
+            Multiplexer mux;
+            try {
+                mux = link(mmAddress, this);
+            } catch (IOException e) {
+                if (!mLegacyFallback || mmClosed || !lacksMultiplexer(mmAddress)) {
+                    // the device may be out of reach; paging it again would not help
+                    throw e;
+                }
+                connectDirect();
+                synchronized (mLegacyPeers) {
+                    mLegacyPeers.put(mmAddress, System.currentTimeMillis() + mLegacyTtlMillis);
+                }
+                return;
+            }
+
+            Channel stream = mux.createStream(mmService);
+            mmDelegate = stream;
+            try {
+                stream.connect();
+            } catch (IOException e) {
+                if (!mux.isClosed() || mmClosed) {
+                    throw e;
+                }
+                // the link lingered out just as we opened the stream, try a new one
+                stream = link(mmAddress, this).createStream(mmService);
+                mmDelegate = stream;
+                stream.connect();
+            }
+        }
+
+        private void connectDirect() throws IOException {
+            Channel direct = mTransport.createChannel(mmAddress, mmService);
+            mmDelegate = direct;
+            try {
+                direct.connect();
+            } catch (IOException e) {
+                try {
+                    direct.close();
+                } catch (IOException e2) {
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connected().getOutputStream();
+        }
+
+        private Channel connected() throws IOException {
+            Channel delegate = mmDelegate;
+            if (delegate == null) {
+                throw new IOException("Channel not connected");
+            }
+            return delegate;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            Channel delegate = mmDelegate;
+            return delegate == null ? null : delegate.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmClosed = true;
+            Channel delegate = mmDelegate;
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
+
+    /**
+     * Hands out the streams opened by peers for one service together with the direct
+     * connections of legacy peers.
+     */
+    private class MuxServerChannel implements ServerChannel {
+        private final UUID mmService;
+        private final ServerChannel mmDirect;
+        private final LinkedBlockingQueue<Channel> mmPending = new LinkedBlockingQueue<>();
+        private volatile boolean mmClosed;
+
+        MuxServerChannel(UUID service, ServerChannel direct) {
+            mmService = service;
+            mmDirect = direct;
+        }
+
+        void start() {
+            Thread acceptThread = new Thread("NearByMuxDirectAccept") {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            mmPending.add(mmDirect.accept());
+                        } catch (IOException e) {
+                            // closed by close()
+                            break;
+                        }
+                    }
+                }
+            };
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        boolean offer(Channel stream) {
+            if (mmClosed) {
+                return false;
+            }
+            mmPending.add(stream);
+            return true;
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            Channel channel;
+            try {
+                channel = mmPending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mmClosed) {
+                channel.close();
+                throw new IOException("Server channel closed");
+            }
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            if (mmClosed) {
+                return;
+            }
+            mmClosed = true;
+            mServices.remove(mmService, this);
+            if (mServices.isEmpty()) {
+                stopLinkServer();
+            }
+            try {
+                mmDirect.close();
+            } catch (IOException e) {
+            }
+
+            Channel pending;
+            while ((pending = mmPending.poll()) != null) {
+                try {
+                    pending.close();
+                } catch (IOException e) {
+                }
+            }
+            // wake up a blocked accept()
+            mmPending.add(new MuxChannel(null, mmService));
+        }
+    }
+}
@@ -3,16 +3,24 @@ package com.krp.social.nearby;
 import android.app.Application;
 import android.content.SharedPreferences;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
 /**
  * Created by Kumar Purushottam on 27-12-2015.
  */
-public class NearByApplication extends Application {
+public class NearByApplication extends Application implements ProfileProvider, BlobProvider {
     public static final String TAG = NearByApplication.class.getSimpleName();
 
+    private static final String PEER_REGISTRY_FILE = "peers.dat";
+
     private static NearByApplication mInstance;
 
     public SharedPreferences mSharedPrefs;
 
+    private PeerRegistry mPeerRegistry;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -20,12 +28,20 @@ public class NearByApplication extends Application {
         mInstance = this;
 
         mSharedPrefs = getSharedPreferences(TAG, MODE_PRIVATE);
+        mPeerRegistry = new PeerRegistry(new File(getFilesDir(), PEER_REGISTRY_FILE));
     }
 
     public static NearByApplication getInstance() {
         return mInstance;
     }
 
+    /**
+     * @return the peers remembered across runs
+     */
+    public PeerRegistry getPeerRegistry() {
+        return mPeerRegistry;
+    }
+
     public void setUserName(String name) {
         mSharedPrefs.edit().putString(Constants.KEY_PREF_USER_NAME, name).commit();
     }
@@ -42,6 +58,10 @@ public class NearByApplication extends Application {
         mSharedPrefs.edit().putString(Constants.KEY_PREF_USER_INTEREST, interests).commit();
     }
 
+    public void setUserImagePath(String path) {
+        mSharedPrefs.edit().putString(Constants.KEY_PREF_USER_IMAGE_PATH, path).commit();
+    }
+
     public String getUserName() {
         return mSharedPrefs.getString(Constants.KEY_PREF_USER_NAME, null);
     }
@@ -57,4 +77,48 @@ public class NearByApplication extends Application {
     public String getUserInterests() {
         return mSharedPrefs.getString(Constants.KEY_PREF_USER_INTEREST, null);
     }
+
+    public String getUserImagePath() {
+        return mSharedPrefs.getString(Constants.KEY_PREF_USER_IMAGE_PATH, null);
+    }
+
+    @Override
+    public User getLocalProfile() {
+        return new User(getUserName(), getUserAge(), isUserGenderMale(), getUserInterests());
+    }
+
+    @Override
+    public byte[] getBlob(int kind) {
+        String path = getUserImagePath();
+        if (kind != BlobTransfer.KIND_PROFILE_IMAGE || path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (file.length() > BlobTransfer.MAX_BLOB_SIZE) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] image = new byte[(int) file.length()];
+            int read = 0;
+            while (read < image.length) {
+                int count = in.read(image, read, image.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            return image;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package com.krp.social.nearby;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The steps turning one list of nearby users into another, as the inserts, moves,
+ * changes and removals a RecyclerView animates. Users are matched by device address,
+ * and each address is in a list at most once.
+ *
+ * Users kept in both lists move only if they are not part of the longest run already in
+ * the new order, so the number of moves is the smallest possible. A user kept in place
+ * counts as changed only when what the list shows of it changed.
+ *
+ * Computing a diff costs O(n log n) plus O(n) per step, and is meant for a background
+ * thread; dispatching it is cheap.
+ */
+public class NearByDiff {
+
+    /**
+     * Receives the steps, in order. Positions are the ones of the list as it is at
+     * that step, as for the notifyItem methods of RecyclerView.Adapter.
+     */
+    public interface Callback {
+        void onInserted(int position);
+
+        void onRemoved(int position);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position);
+    }
+
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+
+    // steps as triples of kind, position, second position
+    private final int[] mSteps;
+    private final int mCount;
+    private final int mMoves;
+
+    private NearByDiff(int[] steps, int count, int moves) {
+        mSteps = steps;
+        mCount = count;
+        mMoves = moves;
+    }
+
+    /**
+     * Work out the steps from one list to the other. Neither list is modified.
+     */
+    public static NearByDiff compute(List<User> oldList, List<User> newList) {
+        Map<String, Integer> newIndex = new HashMap<>(newList.size() * 2);
+        for (int i = 0; i < newList.size(); i++) {
+            newIndex.put(newList.get(i).deviceAddress, i);
+        }
+        Steps steps = new Steps();
+
+        // the list as it looks while the steps are applied
+        List<String> work = new ArrayList<>(oldList.size());
+        Map<String, User> kept = new HashMap<>(oldList.size() * 2);
+        for (User user : oldList) {
+            work.add(user.deviceAddress);
+        }
+        // removals from the back, so the positions before stay valid
+        for (int i = oldList.size() - 1; i >= 0; i--) {
+            User user = oldList.get(i);
+            if (newIndex.containsKey(user.deviceAddress)) {
+                kept.put(user.deviceAddress, user);
+            } else {
+                work.remove(i);
+                steps.add(REMOVE, i, 0);
+            }
+        }
+
+        // users in the longest run already in the new order stay where they are
+        int[] order = new int[work.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = newIndex.get(work.get(i));
+        }
+        Set<String> stable = new HashSet<>();
+        for (int i : longestIncreasingRun(order)) {
+            stable.add(work.get(i));
+        }
+
+        // from the back, put each user right before the one following it in the new
+        // list; what has been placed so far is in the new order
+        int moves = 0;
+        for (int i = newList.size() - 1; i >= 0; i--) {
+            String address = newList.get(i).deviceAddress;
+            if (stable.contains(address)) {
+                continue;
+            }
+            int anchor = i + 1 < newList.size()
+                    ? work.indexOf(newList.get(i + 1).deviceAddress) : work.size();
+            if (!kept.containsKey(address)) {
+                work.add(anchor, address);
+                steps.add(INSERT, anchor, 0);
+                continue;
+            }
+            int from = work.indexOf(address);
+            int to = from < anchor ? anchor - 1 : anchor;
+            if (from != to) {
+                work.remove(from);
+                work.add(to, address);
+                steps.add(MOVE, from, to);
+                moves++;
+            }
+        }
+
+        // the list is the new one now
+        for (int i = 0; i < newList.size(); i++) {
+            User before = kept.get(newList.get(i).deviceAddress);
+            if (before != null && !sameContent(before, newList.get(i))) {
+                steps.add(CHANGE, i, 0);
+            }
+        }
+        return new NearByDiff(steps.mmSteps, steps.mmCount, moves);
+    }
+
+    /**
+     * Hand the steps to a callback, in order.
+     */
+    public void dispatchTo(Callback callback) {
+        for (int i = 0; i < mCount; i++) {
+            int position = mSteps[i * 3 + 1];
+            switch (mSteps[i * 3]) {
+                case INSERT:
+                    callback.onInserted(position);
+                    break;
+                case REMOVE:
+                    callback.onRemoved(position);
+                    break;
+                case MOVE:
+                    callback.onMoved(position, mSteps[i * 3 + 2]);
+                    break;
+                case CHANGE:
+                    callback.onChanged(position);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of steps, 0 if the lists show the same
+     */
+    public int getStepCount() {
+        return mCount;
+    }
+
+    public int getMoveCount() {
+        return mMoves;
+    }
+
+    /**
+     * @return whether a row showing one user needs to be bound again for the other
+     */
+    private static boolean sameContent(User a, User b) {
+        return a.deviceName == null ? b.deviceName == null : a.deviceName.equals(b.deviceName);
+    }
+
+    /**
+     * @return indexes of a longest strictly increasing subsequence of the values
+     */
+    private static int[] longestIncreasingRun(int[] values) {
+        // tails[k]: index of the smallest last value of a run of length k + 1
+        int[] tails = new int[values.length];
+        int[] previous = new int[values.length];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        int[] run = new int[length];
+        for (int k = length - 1, i = length > 0 ? tails[length - 1] : -1; k >= 0; k--) {
+            run[k] = i;
+            i = previous[i];
+        }
+        return run;
+    }
+
+    private static class Steps {
+        int[] mmSteps = new int[3 * 8];
+        int mmCount;
+
+        void add(int kind, int position, int second) {
+            if ((mmCount + 1) * 3 > mmSteps.length) {
+                int[] grown = new int[mmSteps.length * 2];
+                System.arraycopy(mmSteps, 0, grown, 0, mmCount * 3);
+                mmSteps = grown;
+            }
+            mmSteps[mmCount * 3] = kind;
+            mmSteps[mmCount * 3 + 1] = position;
+            mmSteps[mmCount * 3 + 2] = second;
+            mmCount++;
+        }
+    }
+}
@@ -1,22 +1,75 @@
 package com.krp.social.nearby;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Kumar Purushottam on 26-12-2015.
+ *
+ * The users are kept by device address, so adding or removing one costs O(1); a user
+ * added again keeps its row. The list shown catches up through a {@link NearByDiff}
+ * worked out on a background thread, so only the rows which changed are bound again,
+ * and a burst of updates costs a single diff. All methods are called on the main thread.
  */
 public class NearByRecyclerAdapter extends RecyclerView.Adapter<NearByRecyclerViewHolder> {
 
-    private List<User> mListUsers;
+    // by address, in the order added
+    private final LinkedHashMap<String, User> mUsers = new LinkedHashMap<>();
+    // what the RecyclerView shows, replaced as a whole when a diff is dispatched
+    private List<User> mListUsers = Collections.emptyList();
+    private boolean mDiffing;
+    private boolean mDirty;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mDiffExecutor;
     private OnNearByUserSelectListener userSelectListener;
 
+    private final NearByDiff.Callback mNotifier = new NearByDiff.Callback() {
+        @Override
+        public void onInserted(int position) {
+            notifyItemInserted(position);
+        }
+
+        @Override
+        public void onRemoved(int position) {
+            notifyItemRemoved(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position) {
+            notifyItemChanged(position);
+        }
+    };
+
     public NearByRecyclerAdapter(OnNearByUserSelectListener listener) {
         userSelectListener = listener;
+        mDiffExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NearByListDiff");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDiffExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -33,53 +86,90 @@ public class NearByRecyclerAdapter extends RecyclerView.Adapter<NearByRecyclerVi
 
     @Override
     public int getItemCount() {
-        return mListUsers == null ? 0 : mListUsers.size();
+        return mListUsers.size();
     }
 
+    /**
+     * Add a user, or update the one with the same address in its row.
+     */
     public void addData(User user) {
-        if(mListUsers == null) {
-            mListUsers = new ArrayList<>();
-        }
-        if(!mListUsers.contains(user)) {
-            mListUsers.add(user);
-        } else {
-            mListUsers.remove(user);
-            mListUsers.add(user);
-        }
+        mUsers.put(user.deviceAddress, user);
+        changed();
     }
 
-    public void refreshDataSet(User... users) {
-        if(mListUsers == null) {
-            mListUsers = new ArrayList<>(users.length);
+    public void removeData(User user) {
+        if (mUsers.remove(user.deviceAddress) != null) {
+            changed();
         }
-        mListUsers.removeAll(mListUsers);
+    }
 
-        int len = users.length;
-        for(int i=0; i<len; i++) {
-            mListUsers.add(users[i]);
+    public void refreshDataSet(User... users) {
+        mUsers.clear();
+        for (User user : users) {
+            mUsers.put(user.deviceAddress, user);
         }
+        changed();
     }
 
     public void refreshDataSet(List<User> users) {
-        if(mListUsers == null) {
-            mListUsers = new ArrayList<>(users.size());
+        mUsers.clear();
+        for (User user : users) {
+            mUsers.put(user.deviceAddress, user);
         }
-        mListUsers.removeAll(mListUsers);
-        mListUsers.addAll(users);
+        changed();
     }
 
+    /**
+     * Bind all rows again.
+     */
     public void refreshDataSet() {
-        if(mListUsers != null) {
-            mListUsers.remove(mListUsers);
-        }
-        notifyDataSetChanged();
+        notifyItemRangeChanged(0, mListUsers.size());
     }
 
     public interface OnNearByUserSelectListener {
         void onUserSelected(User user);
     }
 
+    /**
+     * @return the users as shown, which may lag behind the latest updates
+     */
     public List<User> getNearByUsers() {
-        return mListUsers;
+        return Collections.unmodifiableList(mListUsers);
+    }
+
+    private void changed() {
+        mDirty = true;
+        if (!mDiffing) {
+            diff();
+        }
+    }
+
+    /**
+     * Work out the steps from the list shown to the users now, and apply them on the
+     * main thread. Updates meanwhile are picked up by the next diff.
+     */
+    private void diff() {
+        mDirty = false;
+        mDiffing = true;
+        final List<User> oldList = mListUsers;
+        final List<User> newList = new ArrayList<>(mUsers.values());
+        mDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final NearByDiff diff = NearByDiff.compute(oldList, newList);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the data and its notifications change together
+                        mListUsers = newList;
+                        diff.dispatchTo(mNotifier);
+                        mDiffing = false;
+                        if (mDirty) {
+                            diff();
+                        }
+                    }
+                });
+            }
+        });
     }
 }
@@ -0,0 +1,176 @@
+package com.krp.social.nearby;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
+import android.os.IBinder;
+
+/**
+ * Hosts the {@link BluetoothConnectionService}, so the listening sockets, pools and
+ * caches outlive the Activity: rotating or leaving the dashboard keeps us reachable.
+ * The connection service runs while Bluetooth is on, and is only built again when the
+ * radio comes back on, as its sockets died with it.
+ *
+ * The dashboard binds to it and attaches a listener for the connection events. Events
+ * while nothing is attached are dropped; the peers found meanwhile are still recorded
+ * in the {@link PeerRegistry}.
+ */
+public class NearByService extends Service {
+
+    /**
+     * Handed to clients binding from this process.
+     */
+    public class LocalBinder extends Binder {
+        public NearByService getService() {
+            return NearByService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private BluetoothAdapter mBluetoothAdapter;
+    // only touched on the main thread
+    private BluetoothConnectionService mChatService;
+    private volatile ConnectionListener mAttachedListener;
+
+    private final ConnectionListener mDispatcher = new ConnectionListener() {
+        @Override
+        public void onConnectionEvent(int what, Object obj) {
+            ConnectionListener listener = mAttachedListener;
+            if (listener != null) {
+                listener.onConnectionEvent(what, obj);
+            }
+        }
+    };
+
+    private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+
+            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                switch (state) {
+                    case BluetoothAdapter.STATE_ON:
+                        startChatService();
+                        break;
+
+                    case BluetoothAdapter.STATE_TURNING_OFF:
+                    case BluetoothAdapter.STATE_OFF:
+                        stopChatService();
+                        break;
+                }
+
+            } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
+                DiscoveryScheduler scheduler = getDiscoveryScheduler();
+                if (scheduler != null) {
+                    scheduler.onInquiryStarted();
+                }
+
+            } else if (action.equals(BluetoothDevice.ACTION_FOUND)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                DiscoveryScheduler scheduler = getDiscoveryScheduler();
+                if (scheduler != null) {
+                    scheduler.onPeerFound(device.getAddress());
+                }
+                if (mChatService != null) {
+                    mChatService.connect(device.getAddress(), intent.getShortExtra(
+                            BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE));
+                }
+
+            } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
+                DiscoveryScheduler scheduler = getDiscoveryScheduler();
+                if (scheduler != null) {
+                    scheduler.onInquiryFinished();
+                }
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        registerReceiver(mBluetoothReceiver, filter);
+
+        if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
+            startChatService();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // keep running once the dashboard unbinds, until it stops us
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mBluetoothReceiver);
+        stopChatService();
+        mAttachedListener = null;
+        super.onDestroy();
+    }
+
+    /**
+     * Receive the connection events, in place of the listener attached before.
+     */
+    public void attach(ConnectionListener listener) {
+        mAttachedListener = listener;
+    }
+
+    /**
+     * Stop receiving the connection events, if the listener is still the attached one.
+     */
+    public void detach(ConnectionListener listener) {
+        if (mAttachedListener == listener) {
+            mAttachedListener = null;
+        }
+    }
+
+    /**
+     * @return the running connection service, null while Bluetooth is off
+     */
+    public BluetoothConnectionService getConnectionService() {
+        return mChatService;
+    }
+
+    /**
+     * @return the scheduler of the running connection service, or null
+     */
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return mChatService != null ? mChatService.getDiscoveryScheduler() : null;
+    }
+
+    private void startChatService() {
+        if (mChatService != null) {
+            // still listening, nothing to rebuild
+            return;
+        }
+        mChatService = new BluetoothConnectionService(this, mDispatcher);
+        mChatService.start();
+    }
+
+    private void stopChatService() {
+        if (mChatService != null) {
+            mChatService.stop();
+            mChatService = null;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output stream of a channel which queues the bytes and writes them on a thread of its
+ * own. Frames queued while a write is in progress go out together in the next one, so
+ * a burst of small frames costs one RFCOMM write instead of one each.
+ *
+ * The queue holds a bounded number of bytes. A producer which finds it full blocks
+ * until the writer made room, and gives up with an IOException if the link does not
+ * drain in time. A failed write closes the channel, so readers waiting for an answer
+ * fail too, and is thrown to the producers by their next write or flush.
+ *
+ * Frames must come from one producer at a time, as with a plain output stream.
+ */
+public class OutboundQueue extends OutputStream {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10 * 1000;
+
+    // Largest single write to the channel
+    private static final int MAX_WRITE_SIZE = 8 * 1024;
+
+    /**
+     * Write counters, shared by all the queues of a service.
+     */
+    public static class Stats {
+        private final long mStartedAt = System.currentTimeMillis();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mWrites = new AtomicLong();
+        private final AtomicLong mQueued = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        private final AtomicLong mBlocked = new AtomicLong();
+        private final AtomicLong mBlockedNanos = new AtomicLong();
+
+        /**
+         * @return bytes written to the channels
+         */
+        public long getBytesWritten() {
+            return mBytes.get();
+        }
+
+        /**
+         * @return writes to the channels, fewer than the queued pieces when coalesced
+         */
+        public long getWriteCount() {
+            return mWrites.get();
+        }
+
+        /**
+         * @return pieces queued by the producers, one or two per frame
+         */
+        public long getQueuedCount() {
+            return mQueued.get();
+        }
+
+        public long getFailureCount() {
+            return mFailures.get();
+        }
+
+        /**
+         * @return times a producer had to wait for room in a full queue
+         */
+        public long getBlockedCount() {
+            return mBlocked.get();
+        }
+
+        public long getBlockedMillis() {
+            return mBlockedNanos.get() / 1000000;
+        }
+
+        /**
+         * @return bytes written per second since the stats were made
+         */
+        public double getThroughput() {
+            long elapsed = System.currentTimeMillis() - mStartedAt;
+            return elapsed <= 0 ? 0 : mBytes.get() * 1000d / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "OutboundQueue.Stats{" +
+                    "bytes=" + getBytesWritten() +
+                    ", writes=" + getWriteCount() +
+                    ", queued=" + getQueuedCount() +
+                    ", failures=" + getFailureCount() +
+                    ", blocked=" + getBlockedCount() +
+                    ", blockedMillis=" + getBlockedMillis() +
+                    ", bytesPerSecond=" + Math.round(getThroughput()) +
+                    '}';
+        }
+    }
+
+    private final Channel mChannel;
+    private final OutputStream mOut;
+    private final String mName;
+    private final Stats mStats;
+    private final byte[] mOne = new byte[1];
+    private volatile long mBlockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+
+    // all state below is guarded by this
+    private final byte[] mRing;
+    // first queued byte, and number of queued bytes including the write in progress
+    private int mHead;
+    private int mCount;
+    private int mPeak;
+    private IOException mFailure;
+    private boolean mClosed;
+    private Thread mThread;
+
+    /**
+     * @param channel Channel to write to, closed if a write fails
+     * @param name    Name of the writer thread
+     * @param stats   Counters to add to, may be null
+     */
+    public OutboundQueue(Channel channel, String name, Stats stats) throws IOException {
+        this(channel, name, stats, DEFAULT_CAPACITY);
+    }
+
+    public OutboundQueue(Channel channel, String name, Stats stats, int capacity)
+            throws IOException {
+        mChannel = channel;
+        mOut = channel.getOutputStream();
+        mName = name;
+        mStats = stats != null ? stats : new Stats();
+        mRing = new byte[capacity];
+    }
+
+    /**
+     * Set how long a producer waits for room in a full queue before giving up.
+     */
+    public void setBlockTimeout(long timeoutMillis) {
+        mBlockTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mOne[0] = (byte) b;
+        write(mOne, 0, 1);
+    }
+
+    /**
+     * Queue bytes, blocking while the queue is full.
+     *
+     * @throws IOException if an earlier write failed, the queue was closed, or no room
+     *                     was made in time
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        mStats.mQueued.incrementAndGet();
+        while (len > 0) {
+            if (mCount == mRing.length) {
+                waitForRoom();
+            }
+            int tail = (mHead + mCount) % mRing.length;
+            int n = Math.min(len, Math.min(mRing.length - mCount, mRing.length - tail));
+            System.arraycopy(b, off, mRing, tail, n);
+            mCount += n;
+            off += n;
+            len -= n;
+        }
+        mPeak = Math.max(mPeak, mCount);
+        if (mThread == null) {
+            mThread = new Thread("NearByWriter-" + mName) {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            };
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Does not wait for the bytes to go out, see {@link #drain(long)}.
+     *
+     * @throws IOException if an earlier write failed
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+    }
+
+    /**
+     * Wait until everything queued has been written.
+     *
+     * @return false if a write failed, the queue was closed or time ran out first
+     */
+    public synchronized boolean drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mCount > 0 && mFailure == null && !mClosed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return mCount == 0 && mFailure == null;
+    }
+
+    /**
+     * Stop the writer. Bytes still queued are dropped; the channel is left open.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mCount;
+    }
+
+    public synchronized int getPeakQueuedBytes() {
+        return mPeak;
+    }
+
+    /**
+     * @return the failure of the last write, or null
+     */
+    public synchronized IOException getFailure() {
+        return mFailure;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    // callers hold the lock
+    private void checkOpen() throws IOException {
+        if (mFailure != null) {
+            throw new IOException("Write to " + mName + " failed earlier", mFailure);
+        }
+        if (mClosed) {
+            throw new IOException("Write queue closed");
+        }
+    }
+
+    // callers hold the lock
+    private void waitForRoom() throws IOException {
+        mStats.mBlocked.incrementAndGet();
+        long startedAt = System.nanoTime();
+        long deadline = System.currentTimeMillis() + mBlockTimeoutMillis;
+        try {
+            while (mCount == mRing.length) {
+                checkOpen();
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Write queue to " + mName + " stalled");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            checkOpen();
+        } finally {
+            mStats.mBlockedNanos.addAndGet(System.nanoTime() - startedAt);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            int pos;
+            int n;
+            synchronized (this) {
+                while (mCount == 0 && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only close() stops the writer
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                // everything queued up to the end of the ring, in one write
+                pos = mHead;
+                n = Math.min(mCount, Math.min(mRing.length - mHead, MAX_WRITE_SIZE));
+            }
+
+            try {
+                // producers never touch queued bytes, so the write needs no lock
+                mOut.write(mRing, pos, n);
+                mOut.flush();
+            } catch (IOException e) {
+                mStats.mFailures.incrementAndGet();
+                try {
+                    mChannel.close();
+                } catch (IOException e2) {
+                }
+                synchronized (this) {
+                    mFailure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            mStats.mBytes.addAndGet(n);
+            mStats.mWrites.incrementAndGet();
+
+            synchronized (this) {
+                mHead = (mHead + n) % mRing.length;
+                mCount -= n;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OutboundQueue{" +
+                "name=" + mName +
+                ", queued=" + mCount +
+                ", peak=" + mPeak +
+                ", failed=" + (mFailure != null) +
+                '}';
+    }
+}
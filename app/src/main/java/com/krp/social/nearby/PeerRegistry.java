@@ -0,0 +1,387 @@
+package com.krp.social.nearby;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Peers seen on earlier runs, kept in a file so the nearby list can show them at once
+ * while discovery confirms them, and their last fetched profiles need not be fetched
+ * again while unchanged.
+ *
+ * Updates only change the peers in memory; the file is rewritten on a thread of the
+ * registry a little later, once for a whole burst of updates. Reading and writing the
+ * file never happen on the caller's thread.
+ */
+public class PeerRegistry {
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 2000;
+    // Peers not seen for this long are dropped on load
+    public static final long MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_MAGIC = 0x4E425052;
+    private static final int FILE_VERSION = 1;
+    // Peers remembered, the least recently seen are forgotten
+    private static final int MAX_PEERS = 256;
+
+    /**
+     * Receives the peers once the file has been read, on the thread of the registry.
+     */
+    public interface LoadListener {
+        void onPeersLoaded(List<Peer> peers);
+    }
+
+    /**
+     * What is known about a peer. Instances handed out are copies.
+     */
+    public static class Peer {
+        String address;
+        String name;
+        // true once the peer was found running the app
+        boolean app;
+        long lastSeen;
+        // digest of the peer's profile, 0 if unknown
+        long profileDigest;
+        // last fetched full profile, null if none
+        User profile;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        Peer copy() {
+            Peer copy = new Peer(address);
+            copy.name = name;
+            copy.app = app;
+            copy.lastSeen = lastSeen;
+            copy.profileDigest = profileDigest;
+            copy.profile = profile;
+            return copy;
+        }
+    }
+
+    private final File mFile;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile long mFlushDelayMillis = DEFAULT_FLUSH_DELAY_MILLIS;
+
+    // guarded by itself, ordered from least to most recently seen
+    private final LinkedHashMap<String, Peer> mPeers =
+            new LinkedHashMap<String, Peer>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Peer> eldest) {
+                    return size() > MAX_PEERS;
+                }
+            };
+    // the rest is only touched on the registry thread
+    private boolean mLoaded;
+    // guarded by mPeers
+    private ScheduledFuture<?> mPendingFlush;
+
+    private final AtomicLong mUpdates = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    /**
+     * @param file File holding the peers, created on the first write
+     */
+    public PeerRegistry(File file) {
+        mFile = file;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NearByPeerRegistry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set how long updates are collected before the file is rewritten.
+     */
+    public void setFlushDelay(long delayMillis) {
+        mFlushDelayMillis = delayMillis;
+    }
+
+    /**
+     * Read the file, if not done yet, and hand the known peers to the listener, most
+     * recently seen first.
+     */
+    public void load(final LoadListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                listener.onPeersLoaded(getPeers());
+            }
+        });
+    }
+
+    /**
+     * Note a peer found by discovery, or which found us.
+     */
+    public void seen(Device device) {
+        seen(device, System.currentTimeMillis());
+    }
+
+    void seen(Device device, long now) {
+        synchronized (mPeers) {
+            Peer peer = touch(device.address);
+            if (device.name != null) {
+                peer.name = device.name;
+            }
+            peer.app = true;
+            peer.lastSeen = now;
+            if (device.profileDigest != 0 && device.profileDigest != peer.profileDigest) {
+                // the profile we have is out of date
+                peer.profileDigest = device.profileDigest;
+                peer.profile = null;
+            }
+            if (device.profile != null && device.profileComplete) {
+                peer.profile = device.profile;
+            }
+            changed();
+        }
+    }
+
+    /**
+     * Store the full profile fetched from a peer.
+     *
+     * @param digest digest of the profile as it was sent
+     */
+    public void putProfile(String address, long digest, User profile) {
+        synchronized (mPeers) {
+            Peer peer = touch(address);
+            peer.app = true;
+            peer.profileDigest = digest;
+            peer.profile = profile;
+            changed();
+        }
+    }
+
+    /**
+     * @return a copy of the known peers, most recently seen first; empty until loaded
+     */
+    public List<Peer> getPeers() {
+        synchronized (mPeers) {
+            List<Peer> peers = new ArrayList<Peer>(mPeers.size());
+            for (Peer peer : mPeers.values()) {
+                peers.add(0, peer.copy());
+            }
+            return peers;
+        }
+    }
+
+    /**
+     * Write pending updates now instead of after the flush delay.
+     */
+    public void flush() {
+        synchronized (mPeers) {
+            if (mPendingFlush != null) {
+                mPendingFlush.cancel(false);
+            }
+            mPendingFlush = mExecutor.schedule(mWriteTask, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Wait until the work queued so far on the registry thread is done.
+     */
+    void awaitIdle() throws InterruptedException, ExecutionException {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    public long getUpdateCount() {
+        return mUpdates.get();
+    }
+
+    /**
+     * @return times the file was rewritten, fewer than the updates when batched
+     */
+    public long getWriteCount() {
+        return mWrites.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    // callers hold mPeers
+    private Peer touch(String address) {
+        // move to the most recently seen end
+        Peer peer = mPeers.remove(address);
+        if (peer == null) {
+            peer = new Peer(address);
+        }
+        mPeers.put(address, peer);
+        return peer;
+    }
+
+    // callers hold mPeers
+    private void changed() {
+        mUpdates.incrementAndGet();
+        if (mPendingFlush == null) {
+            mPendingFlush = mExecutor.schedule(mWriteTask, mFlushDelayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            // peers from the file must not be lost by writing before reading it
+            ensureLoaded();
+            List<Peer> peers;
+            synchronized (mPeers) {
+                mPendingFlush = null;
+                peers = new ArrayList<Peer>(mPeers.size());
+                for (Peer peer : mPeers.values()) {
+                    peers.add(peer.copy());
+                }
+            }
+            try {
+                write(peers);
+                mWrites.incrementAndGet();
+            } catch (IOException e) {
+                mFailures.incrementAndGet();
+            }
+        }
+    };
+
+    // on the registry thread
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        List<Peer> peers;
+        try {
+            peers = read(System.currentTimeMillis());
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            // a damaged file only costs the warm start
+            mFailures.incrementAndGet();
+            return;
+        }
+        synchronized (mPeers) {
+            // peers updated since start are newer than the file
+            LinkedHashMap<String, Peer> updated = new LinkedHashMap<String, Peer>(mPeers);
+            mPeers.clear();
+            for (Peer peer : peers) {
+                if (!updated.containsKey(peer.address)) {
+                    mPeers.put(peer.address, peer);
+                }
+            }
+            mPeers.putAll(updated);
+        }
+    }
+
+    // on the registry thread
+    private List<Peer> read(long now) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readUnsignedByte() != FILE_VERSION) {
+                throw new IOException("Not a peer registry");
+            }
+            int count = in.readInt();
+            List<Peer> peers = new ArrayList<Peer>(Math.min(count, MAX_PEERS));
+            ProfileCodec codec = new ProfileCodec();
+            for (int i = 0; i < count; i++) {
+                Peer peer = new Peer(in.readUTF());
+                peer.name = in.readBoolean() ? in.readUTF() : null;
+                peer.app = in.readBoolean();
+                peer.lastSeen = in.readLong();
+                peer.profileDigest = in.readLong();
+                int length = in.readInt();
+                if (length > 0) {
+                    byte[] profile = new byte[length];
+                    in.readFully(profile);
+                    peer.profile = codec.decode(profile, 0, length);
+                }
+                if (now - peer.lastSeen < MAX_AGE_MILLIS) {
+                    peers.add(peer);
+                }
+            }
+            return peers;
+        } catch (EOFException e) {
+            throw new IOException("Peer registry cut short", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    // on the registry thread
+    private void write(List<Peer> peers) throws IOException {
+        // write aside and rename, so a crash never leaves half a file
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeByte(FILE_VERSION);
+            out.writeInt(peers.size());
+            ProfileCodec codec = new ProfileCodec();
+            for (Peer peer : peers) {
+                out.writeUTF(peer.address);
+                out.writeBoolean(peer.name != null);
+                if (peer.name != null) {
+                    out.writeUTF(peer.name);
+                }
+                out.writeBoolean(peer.app);
+                out.writeLong(peer.lastSeen);
+                out.writeLong(peer.profileDigest);
+                if (peer.profile != null) {
+                    int length = codec.encode(peer.profile);
+                    out.writeInt(length);
+                    out.write(codec.getBuffer(), 0, length);
+                } else {
+                    out.writeInt(0);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mPeers) {
+            return "PeerRegistry{" +
+                    "peers=" + mPeers.size() +
+                    ", updates=" + getUpdateCount() +
+                    ", writes=" + getWriteCount() +
+                    ", failures=" + getFailureCount() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An open framed connection to the fetch service of one nearby device, which can be
+ * kept in a {@link SessionPool} and used for more than one fetch.
+ *
+ * A session is used by one thread at a time: whoever took it from the pool. Its frames
+ * go out through an {@link OutboundQueue}.
+ */
+public class PeerSession {
+    // Aborts sessions whose peer does not confirm a close or answer a ping in time
+    private static final ScheduledThreadPoolExecutor sCloseTimer =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NearByCloseTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Time close() allows the DISCONNECT to go out
+    private static final long CLOSE_DRAIN_MILLIS = 1000;
+    // Time a health check waits for the PONG
+    public static final long DEFAULT_PING_TIMEOUT_MILLIS = 1000;
+
+    static {
+        sCloseTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        sCloseTimer.allowCoreThreadTimeOut(true);
+    }
+
+    private final String mAddress;
+    private final Channel mChannel;
+    private final InputStream mIn;
+    private final OutboundQueue mQueue;
+    private final FrameWriter mWriter;
+    private final FrameDecoder mDecoder = new FrameDecoder(BufferPool.shared());
+    private final ProfileCodec mCodec = new ProfileCodec();
+    private final long mCreatedAt;
+    private volatile long mLastUsed;
+    private volatile boolean mClosed;
+
+    public PeerSession(String address, Channel channel) throws IOException {
+        this(address, channel, null);
+    }
+
+    /**
+     * @param writeStats Counters of the outbound queue, may be null
+     */
+    public PeerSession(String address, Channel channel, OutboundQueue.Stats writeStats)
+            throws IOException {
+        mAddress = address;
+        mChannel = channel;
+        mIn = channel.getInputStream();
+        mQueue = new OutboundQueue(channel, address, writeStats);
+        mWriter = new FrameWriter(mQueue);
+        mCreatedAt = System.currentTimeMillis();
+        mLastUsed = mCreatedAt;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public Channel getChannel() {
+        return mChannel;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return mQueue;
+    }
+
+    /**
+     * @return a codec for the profiles exchanged on this session, kept along with it
+     */
+    public ProfileCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return the next frame, or null if the peer closed the connection. The frame is
+     * only valid until the next read.
+     */
+    public Frame readFrame() throws IOException {
+        Frame frame = mDecoder.readFrame(mIn);
+        mLastUsed = System.currentTimeMillis();
+        return frame;
+    }
+
+    public void write(int type, byte[] payload) throws IOException {
+        write(type, payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    public void write(int type, byte[] payload, int offset, int length) throws IOException {
+        mWriter.write(type, payload, offset, length);
+        mLastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Check the peer still answers on this session, within the default ping timeout.
+     *
+     * @return false if the session is dead and should be dropped
+     */
+    public boolean ping() {
+        return ping(DEFAULT_PING_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Check the peer still answers on this session. A peer which does not answer
+     * within timeoutMillis gets the session aborted.
+     *
+     * @return false if the session is dead and should be dropped
+     */
+    public boolean ping(long timeoutMillis) {
+        ScheduledFuture<?> deadline = sCloseTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                abort();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        boolean answered;
+        try {
+            write(Frame.TYPE_PING, null);
+            Frame frame = readFrame();
+            answered = frame != null && frame.type == Frame.TYPE_PONG;
+        } catch (IOException e) {
+            // aborted by the deadline, or the link went down
+            answered = false;
+        } finally {
+            deadline.cancel(false);
+        }
+        // the deadline may have passed just as the PONG came in
+        return answered && !mClosed;
+    }
+
+    /**
+     * @return milliseconds since the session last sent or received a frame
+     */
+    public long getIdleTime() {
+        return System.currentTimeMillis() - mLastUsed;
+    }
+
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Tell the peer we are done, then close the connection.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mWriter.write(Frame.TYPE_DISCONNECT, null);
+            mQueue.drain(CLOSE_DRAIN_MILLIS);
+        } catch (IOException e) {
+        }
+        abort();
+    }
+
+    /**
+     * Tell the peer we are done and close as soon as it confirmed with DISCONNECT_ACK,
+     * or closed its end as older peers do. Frames still arriving before the
+     * confirmation are dropped. Gives up and aborts after timeoutMillis.
+     *
+     * @return true if the peer confirmed the close
+     */
+    public boolean closeGracefully(long timeoutMillis) {
+        if (mClosed) {
+            return false;
+        }
+        mClosed = true;
+        ScheduledFuture<?> deadline = sCloseTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                abort();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        boolean confirmed = false;
+        try {
+            mWriter.write(Frame.TYPE_DISCONNECT, null);
+            Frame frame;
+            do {
+                frame = mDecoder.readFrame(mIn);
+            } while (frame != null && frame.type != Frame.TYPE_DISCONNECT_ACK);
+            confirmed = true;
+        } catch (IOException e) {
+            // aborted by the deadline, or the link went down
+        } finally {
+            deadline.cancel(false);
+        }
+        abort();
+        mDecoder.release();
+        return confirmed;
+    }
+
+    /**
+     * Close the connection without telling the peer.
+     */
+    public void abort() {
+        mClosed = true;
+        mQueue.close();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.krp.social.nearby;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The peers nearby, each with the time it was last seen. Peers not seen for the TTL
+ * expire, and past the maximum size the least recently seen peer is evicted, so the
+ * table stays bounded however long the app runs.
+ *
+ * Expiry runs on a hashed timer wheel: a peer sits in the slot of the tick it expires
+ * in, so seeing it again and expiring it cost O(1), and each tick only looks at one
+ * slot. A peer seen again is not moved right away; when its old slot comes up it is
+ * put in the slot of its new deadline instead.
+ *
+ * Not thread safe; the dashboard uses it from the main thread.
+ */
+public class PeerTable {
+    public static final int DEFAULT_MAX_PEERS = 500;
+    public static final long DEFAULT_TTL_MILLIS = 15 * 60 * 1000;
+    public static final long DEFAULT_TICK_MILLIS = 10 * 1000;
+
+    // Slots of the wheel, one turn covers 128 ticks
+    private static final int WHEEL_SLOTS = 128;
+
+    /**
+     * Told about peers leaving the table by expiry or eviction.
+     */
+    public interface Listener {
+        void onPeerRemoved(Device device);
+    }
+
+    private static class Slot {
+        Device device;
+        long expiresAt;
+        // neighbours in the wheel slot
+        Slot prev;
+        Slot next;
+        int wheelIndex = -1;
+    }
+
+    private final int mMaxPeers;
+    private final long mTtlMillis;
+    private final long mTickMillis;
+    private final Listener mListener;
+    // least recently seen first
+    private final LinkedHashMap<String, Slot> mPeers =
+            new LinkedHashMap<String, Slot>(16, 0.75f, true);
+    private final Slot[] mWheel = new Slot[WHEEL_SLOTS];
+    private long mCurrentTick = -1;
+
+    private long mExpired;
+    private long mEvicted;
+
+    public PeerTable(Listener listener) {
+        this(DEFAULT_MAX_PEERS, DEFAULT_TTL_MILLIS, DEFAULT_TICK_MILLIS, listener);
+    }
+
+    /**
+     * @param maxPeers   Peers kept at most
+     * @param ttlMillis  How long a peer not seen again is kept
+     * @param tickMillis Resolution of the expiry, peers expire up to this late;
+     *                   {@link #expire(long)} should be called about this often
+     * @param listener   Told about removed peers, may be null
+     */
+    public PeerTable(int maxPeers, long ttlMillis, long tickMillis, Listener listener) {
+        if (maxPeers < 1 || ttlMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Bad peer table settings");
+        }
+        mMaxPeers = maxPeers;
+        mTtlMillis = ttlMillis;
+        mTickMillis = tickMillis;
+        mListener = listener;
+    }
+
+    /**
+     * @return the peer with the address, or null
+     */
+    public Device get(String address) {
+        Slot slot = mPeers.get(address);
+        return slot == null ? null : slot.device;
+    }
+
+    public boolean contains(String address) {
+        return mPeers.containsKey(address);
+    }
+
+    public int size() {
+        return mPeers.size();
+    }
+
+    /**
+     * Add a peer or replace the one with the same address, seen now. Evicts the least
+     * recently seen peer if the table is full.
+     */
+    public void put(Device device, long now) {
+        Slot slot = mPeers.get(device.address);
+        if (slot == null) {
+            if (mPeers.size() >= mMaxPeers) {
+                Slot eldest = mPeers.values().iterator().next();
+                remove(eldest);
+                mEvicted++;
+                notifyRemoved(eldest.device);
+            }
+            slot = new Slot();
+            mPeers.put(device.address, slot);
+        }
+        slot.device = device;
+        slot.expiresAt = now + mTtlMillis;
+        if (slot.wheelIndex < 0) {
+            schedule(slot, now);
+        }
+    }
+
+    /**
+     * Note a peer was seen again now.
+     *
+     * @return false if the peer is not in the table
+     */
+    public boolean touch(String address, long now) {
+        Slot slot = mPeers.get(address);
+        if (slot == null) {
+            return false;
+        }
+        // the wheel catches up when the old slot comes up
+        slot.expiresAt = now + mTtlMillis;
+        return true;
+    }
+
+    /**
+     * @return the removed peer, or null
+     */
+    public Device remove(String address) {
+        Slot slot = mPeers.get(address);
+        if (slot == null) {
+            return null;
+        }
+        remove(slot);
+        return slot.device;
+    }
+
+    /**
+     * Turn the wheel up to now, removing the peers whose time is up.
+     */
+    public void expire(long now) {
+        long target = now / mTickMillis;
+        if (mCurrentTick < 0) {
+            mCurrentTick = target;
+            return;
+        }
+        // past a whole turn every slot has been looked at once
+        long from = Math.max(mCurrentTick + 1, target - WHEEL_SLOTS + 1);
+        for (long tick = from; tick <= target; tick++) {
+            int index = (int) (tick % WHEEL_SLOTS);
+            Slot slot = mWheel[index];
+            while (slot != null) {
+                Slot next = slot.next;
+                if (slot.expiresAt <= now) {
+                    remove(slot);
+                    mExpired++;
+                    notifyRemoved(slot.device);
+                } else if (tickOf(slot.expiresAt) != tick) {
+                    // seen again, or due in a later turn
+                    unlink(slot);
+                    link(slot, tickOf(slot.expiresAt));
+                }
+                slot = next;
+            }
+        }
+        mCurrentTick = Math.max(mCurrentTick, target);
+    }
+
+    /**
+     * @return peers removed for not being seen within the TTL
+     */
+    public long getExpiredCount() {
+        return mExpired;
+    }
+
+    /**
+     * @return peers removed to make room for new ones
+     */
+    public long getEvictedCount() {
+        return mEvicted;
+    }
+
+    private void schedule(Slot slot, long now) {
+        if (mCurrentTick < 0) {
+            mCurrentTick = now / mTickMillis;
+        }
+        link(slot, tickOf(slot.expiresAt));
+    }
+
+    /**
+     * @return the first tick at or after a time, so a peer is never expired early
+     */
+    private long tickOf(long time) {
+        return (time + mTickMillis - 1) / mTickMillis;
+    }
+
+    private void link(Slot slot, long tick) {
+        // a deadline already passed is handled on the next tick
+        int index = (int) (Math.max(tick, mCurrentTick + 1) % WHEEL_SLOTS);
+        slot.wheelIndex = index;
+        slot.prev = null;
+        slot.next = mWheel[index];
+        if (slot.next != null) {
+            slot.next.prev = slot;
+        }
+        mWheel[index] = slot;
+    }
+
+    private void unlink(Slot slot) {
+        if (slot.prev != null) {
+            slot.prev.next = slot.next;
+        } else {
+            mWheel[slot.wheelIndex] = slot.next;
+        }
+        if (slot.next != null) {
+            slot.next.prev = slot.prev;
+        }
+        slot.prev = null;
+        slot.next = null;
+        slot.wheelIndex = -1;
+    }
+
+    private void remove(Slot slot) {
+        mPeers.remove(slot.device.address);
+        unlink(slot);
+    }
+
+    private void notifyRemoved(Device device) {
+        if (mListener != null) {
+            mListener.onPeerRemoved(device);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerTable{" +
+                "peers=" + mPeers.size() +
+                ", expired=" + mExpired +
+                ", evicted=" + mEvicted +
+                '}';
+    }
+}
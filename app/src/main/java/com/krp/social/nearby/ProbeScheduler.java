@@ -0,0 +1,281 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs presence probes on a bounded pool of worker threads.
+ *
+ * Probes which can not start right away wait in a bounded pending queue, so a crowded room
+ * costs queue slots instead of threads. The queue is ordered by signal strength: a probe
+ * ranks by the time it was queued, moved ahead by a few seconds the stronger the signal
+ * of its device. The person next to you is probed before a device about to drop out of
+ * range, yet a weak device is passed only by probes queued a little after it, so it
+ * reaches the front eventually.
+ *
+ * While the queue is full the lowest ranked probe is dropped and counted, the new one if
+ * it ranks lowest; the next discovery cycle reports those devices again anyway.
+ */
+public class ProbeScheduler {
+    public static final int DEFAULT_MAX_CONCURRENT_PROBES = 3;
+    public static final int DEFAULT_MAX_PENDING_PROBES = 64;
+
+    // Signal strength of a device which reported none, as EXTRA_RSSI does
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+    // Assumed for devices which reported none: an average room
+    private static final int RSSI_DEFAULT = -75;
+    // Signal strengths are clamped to this range, in dBm
+    private static final int RSSI_FLOOR = -100;
+    private static final int RSSI_CEILING = -30;
+    // How far each dB above the floor moves a probe ahead of those queued before it
+    private static final long MILLIS_PER_DB = 100;
+
+    // Idle workers are released after this long, so a quiet room costs no threads
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int mMaxPendingProbes;
+    private final long mStartTime;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+    private final AtomicLong mWaitMillis = new AtomicLong();
+
+    /**
+     * A probe which is told when it is dropped from the queue to make room, as it will
+     * then never run.
+     */
+    public interface DroppableProbe extends Runnable {
+        void onDropped();
+    }
+
+    /**
+     * A queued probe with its rank, lowest first.
+     */
+    private class RankedProbe implements Runnable, Comparable<RankedProbe> {
+        private final Runnable mmProbe;
+        private final long mmQueuedAt;
+        private final long mmRank;
+        private final long mmSequence;
+
+        RankedProbe(Runnable probe, int rssi, long now) {
+            mmProbe = probe;
+            mmQueuedAt = now;
+            if (rssi == RSSI_UNKNOWN) {
+                rssi = RSSI_DEFAULT;
+            }
+            rssi = Math.max(RSSI_FLOOR, Math.min(rssi, RSSI_CEILING));
+            mmRank = now - (rssi - RSSI_FLOOR) * MILLIS_PER_DB;
+            mmSequence = mSequence.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            mWaitMillis.addAndGet(Math.max(0, System.currentTimeMillis() - mmQueuedAt));
+            mmProbe.run();
+        }
+
+        @Override
+        public int compareTo(RankedProbe another) {
+            if (mmRank != another.mmRank) {
+                return mmRank < another.mmRank ? -1 : 1;
+            }
+            return mmSequence < another.mmSequence ? -1 : (mmSequence == another.mmSequence ? 0 : 1);
+        }
+    }
+
+    public ProbeScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_PROBES, DEFAULT_MAX_PENDING_PROBES);
+    }
+
+    /**
+     * @param maxConcurrentProbes number of probes allowed to run at the same time
+     * @param maxPendingProbes number of probes allowed to wait for a free worker
+     */
+    public ProbeScheduler(int maxConcurrentProbes, int maxPendingProbes) {
+        if (maxConcurrentProbes < 1 || maxPendingProbes < 1) {
+            throw new IllegalArgumentException("Probe limits must be positive");
+        }
+        mMaxPendingProbes = maxPendingProbes;
+        mQueue = new PriorityBlockingQueue<Runnable>(Math.min(maxPendingProbes, 16));
+        mExecutor = new ThreadPoolExecutor(maxConcurrentProbes, maxConcurrentProbes,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, mQueue, new ProbeThreadFactory()) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                super.afterExecute(r, t);
+                mCompleted.incrementAndGet();
+            }
+        };
+        mExecutor.allowCoreThreadTimeOut(true);
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Queue a probe of a device whose signal strength is not known.
+     *
+     * @see #submit(Runnable, int)
+     */
+    public boolean submit(Runnable probe) {
+        return submit(probe, RSSI_UNKNOWN);
+    }
+
+    /**
+     * Queue a probe to run on a free worker, ranked by the signal strength of its device.
+     *
+     * @param probe The probe to run
+     * @param rssi  Signal strength of the device in dBm, or RSSI_UNKNOWN
+     * @return false if the probe was dropped because the pending queue is full of
+     *         higher ranked probes, or the scheduler has been shut down
+     */
+    public boolean submit(Runnable probe, int rssi) {
+        return submit(probe, rssi, System.currentTimeMillis());
+    }
+
+    synchronized boolean submit(Runnable probe, int rssi, long now) {
+        RankedProbe ranked = new RankedProbe(probe, rssi, now);
+        if (mQueue.size() >= mMaxPendingProbes) {
+            RankedProbe lowest = null;
+            for (Runnable queued : mQueue) {
+                RankedProbe candidate = (RankedProbe) queued;
+                if (lowest == null || candidate.compareTo(lowest) > 0) {
+                    lowest = candidate;
+                }
+            }
+            if (lowest == null || ranked.compareTo(lowest) > 0) {
+                mRejected.incrementAndGet();
+                return false;
+            }
+            if (mQueue.remove(lowest)) {
+                mEvicted.incrementAndGet();
+                if (lowest.mmProbe instanceof DroppableProbe) {
+                    ((DroppableProbe) lowest.mmProbe).onDropped();
+                }
+            }
+        }
+        try {
+            mExecutor.execute(ranked);
+        } catch (RejectedExecutionException e) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        mSubmitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Change the number of probes allowed to run at the same time.
+     * Running probes are not interrupted when the cap is lowered.
+     */
+    public void setMaxConcurrentProbes(int maxConcurrentProbes) {
+        if (maxConcurrentProbes < 1) {
+            throw new IllegalArgumentException("Probe limits must be positive");
+        }
+        // core size may never exceed the maximum size, so order the updates accordingly
+        if (maxConcurrentProbes > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(maxConcurrentProbes);
+            mExecutor.setCorePoolSize(maxConcurrentProbes);
+        } else {
+            mExecutor.setCorePoolSize(maxConcurrentProbes);
+            mExecutor.setMaximumPoolSize(maxConcurrentProbes);
+        }
+    }
+
+    public int getMaxConcurrentProbes() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of probes waiting for a free worker
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * @return number of probes currently running
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return queued probes dropped to make room for higher ranked ones
+     */
+    public long getEvictedCount() {
+        return mEvicted.get();
+    }
+
+    /**
+     * @return average time a started probe waited in the queue
+     */
+    public long getMeanWaitMillis() {
+        long started = mCompleted.get() + getActiveCount();
+        return started == 0 ? 0 : mWaitMillis.get() / started;
+    }
+
+    /**
+     * @return completed probes per second since the scheduler was created
+     */
+    public double getThroughput() {
+        long elapsed = System.currentTimeMillis() - mStartTime;
+        return elapsed <= 0 ? 0 : mCompleted.get() * 1000d / elapsed;
+    }
+
+    /**
+     * Drop all pending probes and interrupt the running ones. Dropped probes are told,
+     * as when evicted.
+     */
+    public void shutdown() {
+        for (Runnable queued : mExecutor.shutdownNow()) {
+            Runnable probe = ((RankedProbe) queued).mmProbe;
+            if (probe instanceof DroppableProbe) {
+                ((DroppableProbe) probe).onDropped();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProbeScheduler{" +
+                "active=" + getActiveCount() +
+                ", queued=" + getQueueDepth() +
+                ", submitted=" + getSubmittedCount() +
+                ", completed=" + getCompletedCount() +
+                ", rejected=" + getRejectedCount() +
+                ", evicted=" + getEvictedCount() +
+                ", meanWaitMillis=" + getMeanWaitMillis() +
+                '}';
+    }
+
+    private static class ProbeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "NearByProbe-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
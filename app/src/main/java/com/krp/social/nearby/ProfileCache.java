@@ -0,0 +1,101 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers fetched profiles with their {@link ProfileCodec#digest() digest}, and the
+ * digest each device last announced on a discovery connection. While the two match the
+ * profile has not changed since it was fetched, and fetching it again would only cost
+ * a connection.
+ */
+public class ProfileCache {
+    private static class CachedProfile {
+        // digest announced on discovery, 0 if none
+        long announced;
+        // digest of the fetched profile
+        long digest;
+        User profile;
+    }
+
+    private final LruMap<String, CachedProfile> mEntries = new LruMap<>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Note the digest a device announced on a discovery connection.
+     */
+    public synchronized void announce(String address, long digest) {
+        entry(address).announced = digest;
+    }
+
+    /**
+     * Store a fetched profile.
+     *
+     * @param digest digest of the profile as it was sent
+     */
+    public synchronized void put(String address, long digest, User profile) {
+        CachedProfile entry = entry(address);
+        entry.digest = digest;
+        entry.profile = profile;
+    }
+
+    /**
+     * Store a profile remembered from an earlier run, unless one was fetched since.
+     */
+    public synchronized void seed(String address, long digest, User profile) {
+        CachedProfile entry = entry(address);
+        if (entry.profile == null) {
+            entry.digest = digest;
+            entry.profile = profile;
+        }
+    }
+
+    /**
+     * @return the cached profile of a device if it matches the digest the device last
+     * announced, else null and the profile must be fetched
+     */
+    public synchronized User getIfCurrent(String address) {
+        CachedProfile entry = mEntries.get(address);
+        if (entry == null || entry.profile == null || entry.announced == 0
+                || entry.announced != entry.digest) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.profile;
+    }
+
+    public synchronized void remove(String address) {
+        mEntries.remove(address);
+    }
+
+    /**
+     * @return number of fetches answered from the cache
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    private CachedProfile entry(String address) {
+        CachedProfile entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new CachedProfile();
+            mEntries.put(address, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ProfileCache{" +
+                "devices=" + mEntries.size() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                '}';
+    }
+}
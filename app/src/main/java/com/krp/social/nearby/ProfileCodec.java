@@ -0,0 +1,334 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of a {@link User} profile, sent as the payload of a
+ * {@link Frame#TYPE_PROFILE} frame.
+ *
+ * <pre>
+ *   version   1 byte
+ *   flags     1 byte   bit 0 male, bits 1..3 name/age/interests present, bit 4 age is text
+ *   age       varint, or varint length + UTF-8 when the age is not a plain number
+ *   name      varint length + UTF-8
+ *   interests varint length + UTF-8
+ * </pre>
+ * Absent fields take no bytes at all. Strings are always UTF-8, whatever the
+ * platform default charset.
+ *
+ * A profile sent on a discovery connection is followed by the 8 byte {@link #digest()}
+ * of the full profile, so a summary tells whether the full profile changed. Decoders
+ * which do not know the digest skip it like any trailing bytes.
+ *
+ * A codec keeps its scratch buffers between calls, so encoding and decoding allocate
+ * nothing but the decoded User and its strings. It must only be used by one thread.
+ */
+public class ProfileCodec {
+    public static final int VERSION = 1;
+
+    private static final int FLAG_MALE = 1;
+    private static final int FLAG_HAS_NAME = 1 << 1;
+    private static final int FLAG_HAS_AGE = 1 << 2;
+    private static final int FLAG_HAS_INTERESTS = 1 << 3;
+    private static final int FLAG_AGE_TEXT = 1 << 4;
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final int DIGEST_SIZE = 8;
+
+    // 64 bit FNV-1a
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mLength;
+    private char[] mChars = new char[INITIAL_BUFFER_SIZE];
+
+    // decoding position
+    private byte[] mIn;
+    private int mPos;
+    private int mEnd;
+    // end of the last decoded profile, where a digest may follow
+    private int mDecodedEnd;
+
+    /**
+     * Encode a profile into the codec's buffer.
+     *
+     * @return number of bytes written, available from {@link #getBuffer()}
+     */
+    public int encode(User user) {
+        int age = parseAge(user.age);
+        int flags = (user.male ? FLAG_MALE : 0)
+                | (user.username != null ? FLAG_HAS_NAME : 0)
+                | (user.age != null ? FLAG_HAS_AGE : 0)
+                | (user.interests != null ? FLAG_HAS_INTERESTS : 0)
+                | (user.age != null && age < 0 ? FLAG_AGE_TEXT : 0);
+
+        mLength = 0;
+        ensureCapacity(2);
+        mBuffer[mLength++] = (byte) VERSION;
+        mBuffer[mLength++] = (byte) flags;
+        if (user.age != null) {
+            if (age < 0) {
+                writeString(user.age);
+            } else {
+                writeVarInt(age);
+            }
+        }
+        if (user.username != null) {
+            writeString(user.username);
+        }
+        if (user.interests != null) {
+            writeString(user.interests);
+        }
+        return mLength;
+    }
+
+    /**
+     * @return the buffer holding the last encoded profile. It is reused by the next
+     * call to {@link #encode(User)}, so write it out before encoding again.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return length of the last encoded profile
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return digest of the last encoded profile, equal for equal profiles and never 0
+     */
+    public long digest() {
+        return digest(mBuffer, 0, mLength);
+    }
+
+    /**
+     * @return digest of an encoded profile, as sent in a {@link Frame#TYPE_PROFILE} frame
+     */
+    public static long digest(byte[] buffer, int offset, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= buffer[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        // 0 stands for an unknown digest
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Append a digest to the last encoded profile.
+     *
+     * @return the new length of the buffer contents
+     */
+    public int appendDigest(long digest) {
+        ensureCapacity(DIGEST_SIZE);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mBuffer[mLength++] = (byte) (digest >>> shift);
+        }
+        return mLength;
+    }
+
+    /**
+     * @return the digest following the last profile decoded from buffer, or 0 if the
+     * sender did not append one
+     */
+    public long decodeDigest(byte[] buffer) {
+        if (mEnd - mDecodedEnd < DIGEST_SIZE) {
+            return 0;
+        }
+        long digest = 0;
+        for (int i = mDecodedEnd; i < mDecodedEnd + DIGEST_SIZE; i++) {
+            digest = (digest << 8) | (buffer[i] & 0xff);
+        }
+        return digest;
+    }
+
+    public User decode(byte[] buffer) throws IOException {
+        return decode(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Decode a profile.
+     *
+     * @throws IOException if the bytes are truncated, malformed or of an unknown version
+     */
+    public User decode(byte[] buffer, int offset, int length) throws IOException {
+        mIn = buffer;
+        mPos = offset;
+        mEnd = offset + length;
+        try {
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported profile version " + version);
+            }
+            int flags = readByte();
+
+            String age = null;
+            if ((flags & FLAG_HAS_AGE) != 0) {
+                age = (flags & FLAG_AGE_TEXT) != 0 ? readString() : String.valueOf(readVarInt());
+            }
+            String name = (flags & FLAG_HAS_NAME) != 0 ? readString() : null;
+            String interests = (flags & FLAG_HAS_INTERESTS) != 0 ? readString() : null;
+
+            mDecodedEnd = mPos;
+            return new User(name, age, (flags & FLAG_MALE) != 0, interests);
+        } finally {
+            mIn = null;
+        }
+    }
+
+    /**
+     * @return the age as a non negative number, or -1 if it is not a plain number
+     */
+    private static int parseAge(String age) {
+        if (age == null || age.length() == 0 || age.length() > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < age.length(); i++) {
+            char c = age.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        // a leading zero would not survive the round trip
+        return age.length() > 1 && age.charAt(0) == '0' ? -1 : value;
+    }
+
+    private void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7f) != 0) {
+            mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void writeString(String value) {
+        int utf8Length = utf8Length(value);
+        writeVarInt(utf8Length);
+        ensureCapacity(utf8Length);
+
+        byte[] out = mBuffer;
+        int pos = mLength;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (isSurrogate(c)) {
+                // unpaired surrogate, encoded as '?' like String.getBytes() does
+                out[pos++] = (byte) '?';
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mLength = pos;
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Character.isSurrogate() needs API 19
+    private static boolean isSurrogate(char c) {
+        return c >= 0xd800 && c <= 0xdfff;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+            System.arraycopy(mBuffer, 0, grown, 0, mLength);
+            mBuffer = grown;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (mPos >= mEnd) {
+            throw new IOException("Truncated profile");
+        }
+        return mIn[mPos++] & 0xff;
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in profile");
+    }
+
+    private String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > mEnd - mPos) {
+            throw new IOException("Truncated profile");
+        }
+        if (mChars.length < length) {
+            // a UTF-8 string never has more chars than bytes
+            mChars = new char[Math.max(mChars.length * 2, length)];
+        }
+        char[] chars = mChars;
+        int count = 0;
+        int end = mPos + length;
+        byte[] in = mIn;
+        int pos = mPos;
+        while (pos < end) {
+            int b = in[pos++] & 0xff;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0 && pos < end) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (in[pos++] & 0x3f));
+            } else if ((b & 0xf0) == 0xe0 && pos + 1 < end) {
+                chars[count++] = (char) (((b & 0x0f) << 12)
+                        | ((in[pos++] & 0x3f) << 6) | (in[pos++] & 0x3f));
+            } else if ((b & 0xf8) == 0xf0 && pos + 2 < end) {
+                int codePoint = ((b & 0x07) << 18) | ((in[pos++] & 0x3f) << 12)
+                        | ((in[pos++] & 0x3f) << 6) | (in[pos++] & 0x3f);
+                chars[count++] = (char) (0xd7c0 + (codePoint >>> 10));
+                chars[count++] = (char) (0xdc00 + (codePoint & 0x3ff));
+            } else {
+                throw new IOException("Malformed UTF-8 in profile");
+            }
+        }
+        mPos = end;
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,9 @@
+package com.krp.social.nearby;
+
+/**
+ * Supplies the profile of the local user, which is sent to nearBy users on request.
+ */
+public interface ProfileProvider {
+
+    User getLocalProfile();
+}
@@ -0,0 +1,135 @@
+package com.krp.social.nearby;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the radio between inquiries, presence probes and the fetches the user waits
+ * for. An inquiry slows RFCOMM connects down badly, so probes queued during an inquiry
+ * wait for it to end and then go out together, in the pause before the next one. A
+ * fetch cuts a running inquiry short, and the inquiry runs again once the fetch is
+ * connected; probes wait for fetches to connect as well.
+ */
+public class RadioCoordinator {
+    // An inquiry lasts about 12 s; a probe never waits much longer than that
+    public static final long DEFAULT_MAX_PROBE_WAIT_MILLIS = 15 * 1000;
+
+    // How often a waiting probe checks the inquiry again
+    private static final long POLL_MILLIS = 250;
+
+    private volatile DiscoveryScheduler mScheduler;
+    private volatile long mMaxProbeWaitMillis = DEFAULT_MAX_PROBE_WAIT_MILLIS;
+    // guarded by this
+    private int mFetches;
+
+    private final AtomicLong mHeldProbes = new AtomicLong();
+    private final AtomicLong mHeldMillis = new AtomicLong();
+    private final AtomicLong mFetchCount = new AtomicLong();
+
+    /**
+     * @param scheduler The scheduler running the inquiries, null if they are not ours
+     */
+    public void setDiscoveryScheduler(DiscoveryScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Set how long a probe waits for the radio at most.
+     */
+    public void setMaxProbeWait(long maxMillis) {
+        mMaxProbeWaitMillis = maxMillis;
+    }
+
+    /**
+     * Wait until no inquiry runs and no fetch is connecting, or the longest wait passed.
+     * Called by a probe before it connects.
+     */
+    public void awaitProbeWindow() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + mMaxProbeWaitMillis;
+        boolean held = false;
+        synchronized (this) {
+            while (isBusy()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                held = true;
+                // the end of an inquiry is not signalled here, so look again shortly
+                wait(Math.min(left, POLL_MILLIS));
+            }
+        }
+        if (held) {
+            mHeldProbes.incrementAndGet();
+            mHeldMillis.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Keep the radio for a fetch about to connect, cutting a running inquiry short.
+     * Must be followed by {@link #endFetch()}.
+     */
+    public void beginFetch() {
+        synchronized (this) {
+            mFetches++;
+        }
+        mFetchCount.incrementAndGet();
+        DiscoveryScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.hold();
+        }
+    }
+
+    /**
+     * Note a fetch connected or failed to; waiting probes go first, then the inquiry
+     * cut short for it resumes.
+     */
+    public void endFetch() {
+        synchronized (this) {
+            mFetches--;
+            notifyAll();
+        }
+        DiscoveryScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * @return probes which had to wait for the radio
+     */
+    public long getHeldProbeCount() {
+        return mHeldProbes.get();
+    }
+
+    /**
+     * @return time probes spent waiting for the radio
+     */
+    public long getHeldMillis() {
+        return mHeldMillis.get();
+    }
+
+    /**
+     * @return fetches which held the radio
+     */
+    public long getFetchCount() {
+        return mFetchCount.get();
+    }
+
+    // callers hold the lock
+    private boolean isBusy() {
+        if (mFetches > 0) {
+            return true;
+        }
+        DiscoveryScheduler scheduler = mScheduler;
+        return scheduler != null && scheduler.isScanning();
+    }
+
+    @Override
+    public String toString() {
+        return "RadioCoordinator{" +
+                "heldProbes=" + getHeldProbeCount() +
+                ", heldMillis=" + getHeldMillis() +
+                ", fetches=" + getFetchCount() +
+                '}';
+    }
+}
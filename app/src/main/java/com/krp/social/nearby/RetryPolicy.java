@@ -0,0 +1,276 @@
+package com.krp.social.nearby;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tracks failed connects per device and decides when a device may be probed again.
+ *
+ * After a failure a device waits a backoff which doubles with every failure in a row,
+ * with some jitter so devices found together do not retry together. Once a device failed
+ * too often in a row its circuit opens: it is left alone for a long cooldown, then gets a
+ * single trial probe. A success at any point, or the device connecting to us, resets it
+ * right away.
+ */
+public class RetryPolicy {
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 2 * 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_FAILURES_TO_OPEN = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 60 * 1000;
+
+    // Backoffs are spread by up to this share either way
+    private static final double JITTER = 0.2;
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * Failure statistics of one device.
+     */
+    public static class Stats {
+        public final String address;
+        int state = STATE_CLOSED;
+        long attempts;
+        long failures;
+        int consecutiveFailures;
+        long lastFailureAt;
+        long lastSuccessAt;
+        long nextAttemptAt;
+        long skipped;
+
+        Stats(String address) {
+            this.address = address;
+        }
+
+        Stats(Stats other) {
+            address = other.address;
+            state = other.state;
+            attempts = other.attempts;
+            failures = other.failures;
+            consecutiveFailures = other.consecutiveFailures;
+            lastFailureAt = other.lastFailureAt;
+            lastSuccessAt = other.lastSuccessAt;
+            nextAttemptAt = other.nextAttemptAt;
+            skipped = other.skipped;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getLastFailureAt() {
+            return lastFailureAt;
+        }
+
+        public long getLastSuccessAt() {
+            return lastSuccessAt;
+        }
+
+        /**
+         * @return earliest time of the next probe, 0 if the device may be probed now
+         */
+        public long getNextAttemptAt() {
+            return nextAttemptAt;
+        }
+
+        /**
+         * @return number of probes held back by the backoff or the open circuit
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "address=" + address +
+                    ", state=" + state +
+                    ", attempts=" + attempts +
+                    ", failures=" + failures +
+                    ", consecutiveFailures=" + consecutiveFailures +
+                    ", nextAttemptAt=" + nextAttemptAt +
+                    ", skipped=" + skipped +
+                    '}';
+        }
+    }
+
+    private final Random mRandom;
+    private final LruMap<String, Stats> mDevices = new LruMap<>();
+    private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private int mFailuresToOpen = DEFAULT_FAILURES_TO_OPEN;
+    private long mOpenMillis = DEFAULT_OPEN_MILLIS;
+
+    public RetryPolicy() {
+        this(new Random());
+    }
+
+    RetryPolicy(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * @param initialMillis backoff after the first failure
+     * @param maxMillis     longest backoff while the circuit is closed
+     */
+    public synchronized void setBackoff(long initialMillis, long maxMillis) {
+        if (initialMillis <= 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Bad backoff " + initialMillis + ".." + maxMillis);
+        }
+        mInitialBackoffMillis = initialMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    /**
+     * @param failuresToOpen failures in a row which open the circuit of a device
+     * @param openMillis     how long an open circuit holds back probes
+     */
+    public synchronized void setCircuitBreaker(int failuresToOpen, long openMillis) {
+        if (failuresToOpen < 1 || openMillis <= 0) {
+            throw new IllegalArgumentException("Bad circuit breaker settings");
+        }
+        mFailuresToOpen = failuresToOpen;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Ask whether a device may be probed now. Counts the attempt if so; an open circuit
+     * whose cooldown is over lets a single trial probe through.
+     */
+    public boolean allowAttempt(String address) {
+        return allowAttempt(address, System.currentTimeMillis());
+    }
+
+    synchronized boolean allowAttempt(String address, long now) {
+        Stats stats = mDevices.get(address);
+        if (stats == null) {
+            stats = new Stats(address);
+            mDevices.put(address, stats);
+        }
+        if (stats.state == STATE_HALF_OPEN || now < stats.nextAttemptAt) {
+            // backing off, or the trial probe is still out
+            stats.skipped++;
+            return false;
+        }
+        if (stats.state == STATE_OPEN) {
+            stats.state = STATE_HALF_OPEN;
+        }
+        stats.attempts++;
+        return true;
+    }
+
+    /**
+     * Give back an attempt allowed by {@link #allowAttempt} whose probe never ran, so a
+     * trial probe of an open circuit can be made again.
+     */
+    public synchronized void cancelAttempt(String address) {
+        Stats stats = mDevices.get(address);
+        if (stats == null) {
+            return;
+        }
+        stats.attempts--;
+        if (stats.state == STATE_HALF_OPEN) {
+            stats.state = STATE_OPEN;
+        }
+    }
+
+    public void recordSuccess(String address) {
+        recordSuccess(address, System.currentTimeMillis());
+    }
+
+    synchronized void recordSuccess(String address, long now) {
+        Stats stats = mDevices.get(address);
+        if (stats == null) {
+            stats = new Stats(address);
+            mDevices.put(address, stats);
+        }
+        stats.state = STATE_CLOSED;
+        stats.consecutiveFailures = 0;
+        stats.nextAttemptAt = 0;
+        stats.lastSuccessAt = now;
+    }
+
+    public void recordFailure(String address) {
+        recordFailure(address, System.currentTimeMillis());
+    }
+
+    synchronized void recordFailure(String address, long now) {
+        Stats stats = mDevices.get(address);
+        if (stats == null) {
+            stats = new Stats(address);
+            mDevices.put(address, stats);
+        }
+        stats.failures++;
+        stats.consecutiveFailures++;
+        stats.lastFailureAt = now;
+
+        if (stats.state == STATE_HALF_OPEN || stats.consecutiveFailures >= mFailuresToOpen) {
+            // the trial failed too, or this is one failure too many: stop trying for a while
+            stats.state = STATE_OPEN;
+            stats.nextAttemptAt = now + jitter(mOpenMillis);
+        } else {
+            int exponent = Math.min(stats.consecutiveFailures - 1, 30);
+            long backoff = Math.min(mInitialBackoffMillis << exponent, mMaxBackoffMillis);
+            stats.nextAttemptAt = now + jitter(backoff);
+        }
+    }
+
+    /**
+     * @return a snapshot of a device's statistics, or null if it is not known
+     */
+    public synchronized Stats getStats(String address) {
+        Stats stats = mDevices.get(address);
+        return stats == null ? null : new Stats(stats);
+    }
+
+    /**
+     * @return snapshots of all known devices, the most recently used last
+     */
+    public synchronized List<Stats> getAllStats() {
+        List<Stats> all = new ArrayList<>(mDevices.size());
+        for (Stats stats : mDevices.values()) {
+            all.add(new Stats(stats));
+        }
+        return all;
+    }
+
+    /**
+     * Forget everything about a device.
+     */
+    public synchronized void reset(String address) {
+        mDevices.remove(address);
+    }
+
+    @Override
+    public synchronized String toString() {
+        int open = 0;
+        for (Stats stats : mDevices.values()) {
+            if (stats.state != STATE_CLOSED) {
+                open++;
+            }
+        }
+        return "RetryPolicy{" +
+                "devices=" + mDevices.size() +
+                ", open=" + open +
+                '}';
+    }
+
+    private long jitter(long millis) {
+        double factor = 1 + JITTER * (2 * mRandom.nextDouble() - 1);
+        return Math.max(1, (long) (millis * factor));
+    }
+}
@@ -0,0 +1,20 @@
+package com.krp.social.nearby;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A listening endpoint handing out a connected {@link Channel} per incoming
+ * connection, modelled after {@link android.bluetooth.BluetoothServerSocket}.
+ */
+public interface ServerChannel extends Closeable {
+
+    /**
+     * Block until a connection is established. {@link #close()} from another
+     * thread aborts the call with an IOException.
+     */
+    Channel accept() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,179 @@
+package com.krp.social.nearby;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the service records of a device before a probe opens a socket to it, so only
+ * devices advertising our service are connected to.
+ *
+ * UUIDs the stack has cached are trusted when they list the service; otherwise the
+ * device is asked over SDP, as the cached ones may date from before the app was
+ * installed. Answers are kept per device. A device which does not answer in time is
+ * probed all the same.
+ */
+public class ServiceFilter {
+    public static final long DEFAULT_SDP_TIMEOUT_MILLIS = 2500;
+    public static final long DEFAULT_ADVERTISED_TTL_MILLIS = 30 * 60 * 1000;
+    public static final long DEFAULT_NOT_ADVERTISED_TTL_MILLIS = 10 * 60 * 1000;
+
+    // Outcomes of a check
+    public static final int UNKNOWN = 0;
+    public static final int ADVERTISED = 1;
+    public static final int NOT_ADVERTISED = 2;
+
+    private static class CachedCheck {
+        final int mmResult;
+        final long mmExpiresAt;
+
+        CachedCheck(int result, long expiresAt) {
+            mmResult = result;
+            mmExpiresAt = expiresAt;
+        }
+    }
+
+    private final ServiceRecordSource mSource;
+    private final UUID mService;
+    private final LruMap<String, CachedCheck> mChecks = new LruMap<>();
+    private volatile long mSdpTimeoutMillis = DEFAULT_SDP_TIMEOUT_MILLIS;
+    private volatile long mAdvertisedTtlMillis = DEFAULT_ADVERTISED_TTL_MILLIS;
+    private volatile long mNotAdvertisedTtlMillis = DEFAULT_NOT_ADVERTISED_TTL_MILLIS;
+
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mSdpFetches = new AtomicLong();
+    private final AtomicLong mAdvertised = new AtomicLong();
+    private final AtomicLong mFiltered = new AtomicLong();
+    private final AtomicLong mUnknown = new AtomicLong();
+
+    /**
+     * @param source  Where the service records come from
+     * @param service UUID of the service a device must advertise
+     */
+    public ServiceFilter(ServiceRecordSource source, UUID service) {
+        mSource = source;
+        mService = service;
+    }
+
+    /**
+     * Set how long to wait for a device to answer an SDP query.
+     */
+    public void setSdpTimeout(long timeoutMillis) {
+        mSdpTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param advertisedMillis    how long a device advertising the service is believed
+     * @param notAdvertisedMillis how long a device without it is skipped
+     */
+    public void setTtls(long advertisedMillis, long notAdvertisedMillis) {
+        mAdvertisedTtlMillis = advertisedMillis;
+        mNotAdvertisedTtlMillis = notAdvertisedMillis;
+    }
+
+    /**
+     * Check whether a device advertises the service. May block for an SDP query.
+     *
+     * @return one of ADVERTISED, NOT_ADVERTISED or UNKNOWN
+     */
+    public int check(String address) throws InterruptedException {
+        return check(address, System.currentTimeMillis());
+    }
+
+    int check(String address, long now) throws InterruptedException {
+        synchronized (mChecks) {
+            CachedCheck cached = mChecks.get(address);
+            if (cached != null && now < cached.mmExpiresAt) {
+                mCacheHits.incrementAndGet();
+                return count(cached.mmResult);
+            }
+        }
+
+        int result;
+        if (contains(mSource.getCachedUuids(address))) {
+            result = ADVERTISED;
+        } else {
+            mSdpFetches.incrementAndGet();
+            UUID[] uuids = mSource.fetchUuids(address, mSdpTimeoutMillis);
+            if (uuids == null) {
+                // no answer, let the probe find out
+                return count(UNKNOWN);
+            }
+            result = contains(uuids) ? ADVERTISED : NOT_ADVERTISED;
+        }
+
+        long ttl = result == ADVERTISED ? mAdvertisedTtlMillis : mNotAdvertisedTtlMillis;
+        synchronized (mChecks) {
+            mChecks.put(address, new CachedCheck(result, now + ttl));
+        }
+        return count(result);
+    }
+
+    /**
+     * Forget the answer of a device, so the next check asks it again.
+     */
+    public void invalidate(String address) {
+        synchronized (mChecks) {
+            mChecks.remove(address);
+        }
+    }
+
+    /**
+     * @return checks answered from the answers kept per device
+     */
+    public long getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    public long getSdpFetchCount() {
+        return mSdpFetches.get();
+    }
+
+    public long getAdvertisedCount() {
+        return mAdvertised.get();
+    }
+
+    /**
+     * @return checks which kept a probe from opening a socket
+     */
+    public long getFilteredCount() {
+        return mFiltered.get();
+    }
+
+    public long getUnknownCount() {
+        return mUnknown.get();
+    }
+
+    private boolean contains(UUID[] uuids) {
+        if (uuids == null) {
+            return false;
+        }
+        for (UUID uuid : uuids) {
+            if (mService.equals(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int count(int result) {
+        if (result == ADVERTISED) {
+            mAdvertised.incrementAndGet();
+        } else if (result == NOT_ADVERTISED) {
+            mFiltered.incrementAndGet();
+        } else {
+            mUnknown.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceFilter{" +
+                "cacheHits=" + getCacheHitCount() +
+                ", sdpFetches=" + getSdpFetchCount() +
+                ", advertised=" + getAdvertisedCount() +
+                ", filtered=" + getFilteredCount() +
+                ", unknown=" + getUnknownCount() +
+                '}';
+    }
+}
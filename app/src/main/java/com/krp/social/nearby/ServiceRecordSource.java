@@ -0,0 +1,23 @@
+package com.krp.social.nearby;
+
+import java.util.UUID;
+
+/**
+ * Tells which services a remote device advertises in its SDP records, without
+ * connecting to any of them.
+ */
+public interface ServiceRecordSource {
+
+    /**
+     * @return the service UUIDs last seen for the device, or null if none are known;
+     * they may be stale
+     */
+    UUID[] getCachedUuids(String address);
+
+    /**
+     * Ask the device for its service records, blocking until it answers.
+     *
+     * @return the service UUIDs of the device, or null if it did not answer in time
+     */
+    UUID[] fetchUuids(String address, long timeoutMillis) throws InterruptedException;
+}
@@ -0,0 +1,244 @@
+package com.krp.social.nearby;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps idle {@link PeerSession}s open, one per device address, so a repeated fetch from
+ * the same device skips the RFCOMM connect.
+ *
+ * Only idle sessions live in the pool: {@link #acquire(String)} takes a session out and
+ * {@link #release(PeerSession)} puts it back. Sessions idle for longer than the idle
+ * timeout are closed, and the least recently used ones are closed once more than the
+ * maximum number of sessions are idle. A session idle for a while is pinged before it
+ * is handed out again.
+ */
+public class SessionPool {
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_HEALTH_CHECK_AFTER_MILLIS = 5 * 1000;
+
+    // idle sessions in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, PeerSession> mIdle =
+            new LinkedHashMap<String, PeerSession>(16, 0.75f, true);
+
+    private final ScheduledThreadPoolExecutor mReaper;
+    private final Runnable mReapTask = new Runnable() {
+        @Override
+        public void run() {
+            evictIdle();
+        }
+    };
+
+    private volatile int mMaxSessions;
+    private volatile long mIdleTimeoutMillis;
+    private volatile long mHealthCheckAfterMillis;
+    private boolean mShutdown;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mHealthCheckFailures = new AtomicLong();
+
+    public SessionPool() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_HEALTH_CHECK_AFTER_MILLIS);
+    }
+
+    /**
+     * @param maxSessions            number of idle sessions kept open, 0 disables pooling
+     * @param idleTimeoutMillis      idle sessions are closed after this long
+     * @param healthCheckAfterMillis sessions idle for longer than this are pinged before reuse
+     */
+    public SessionPool(int maxSessions, long idleTimeoutMillis, long healthCheckAfterMillis) {
+        setMaxSessions(maxSessions);
+        setIdleTimeout(idleTimeoutMillis);
+        setHealthCheckAfter(healthCheckAfterMillis);
+
+        mReaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NearBySessionReaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mReaper.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mReaper.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Take the idle session to a device out of the pool.
+     *
+     * @return a live session, or null if there is none and the caller has to connect
+     */
+    public PeerSession acquire(String address) {
+        PeerSession session;
+        synchronized (this) {
+            session = mIdle.remove(address);
+        }
+
+        if (session != null && session.getIdleTime() > mIdleTimeoutMillis) {
+            mEvictions.incrementAndGet();
+            session.close();
+            session = null;
+        }
+        if (session != null && session.getIdleTime() > mHealthCheckAfterMillis
+                && !session.ping()) {
+            mHealthCheckFailures.incrementAndGet();
+            session.abort();
+            session = null;
+        }
+
+        if (session == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return session;
+    }
+
+    /**
+     * Put a session back after use.
+     *
+     * @return false if the session was not pooled, because pooling is disabled or the
+     * pool has been shut down; the caller still owns the session and has to close it
+     */
+    public boolean release(PeerSession session) {
+        if (session.isClosed()) {
+            return false;
+        }
+
+        List<PeerSession> toClose = new ArrayList<>(2);
+        synchronized (this) {
+            if (mShutdown || mMaxSessions == 0) {
+                return false;
+            }
+            PeerSession replaced = mIdle.put(session.getAddress(), session);
+            if (replaced != null) {
+                toClose.add(replaced);
+            }
+            Iterator<PeerSession> eldest = mIdle.values().iterator();
+            while (mIdle.size() > mMaxSessions) {
+                toClose.add(eldest.next());
+                eldest.remove();
+                mEvictions.incrementAndGet();
+            }
+            mReaper.schedule(mReapTask, mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        for (PeerSession closing : toClose) {
+            closing.close();
+        }
+        return true;
+    }
+
+    /**
+     * Close every session which has been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        List<PeerSession> toClose = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PeerSession> iterator = mIdle.values().iterator();
+            while (iterator.hasNext()) {
+                PeerSession session = iterator.next();
+                if (session.getIdleTime() >= mIdleTimeoutMillis) {
+                    iterator.remove();
+                    toClose.add(session);
+                }
+            }
+        }
+        mEvictions.addAndGet(toClose.size());
+        for (PeerSession session : toClose) {
+            session.close();
+        }
+    }
+
+    /**
+     * Close all idle sessions.
+     */
+    public void clear() {
+        List<PeerSession> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<>(mIdle.values());
+            mIdle.clear();
+        }
+        for (PeerSession session : toClose) {
+            session.close();
+        }
+    }
+
+    /**
+     * Close all idle sessions and stop pooling; later calls to release() return false.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        clear();
+        mReaper.shutdownNow();
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 0) {
+            throw new IllegalArgumentException("maxSessions < 0");
+        }
+        mMaxSessions = maxSessions;
+    }
+
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeout <= 0");
+        }
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setHealthCheckAfter(long healthCheckAfterMillis) {
+        mHealthCheckAfterMillis = healthCheckAfterMillis;
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public long getHealthCheckFailureCount() {
+        return mHealthCheckFailures.get();
+    }
+
+    /**
+     * @return share of acquire calls served by a pooled session, 0 before the first call
+     */
+    public double getHitRate() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionPool{" +
+                "idle=" + getIdleCount() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() +
+                ", healthCheckFailures=" + getHealthCheckFailureCount() +
+                '}';
+    }
+}
@@ -0,0 +1,312 @@
+package com.krp.social.nearby;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many sessions with nearby devices at the same time, each on a thread of its own.
+ *
+ * At most maxSessions run at once, and at most maxSessionsPerPeer of them with the same
+ * device. Sessions over the limit wait, and a freed slot goes to the waiting devices in
+ * turn, so one busy device can not starve the others. A session waiting at full capacity
+ * makes the table close the longest idle running session to make room; a session which
+ * is moving data is never cut off.
+ */
+public class SessionTable {
+    public static final int DEFAULT_MAX_SESSIONS = 8;
+    public static final int DEFAULT_MAX_SESSIONS_PER_PEER = 2;
+
+    /**
+     * A session with one device. It reports when it waits for the peer, so the table
+     * knows which sessions it may close.
+     */
+    public abstract static class Session implements Runnable {
+        private final String mAddress;
+        private volatile boolean mIdle;
+        private volatile long mIdleSince;
+        private volatile long mStartedAt;
+        private boolean mEvicted;
+
+        protected Session(String address) {
+            mAddress = address == null ? "" : address;
+        }
+
+        /**
+         * Close the session's connection, which makes run() return.
+         */
+        public abstract void cancel();
+
+        /**
+         * Mark the session as waiting for the peer, or as moving data again.
+         */
+        protected void setIdle(boolean idle) {
+            if (idle && !mIdle) {
+                mIdleSince = System.currentTimeMillis();
+            }
+            mIdle = idle;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public boolean isIdle() {
+            return mIdle;
+        }
+
+        /**
+         * @return when the session started running, 0 while it waits for a slot
+         */
+        public long getStartedAt() {
+            return mStartedAt;
+        }
+    }
+
+    private final String mName;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    // all below guarded by this
+    private int mMaxSessions;
+    private int mMaxSessionsPerPeer;
+    private boolean mShutdown;
+    private final List<Session> mRunning = new ArrayList<>();
+    // waiting sessions per device; a device which gets a slot moves to the back
+    private final LinkedHashMap<String, ArrayDeque<Session>> mWaiting = new LinkedHashMap<>();
+    private int mWaitingCount;
+    private int mPeakRunning;
+
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+
+    /**
+     * @param name Prefix of the session thread names
+     */
+    public SessionTable(String name) {
+        this(name, DEFAULT_MAX_SESSIONS, DEFAULT_MAX_SESSIONS_PER_PEER);
+    }
+
+    public SessionTable(String name, int maxSessions, int maxSessionsPerPeer) {
+        mName = name;
+        setLimits(maxSessions, maxSessionsPerPeer);
+    }
+
+    /**
+     * Change the limits. Running sessions are not cut off when a limit is lowered.
+     */
+    public void setLimits(int maxSessions, int maxSessionsPerPeer) {
+        if (maxSessions < 1 || maxSessionsPerPeer < 1) {
+            throw new IllegalArgumentException("Session limits must be positive");
+        }
+        synchronized (this) {
+            mMaxSessions = maxSessions;
+            mMaxSessionsPerPeer = maxSessionsPerPeer;
+            schedule();
+        }
+    }
+
+    /**
+     * Run a session as soon as there is a slot for it.
+     *
+     * @return false if the table has been shut down; the session is cancelled then
+     */
+    public boolean submit(Session session) {
+        Session evict = null;
+        synchronized (this) {
+            if (mShutdown) {
+                session.cancel();
+                return false;
+            }
+            ArrayDeque<Session> queue = mWaiting.get(session.getAddress());
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mWaiting.put(session.getAddress(), queue);
+            }
+            queue.add(session);
+            mWaitingCount++;
+            schedule();
+            if (session.mStartedAt == 0) {
+                evict = findIdle(session.getAddress());
+                if (evict != null) {
+                    evict.mEvicted = true;
+                }
+            }
+        }
+
+        if (evict != null) {
+            // its slot goes to the next waiting session once its thread ends
+            mEvicted.incrementAndGet();
+            evict.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Cancel all running and waiting sessions, and every session submitted later.
+     */
+    public void shutdown() {
+        List<Session> cancel = new ArrayList<>();
+        synchronized (this) {
+            mShutdown = true;
+            cancel.addAll(mRunning);
+            for (ArrayDeque<Session> queue : mWaiting.values()) {
+                cancel.addAll(queue);
+            }
+            mWaiting.clear();
+            mWaitingCount = 0;
+        }
+        for (Session session : cancel) {
+            session.cancel();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * @return a snapshot of the running sessions
+     */
+    public synchronized List<Session> getRunningSessions() {
+        return new ArrayList<>(mRunning);
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaitingCount;
+    }
+
+    /**
+     * @return the most sessions that ran at the same time
+     */
+    public synchronized int getPeakRunningCount() {
+        return mPeakRunning;
+    }
+
+    public long getStartedCount() {
+        return mStarted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return number of idle sessions closed to make room for waiting ones
+     */
+    public long getEvictedCount() {
+        return mEvicted.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionTable{" +
+                "name=" + mName +
+                ", running=" + mRunning.size() +
+                ", waiting=" + mWaitingCount +
+                ", peak=" + mPeakRunning +
+                ", started=" + getStartedCount() +
+                ", completed=" + getCompletedCount() +
+                ", evicted=" + getEvictedCount() +
+                '}';
+    }
+
+    /**
+     * Start waiting sessions while there are free slots, taking devices in turn.
+     * Callers hold the lock.
+     */
+    private void schedule() {
+        boolean started = true;
+        while (started && mWaitingCount > 0 && mRunning.size() < mMaxSessions) {
+            started = false;
+            Iterator<Map.Entry<String, ArrayDeque<Session>>> peers = mWaiting.entrySet().iterator();
+            while (peers.hasNext()) {
+                Map.Entry<String, ArrayDeque<Session>> peer = peers.next();
+                if (runningWith(peer.getKey()) >= mMaxSessionsPerPeer) {
+                    continue;
+                }
+                ArrayDeque<Session> queue = peer.getValue();
+                Session session = queue.poll();
+                mWaitingCount--;
+                // requeue the device behind the others
+                peers.remove();
+                if (!queue.isEmpty()) {
+                    mWaiting.put(peer.getKey(), queue);
+                }
+                start(session);
+                started = true;
+                break;
+            }
+        }
+    }
+
+    // callers hold the lock
+    private void start(final Session session) {
+        mRunning.add(session);
+        mPeakRunning = Math.max(mPeakRunning, mRunning.size());
+        session.mStartedAt = System.currentTimeMillis();
+        mStarted.incrementAndGet();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.run();
+                } finally {
+                    finished(session);
+                }
+            }
+        }, mName + "-" + mThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized void finished(Session session) {
+        mRunning.remove(session);
+        mCompleted.incrementAndGet();
+        if (!mShutdown) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return the longest idle running session to close for a session of the given
+     * device, or null if it has to wait for a session to end by itself
+     */
+    private Session findIdle(String address) {
+        // a device at its own limit can only make room by closing one of its sessions
+        boolean peerFull = runningWith(address) >= mMaxSessionsPerPeer;
+        if (!peerFull && mRunning.size() < mMaxSessions) {
+            return null;
+        }
+        Session idlest = null;
+        for (Session running : mRunning) {
+            if (!running.isIdle() || running.mEvicted || (peerFull && !address.equals(running.getAddress()))) {
+                continue;
+            }
+            if (idlest == null || running.mIdleSince < idlest.mIdleSince) {
+                idlest = running;
+            }
+        }
+        return idlest;
+    }
+
+    private int runningWith(String address) {
+        int count = 0;
+        for (Session running : mRunning) {
+            if (address.equals(running.getAddress())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,155 @@
+package com.krp.social.nearby;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link Transport} over TCP sockets bound to the loopback interface. Every service
+ * gets an ephemeral port which is published in the shared {@link Directory}, so
+ * several endpoints can run in one JVM and talk through the real network stack.
+ *
+ * The connecting side sends its address and name right after connecting, as TCP
+ * has nothing like the remote BluetoothDevice to identify the peer.
+ */
+public class TcpLoopbackTransport implements Transport {
+    private final Directory mDirectory;
+    private final String mAddress;
+    private final String mName;
+
+    /**
+     * @param directory The port directory shared by all endpoints able to reach each other
+     * @param address   Address of this endpoint
+     * @param name      Friendly name of this endpoint
+     */
+    public TcpLoopbackTransport(Directory directory, String address, String name) {
+        mDirectory = directory;
+        mAddress = address;
+        mName = name;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID service) throws IOException {
+        String key = Directory.key(mAddress, service);
+        ServerSocket serverSocket = new ServerSocket(0, 50, loopback());
+        if (mDirectory.mPorts.putIfAbsent(key, serverSocket.getLocalPort()) != null) {
+            serverSocket.close();
+            throw new IOException("Service " + service + " already listening on " + mAddress);
+        }
+        return new TcpServerChannel(key, serverSocket);
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID service) {
+        return new TcpChannel(new Socket(), address, null, Directory.key(address, service));
+    }
+
+    private static InetAddress loopback() throws IOException {
+        return InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * Maps the address and service of every listening endpoint to its loopback port.
+     */
+    public static class Directory {
+        private final ConcurrentMap<String, Integer> mPorts = new ConcurrentHashMap<>();
+
+        private static String key(String address, UUID service) {
+            return address + '/' + service;
+        }
+    }
+
+    private class TcpServerChannel implements ServerChannel {
+        private final String mKey;
+        private final ServerSocket mServerSocket;
+
+        TcpServerChannel(String key, ServerSocket serverSocket) {
+            mKey = key;
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            try {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String address = in.readUTF();
+                String name = in.readUTF();
+                return new TcpChannel(socket, address, name.isEmpty() ? null : name, null);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDirectory.mPorts.remove(mKey, mServerSocket.getLocalPort());
+            mServerSocket.close();
+        }
+    }
+
+    private class TcpChannel implements Channel {
+        private final Socket mSocket;
+        private final String mRemoteAddress;
+        private final String mRemoteName;
+        private final String mKey;
+
+        TcpChannel(Socket socket, String remoteAddress, String remoteName, String key) {
+            mSocket = socket;
+            mRemoteAddress = remoteAddress;
+            mRemoteName = remoteName;
+            mKey = key;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            Integer port = mDirectory.mPorts.get(mKey);
+            if (port == null) {
+                throw new IOException("Connection refused: " + mKey);
+            }
+            mSocket.connect(new InetSocketAddress(loopback(), port));
+            mSocket.setTcpNoDelay(true);
+
+            DataOutputStream out = new DataOutputStream(mSocket.getOutputStream());
+            out.writeUTF(mAddress);
+            out.writeUTF(mName == null ? "" : mName);
+            out.flush();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteName;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.krp.social.nearby;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The link layer used by {@link BluetoothConnectionService}. Bluetooth RFCOMM is the
+ * production implementation; the in-memory and TCP loopback implementations let the
+ * protocol run on a plain JVM without any radio.
+ */
+public interface Transport {
+
+    /**
+     * Start listening for incoming connections to the given service.
+     *
+     * @param name    Service name, used for the SDP record on Bluetooth
+     * @param service UUID identifying the service
+     */
+    ServerChannel listen(String name, UUID service) throws IOException;
+
+    /**
+     * Create an unconnected channel to a service on a remote device.
+     * Call {@link Channel#connect()} to establish the connection.
+     *
+     * @param address Address of the remote device
+     * @param service UUID identifying the service
+     */
+    Channel createChannel(String address, UUID service) throws IOException;
+}
@@ -0,0 +1,51 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AcceptLoopTest {
+    private static final UUID SERVICE = UUID.fromString("00000000-0000-0000-0000-00000000000a");
+
+    @Test
+    public void reopensServiceAfterFailure() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        InMemoryTransport bob = new InMemoryTransport(network, "00:00:00:00:00:02", "bob");
+        // somebody else holds the service, so listening fails for now
+        ServerChannel squatter = bob.listen("squatter", SERVICE);
+
+        final LinkedBlockingQueue<Channel> accepted = new LinkedBlockingQueue<>();
+        AcceptLoop loop = new AcceptLoop(bob, "test", SERVICE, new AcceptLoop.Handler() {
+            @Override
+            public void onAccepted(Channel channel) {
+                accepted.add(channel);
+            }
+        });
+        loop.setBackoff(10, 40);
+        loop.start();
+        try {
+            Thread.sleep(100);
+            assertFalse(loop.isListening());
+            assertTrue(loop.getFailureCount() >= 2);
+
+            squatter.close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!loop.isListening() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(loop.isListening());
+
+            InMemoryTransport alice = new InMemoryTransport(network, "00:00:00:00:00:01", "alice");
+            alice.createChannel("00:00:00:00:00:02", SERVICE).connect();
+            Channel channel = accepted.poll(5, TimeUnit.SECONDS);
+            assertEquals("00:00:00:00:00:01", channel.getRemoteAddress());
+            assertEquals(1, loop.getAcceptedCount());
+        } finally {
+            loop.cancel();
+        }
+    }
+}
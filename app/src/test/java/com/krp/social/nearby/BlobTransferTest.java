@@ -0,0 +1,100 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlobTransferTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    @Test
+    public void resumesFromLastChunkAfterDrop() throws Exception {
+        final byte[] photo = new byte[200 * 1024 + 17];
+        new Random(1).nextBytes(photo);
+        BlobProvider provider = provider(photo);
+        BlobTransfer transfer = new BlobTransfer("00:00:00:00:00:02", BlobTransfer.KIND_PROFILE_IMAGE);
+
+        // the link drops after 50 chunks
+        List<Frame> frames = serve(transfer.request(CHUNK_SIZE), provider);
+        for (int i = 0; i < 50; i++) {
+            assertFalse(transfer.onFrame(frames.get(i)));
+        }
+        assertEquals(50 * CHUNK_SIZE, transfer.getReceived());
+        assertFalse(transfer.isComplete());
+
+        // only the rest is sent again
+        frames = serve(transfer.request(CHUNK_SIZE), provider);
+        assertEquals(photo.length / CHUNK_SIZE + 1 - 50 + 1, frames.size());
+        boolean over = false;
+        for (Frame frame : frames) {
+            over = transfer.onFrame(frame);
+        }
+        assertTrue(over);
+        assertTrue(transfer.isComplete());
+        assertEquals(1, transfer.getResumeCount());
+        assertTrue(Arrays.equals(photo, transfer.getData()));
+    }
+
+    @Test
+    public void changedPayloadStartsOver() throws Exception {
+        byte[] photo = new byte[4 * CHUNK_SIZE];
+        BlobTransfer transfer = new BlobTransfer("00:00:00:00:00:02", BlobTransfer.KIND_PROFILE_IMAGE);
+        transfer.onFrame(serve(transfer.request(CHUNK_SIZE), provider(photo)).get(0));
+
+        byte[] newPhoto = new byte[3 * CHUNK_SIZE];
+        Arrays.fill(newPhoto, (byte) 7);
+        for (Frame frame : serve(transfer.request(CHUNK_SIZE), provider(newPhoto))) {
+            transfer.onFrame(frame);
+        }
+        assertTrue(Arrays.equals(newPhoto, transfer.getData()));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptChunkIsRejected() throws Exception {
+        BlobTransfer transfer = new BlobTransfer("00:00:00:00:00:02", BlobTransfer.KIND_PROFILE_IMAGE);
+        Frame chunk = serve(transfer.request(CHUNK_SIZE), provider(new byte[2 * CHUNK_SIZE])).get(0);
+        chunk.payload[chunk.payload.length - 1] ^= 1;
+        transfer.onFrame(chunk);
+    }
+
+    @Test
+    public void missingPayload() throws Exception {
+        BlobTransfer transfer = new BlobTransfer("00:00:00:00:00:02", BlobTransfer.KIND_PROFILE_IMAGE);
+        List<Frame> frames = serve(transfer.request(CHUNK_SIZE), provider(null));
+        assertEquals(1, frames.size());
+        assertTrue(transfer.onFrame(frames.get(0)));
+        assertTrue(transfer.isMissing());
+        assertNull(transfer.getData());
+    }
+
+    private static BlobProvider provider(final byte[] blob) {
+        return new BlobProvider() {
+            @Override
+            public byte[] getBlob(int kind) {
+                return blob;
+            }
+        };
+    }
+
+    private static List<Frame> serve(byte[] request, BlobProvider provider) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlobTransfer.serve(new Frame(Frame.TYPE_BLOB_REQUEST, request), provider,
+                new FrameWriter(out));
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        FrameDecoder decoder = new FrameDecoder();
+        List<Frame> frames = new ArrayList<>();
+        Frame frame;
+        while ((frame = decoder.readFrame(in)) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,621 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs discovery, profile fetch and the disconnect handshake between two
+ * services over the in-memory and the TCP loopback transports.
+ */
+public class BluetoothConnectionServiceTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void inMemory_discoveryAndFetch() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        runDiscoveryAndFetch(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"),
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"));
+    }
+
+    @Test
+    public void tcpLoopback_discoveryAndFetch() throws Exception {
+        TcpLoopbackTransport.Directory directory = new TcpLoopbackTransport.Directory();
+        runDiscoveryAndFetch(
+                new TcpLoopbackTransport(directory, "00:00:00:00:00:01", "alice"),
+                new TcpLoopbackTransport(directory, "00:00:00:00:00:02", "bob"));
+    }
+
+    @Test
+    public void twoConnectionMode_discoveryCarriesNoProfile() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener aliceEvents = new RecordingListener();
+        RecordingListener bobEvents = new RecordingListener();
+        BluetoothConnectionService alice = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), aliceEvents,
+                profile("Alice", "29", false, "chess"));
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"), bobEvents,
+                profile("Bob", "31", true, "hiking"));
+        alice.setCombinedSessionEnabled(false);
+        alice.getSessionPool().setMaxSessions(0);
+        alice.start();
+        bob.start();
+        try {
+            alice.connect("00:00:00:00:00:02");
+            assertNull(((Device) aliceEvents.await(Constants.NEAR_BY_USER_FOUND)).profile);
+            assertNull(((Device) bobEvents.await(Constants.NEAR_BY_USER_FOUND)).profile);
+
+            alice.fetch("00:00:00:00:00:02");
+            assertEquals("Bob", ((User) aliceEvents.await(Constants.MESSAGE_READ_OBJ)).username);
+            assertEquals("Disconnected", aliceEvents.await(777));
+            // the close is confirmed by bob instead of waiting out a fixed delay
+            assertEquals(1, alice.getCloseLatencyHistogram().getCount());
+            assertTrue(alice.getCloseLatencyHistogram().getPercentileMillis(100) < 100);
+            assertEquals(1, alice.getFetchLatencyHistogram().getCount());
+        } finally {
+            alice.stop();
+            bob.stop();
+        }
+    }
+
+    @Test
+    public void stalePooledSession_fallsBackToNewConnection() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener aliceEvents = new RecordingListener();
+        BluetoothConnectionService alice = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), aliceEvents,
+                profile("Alice", "29", false, "chess"));
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"),
+                new RecordingListener(), profile("Bob", "31", true, "hiking"));
+        alice.start();
+        bob.start();
+        try {
+            alice.fetch("00:00:00:00:00:02");
+            aliceEvents.await(Constants.MESSAGE_READ_OBJ);
+
+            // restarting bob drops the pooled session's other end
+            bob.stop();
+            bob = new BluetoothConnectionService(
+                    new InMemoryTransport(network, "00:00:00:00:00:02", "bob"),
+                    new RecordingListener(), profile("Bob", "32", true, "hiking"));
+            bob.start();
+
+            alice.fetch("00:00:00:00:00:02");
+            assertEquals("32", ((User) aliceEvents.await(Constants.MESSAGE_READ_OBJ)).age);
+        } finally {
+            alice.stop();
+            bob.stop();
+        }
+    }
+
+    @Test
+    public void concurrentFetches_areAllServed() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"),
+                new RecordingListener(), profile("Bob", "31", true, "hiking"));
+        bob.start();
+        BluetoothConnectionService[] requesters = new BluetoothConnectionService[4];
+        RecordingListener[] events = new RecordingListener[requesters.length];
+        try {
+            for (int i = 0; i < requesters.length; i++) {
+                events[i] = new RecordingListener();
+                requesters[i] = new BluetoothConnectionService(
+                        new InMemoryTransport(network, "00:00:00:00:00:1" + i, "requester" + i),
+                        events[i], profile("R" + i, "20", false, "chess"));
+                requesters[i].start();
+            }
+            for (BluetoothConnectionService requester : requesters) {
+                requester.fetch("00:00:00:00:00:02");
+            }
+            // every requester gets the profile, nobody's transfer is cut off by the next one
+            for (RecordingListener listener : events) {
+                assertEquals("Bob", ((User) listener.await(Constants.MESSAGE_READ_OBJ)).username);
+            }
+            assertEquals(requesters.length, bob.getSenderSessions().getStartedCount());
+            assertEquals(0, bob.getSenderSessions().getEvictedCount());
+        } finally {
+            for (BluetoothConnectionService requester : requesters) {
+                if (requester != null) {
+                    requester.stop();
+                }
+            }
+            bob.stop();
+        }
+    }
+
+    @Test
+    public void fetchBlob_transfersPhotoInChunks() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener aliceEvents = new RecordingListener();
+        BluetoothConnectionService alice = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), aliceEvents,
+                profile("Alice", "29", false, "chess"));
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"),
+                new RecordingListener(), profile("Bob", "31", true, "hiking"));
+        final byte[] photo = new byte[200 * 1024];
+        new Random(1).nextBytes(photo);
+        bob.setBlobProvider(new BlobProvider() {
+            @Override
+            public byte[] getBlob(int kind) {
+                return kind == BlobTransfer.KIND_PROFILE_IMAGE ? photo : null;
+            }
+        });
+        alice.setBlobChunkSize(8 * 1024);
+        alice.start();
+        bob.start();
+        try {
+            alice.fetchBlob("00:00:00:00:00:02", BlobTransfer.KIND_PROFILE_IMAGE);
+            BlobTransfer transfer = (BlobTransfer) aliceEvents.await(Constants.MESSAGE_READ_BLOB);
+            assertTrue(transfer.isComplete());
+            assertTrue(Arrays.equals(photo, transfer.getData()));
+
+            alice.fetchBlob("00:00:00:00:00:02", 99);
+            assertTrue(((BlobTransfer) aliceEvents.await(Constants.MESSAGE_READ_BLOB)).isMissing());
+        } finally {
+            alice.stop();
+            bob.stop();
+        }
+    }
+
+    @Test
+    public void connectToUnknownAddress_reportsFailure() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener listener = new RecordingListener();
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), listener,
+                profile("Alice", "29", false, "chess"));
+        service.start();
+        try {
+            service.connect("00:00:00:00:00:09");
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void refusedConnect_isLeftToTheBackoffNotCached() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener listener = new RecordingListener();
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), listener,
+                profile("Alice", "29", false, "chess"));
+        service.start();
+        try {
+            // refused, reported several times by an inquiry: may be a headset, may be a
+            // busy peer running the app
+            assertTrue(service.connect("00:00:00:00:00:03"));
+            service.connect("00:00:00:00:00:03");
+            service.connect("00:00:00:00:00:03");
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+
+            DiscoveryCache cache = service.getDiscoveryCache();
+            assertEquals(DiscoveryCache.RESULT_UNKNOWN, cache.getResult("00:00:00:00:00:03"));
+            // not probed again before the backoff ran out
+            assertFalse(service.connect("00:00:00:00:00:03"));
+            assertEquals(1, cache.getProbeCount());
+            assertEquals(1, service.getRetryPolicy().getStats("00:00:00:00:00:03").getFailures());
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void deviceNotAdvertisingTheService_getsNoSocket() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener listener = new RecordingListener();
+        final InMemoryTransport transport =
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice");
+        final AtomicInteger channels = new AtomicInteger();
+        BluetoothConnectionService service = new BluetoothConnectionService(new Transport() {
+            @Override
+            public ServerChannel listen(String name, UUID service) throws IOException {
+                return transport.listen(name, service);
+            }
+
+            @Override
+            public Channel createChannel(String address, UUID service) throws IOException {
+                channels.incrementAndGet();
+                return transport.createChannel(address, service);
+            }
+        }, listener, profile("Alice", "29", false, "chess"));
+        ServiceFilterTest.StandInSource source = new ServiceFilterTest.StandInSource();
+        source.mFetched.put("00:00:00:00:00:03",
+                new UUID[]{UUID.fromString("00001108-0000-1000-8000-00805f9b34fb")});
+        service.setServiceRecordSource(source);
+        service.start();
+        try {
+            service.connect("00:00:00:00:00:03");
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+            assertEquals(0, channels.get());
+            assertEquals(1, service.getServiceFilter().getFilteredCount());
+            assertEquals(DiscoveryCache.RESULT_NOT_APP,
+                    service.getDiscoveryCache().getResult("00:00:00:00:00:03"));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void filteredTrialProbe_doesNotHoldTheCircuitOpen() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener listener = new RecordingListener();
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), listener,
+                profile("Alice", "29", false, "chess"));
+        ServiceFilterTest.StandInSource source = new ServiceFilterTest.StandInSource();
+        service.setServiceRecordSource(source);
+        service.getDiscoveryCache().setTtls(0, 0);
+        RetryPolicy policy = service.getRetryPolicy();
+        policy.setBackoff(10, 10);
+        policy.setCircuitBreaker(1, 100);
+        service.start();
+        try {
+            // no service records known, the connect fails and opens the circuit
+            assertTrue(service.connect("00:00:00:00:00:03"));
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+            assertEquals(RetryPolicy.STATE_OPEN, policy.getStats("00:00:00:00:00:03").getState());
+
+            // the trial probe after the cooldown is filtered out by the service records
+            source.mFetched.put("00:00:00:00:00:03",
+                    new UUID[]{UUID.fromString("00001108-0000-1000-8000-00805f9b34fb")});
+            Thread.sleep(200);
+            assertTrue(service.connect("00:00:00:00:00:03"));
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+            assertEquals(RetryPolicy.STATE_OPEN, policy.getStats("00:00:00:00:00:03").getState());
+
+            // and the device gets its next trial all the same
+            Thread.sleep(200);
+            assertTrue(service.connect("00:00:00:00:00:03"));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void peerRegistry_skipsFetchOfUnchangedProfileAfterRestart() throws Exception {
+        File file = File.createTempFile("peers", ".dat");
+        file.delete();
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"),
+                new RecordingListener(), profile("Bob", "31", true, "hiking"));
+        bob.start();
+        try {
+            for (int run = 0; run < 2; run++) {
+                RecordingListener events = new RecordingListener();
+                BluetoothConnectionService alice = new BluetoothConnectionService(
+                        new InMemoryTransport(network, "00:00:00:00:00:01", "alice"), events,
+                        profile("Alice", "29", false, "chess"));
+                PeerRegistry registry = new PeerRegistry(file);
+                alice.setPeerRegistry(registry);
+                registry.awaitIdle();
+                alice.start();
+                try {
+                    alice.connect("00:00:00:00:00:02");
+                    assertNotNull(events.await(Constants.NEAR_BY_USER_FOUND));
+                    alice.fetch("00:00:00:00:00:02");
+                    assertEquals("hiking", ((User) events.await(Constants.MESSAGE_READ_OBJ)).interests);
+                    // the first run fetches, the next one remembers
+                    assertEquals(run, alice.getProfileCache().getHitCount());
+                } finally {
+                    alice.stop();
+                }
+                registry.awaitIdle();
+            }
+        } finally {
+            bob.stop();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void hungPeer_probeIsAbortedAtDeadline() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new HangingTransport(), listener, profile("Alice", "29", false, "chess"));
+        service.setConnectTimeouts(100, 100);
+        try {
+            service.connect("00:00:00:00:00:09");
+            assertNull(listener.await(Constants.MESSAGE_TOAST));
+            assertEquals(1, service.getConnectWatchdog().getTimeoutCount());
+            assertEquals(0, service.getConnectWatchdog().getPendingCount());
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void peerStallingAfterAccept_isNotReportedFound() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch failed = new CountDownLatch(1);
+        BluetoothConnectionService alice = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"),
+                new ConnectionListener() {
+                    @Override
+                    public void onConnectionEvent(int what, Object obj) {
+                        if (what == Constants.NEAR_BY_USER_FOUND) {
+                            found.incrementAndGet();
+                        } else if (what == Constants.MESSAGE_TOAST) {
+                            failed.countDown();
+                        }
+                    }
+                }, profile("Alice", "29", false, "chess"));
+        alice.setConnectTimeouts(200, 200);
+        // accepts the probe and never says a word
+        ServerChannel server = new InMemoryTransport(network, "00:00:00:00:00:02", "bob")
+                .listen("bob", UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66"));
+        try {
+            alice.connect("00:00:00:00:00:02");
+            Channel accepted = server.accept();
+            assertTrue(failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(0, found.get());
+            assertEquals(1, alice.getConnectWatchdog().getTimeoutCount());
+            accepted.close();
+        } finally {
+            server.close();
+            alice.stop();
+        }
+    }
+
+    @Test
+    public void silentProber_isCutOffAtDeadline() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener bobEvents = new RecordingListener();
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new InMemoryTransport(network, "00:00:00:00:00:02", "bob"), bobEvents,
+                profile("Bob", "31", true, "hiking"));
+        bob.setConnectTimeouts(200, 200);
+        bob.start();
+        Channel prober = new InMemoryTransport(network, "00:00:00:00:00:01", "mallory")
+                .createChannel("00:00:00:00:00:02",
+                        UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66"));
+        try {
+            prober.connect();
+            // connected and says nothing; bob gives up once the probe deadline passed
+            assertNotNull(bobEvents.await(Constants.NEAR_BY_USER_FOUND));
+            try {
+                assertEquals(-1, prober.getInputStream().read());
+            } catch (IOException e) {
+                // closed under us, as good
+            }
+            assertEquals(1, bob.getPresenceSessions().getStartedCount());
+        } finally {
+            prober.close();
+            bob.stop();
+        }
+    }
+
+    @Test
+    public void senderWithoutStreams_closesTheChannel() throws Exception {
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new HangingTransport(), new RecordingListener(),
+                profile("Alice", "29", false, "chess"));
+        final CountDownLatch closed = new CountDownLatch(1);
+        try {
+            // accepted, but its streams cannot be had
+            service.connectedSender(new Channel() {
+                @Override
+                public void connect() {
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    throw new IOException("Connection reset");
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    throw new IOException("Connection reset");
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return "00:00:00:00:00:09";
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return null;
+                }
+
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            });
+            assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            SessionTable senders = service.getSenderSessions();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (senders.getCompletedCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, senders.getCompletedCount());
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void stop_abortsPendingConnects() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        BluetoothConnectionService service = new BluetoothConnectionService(
+                new HangingTransport(), listener, profile("Alice", "29", false, "chess"));
+        service.fetch("00:00:00:00:00:09");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnectWatchdog().getPendingCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, service.getConnectWatchdog().getPendingCount());
+
+        service.stop();
+        assertNull(listener.await(Constants.MESSAGE_TOAST));
+        assertEquals(0, service.getConnectWatchdog().getPendingCount());
+        assertEquals(0, service.getConnectWatchdog().getTimeoutCount());
+    }
+
+    private void runDiscoveryAndFetch(Transport aliceTransport, Transport bobTransport)
+            throws Exception {
+        RecordingListener aliceEvents = new RecordingListener();
+        RecordingListener bobEvents = new RecordingListener();
+        BluetoothConnectionService alice = new BluetoothConnectionService(aliceTransport,
+                aliceEvents, profile("Alice", "29", false, "chess"));
+        final User[] bobProfile = {new User("Bob", "31", true, "hiking")};
+        BluetoothConnectionService bob = new BluetoothConnectionService(bobTransport,
+                bobEvents, new ProfileProvider() {
+                    @Override
+                    public User getLocalProfile() {
+                        return bobProfile[0];
+                    }
+                });
+        alice.start();
+        bob.start();
+        try {
+            alice.connect("00:00:00:00:00:02");
+
+            Device found = (Device) aliceEvents.await(Constants.NEAR_BY_USER_FOUND);
+            assertEquals("00:00:00:00:00:02", found.address);
+            assertEquals("Bob", found.profile.username);
+            assertTrue(found.profileComplete);
+            Device foundBy = (Device) bobEvents.await(Constants.NEAR_BY_USER_FOUND);
+            assertEquals("00:00:00:00:00:01", foundBy.address);
+            assertEquals("alice", foundBy.name);
+            assertEquals("chess", foundBy.profile.interests);
+
+            alice.fetch(found.address);
+
+            User profile = (User) aliceEvents.await(Constants.MESSAGE_READ_OBJ);
+            assertEquals("Bob", profile.username);
+            assertEquals("31", profile.age);
+            assertTrue(profile.male);
+            assertEquals("hiking", profile.interests);
+
+            // the profile has not changed since, the second fetch needs no connection
+            alice.fetch(found.address);
+            assertEquals("Bob", ((User) aliceEvents.await(Constants.MESSAGE_READ_OBJ)).username);
+            assertEquals(1, alice.getProfileCache().getHitCount());
+            assertEquals(1, alice.getSessionPool().getMissCount());
+            assertEquals(0, alice.getSessionPool().getHitCount());
+
+            // bob changes his profile, which the next probe announces; the third fetch
+            // gets it over the pooled session
+            bobProfile[0] = new User("Bob", "32", true, "hiking");
+            assertFalse(alice.connect("00:00:00:00:00:02"));
+            alice.getDiscoveryCache().invalidate("00:00:00:00:00:02");
+            assertTrue(alice.connect("00:00:00:00:00:02"));
+            assertEquals("32", ((Device) aliceEvents.await(Constants.NEAR_BY_USER_FOUND)).profile.age);
+            alice.fetch(found.address);
+            assertEquals("32", ((User) aliceEvents.await(Constants.MESSAGE_READ_OBJ)).age);
+            assertEquals(1, alice.getProfileCache().getHitCount());
+            assertEquals(1, alice.getSessionPool().getMissCount());
+            assertEquals(1, alice.getSessionPool().getHitCount());
+        } finally {
+            alice.stop();
+            bob.stop();
+        }
+    }
+
+    private static ProfileProvider profile(final String name, final String age,
+                                           final boolean male, final String interests) {
+        return new ProfileProvider() {
+            @Override
+            public User getLocalProfile() {
+                return new User(name, age, male, interests);
+            }
+        };
+    }
+
+    /**
+     * Reaches a device which never answers: connect() blocks until the channel is closed.
+     */
+    private static class HangingTransport implements Transport {
+        @Override
+        public ServerChannel listen(String name, UUID service) throws IOException {
+            throw new IOException("Not listening");
+        }
+
+        @Override
+        public Channel createChannel(final String address, UUID service) {
+            return new Channel() {
+                private final CountDownLatch mClosed = new CountDownLatch(1);
+
+                @Override
+                public void connect() throws IOException {
+                    try {
+                        mClosed.await();
+                    } catch (InterruptedException e) {
+                    }
+                    throw new IOException("Connection aborted");
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    throw new IOException("Not connected");
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    throw new IOException("Not connected");
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return address;
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return null;
+                }
+
+                @Override
+                public void close() {
+                    mClosed.countDown();
+                }
+            };
+        }
+    }
+
+    private static class RecordingListener implements ConnectionListener {
+        private final LinkedBlockingQueue<Object[]> mEvents = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConnectionEvent(int what, Object obj) {
+            mEvents.add(new Object[]{what, obj});
+        }
+
+        /**
+         * Wait for the next event of the given type, skipping any other.
+         */
+        Object await(int what) throws InterruptedException {
+            while (true) {
+                Object[] event = mEvents.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    throw new AssertionError("Timed out waiting for event " + what);
+                }
+                if ((Integer) event[0] == what) {
+                    return event[1];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+    private static final String PEER = "00:00:00:00:00:09";
+
+    @Test
+    public void probesInFlightAreMerged() {
+        DiscoveryCache cache = new DiscoveryCache();
+        assertTrue(cache.beginProbe(PEER, 0));
+        assertFalse(cache.beginProbe(PEER, 10));
+        assertFalse(cache.beginProbe(PEER, 20));
+        assertEquals(2, cache.getMergedCount());
+
+        // a timeout says nothing about the device, the next report probes it again
+        cache.endProbe(PEER, DiscoveryCache.RESULT_UNKNOWN, 500);
+        assertEquals(DiscoveryCache.RESULT_UNKNOWN, cache.getResult(PEER, 500));
+        assertEquals(500, cache.getWastedMillis());
+        assertTrue(cache.beginProbe(PEER, 600));
+
+        // a probe given up before it ran leaves nothing behind
+        cache.cancelProbe(PEER);
+        assertTrue(cache.beginProbe(PEER, 700));
+        assertEquals(1, cache.getProbeCount());
+    }
+
+    @Test
+    public void outcomesAreKeptForTheirTtl() {
+        DiscoveryCache cache = new DiscoveryCache();
+        cache.setTtls(1000, 60 * 1000);
+
+        assertTrue(cache.beginProbe(PEER, 0));
+        cache.endProbe(PEER, DiscoveryCache.RESULT_NOT_APP, 100);
+        assertFalse(cache.beginProbe(PEER, 100 + 60 * 1000 - 1));
+        assertEquals(1, cache.getNegativeHitCount());
+        assertTrue(cache.beginProbe(PEER, 100 + 60 * 1000));
+
+        cache.endProbe(PEER, DiscoveryCache.RESULT_APP, 70 * 1000);
+        assertEquals(DiscoveryCache.RESULT_APP, cache.getResult(PEER, 70 * 1000));
+        assertFalse(cache.beginProbe(PEER, 70 * 1000 + 999));
+        assertEquals(1, cache.getPositiveHitCount());
+        assertTrue(cache.beginProbe(PEER, 71 * 1000));
+        cache.endProbe(PEER, DiscoveryCache.RESULT_APP, 71 * 1000);
+
+        cache.invalidate(PEER);
+        assertTrue(cache.beginProbe(PEER, 71 * 1000));
+        assertEquals(3, cache.getProbeCount());
+    }
+}
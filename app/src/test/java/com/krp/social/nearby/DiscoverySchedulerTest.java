@@ -0,0 +1,131 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiscoverySchedulerTest {
+
+    @Test
+    public void pauseFollowsPeerChurn() throws Exception {
+        FakeInquiry inquiry = new FakeInquiry();
+        DiscoveryScheduler scheduler = new DiscoveryScheduler(inquiry, new ConnectWatchdog());
+        scheduler.setIntervals(20, 160);
+        scheduler.start();
+        try {
+            // a new device keeps the pace up
+            inquiry.awaitStart();
+            scheduler.onPeerFound("00:00:00:00:00:02");
+            scheduler.onInquiryFinished();
+            assertEquals(20, scheduler.getIntervalMillis());
+
+            // the same devices again and again slow it down, up to the longest pause
+            long[] expected = {40, 80, 160, 160};
+            for (long interval : expected) {
+                inquiry.awaitStart();
+                scheduler.onPeerFound("00:00:00:00:00:02");
+                scheduler.onInquiryFinished();
+                assertEquals(interval, scheduler.getIntervalMillis());
+            }
+
+            inquiry.awaitStart();
+            scheduler.onPeerFound("00:00:00:00:00:02");
+            scheduler.onPeerFound("00:00:00:00:00:03");
+            scheduler.onInquiryFinished();
+            assertEquals(20, scheduler.getIntervalMillis());
+            assertEquals(2, scheduler.getNewPeerCount());
+            assertEquals(6, scheduler.getInquiryCount());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void connectsInProgressHoldBackTheInquiry() throws Exception {
+        FakeInquiry inquiry = new FakeInquiry();
+        ConnectWatchdog connects = new ConnectWatchdog();
+        DiscoveryScheduler scheduler = new DiscoveryScheduler(inquiry, connects);
+        scheduler.setIntervals(10 * 1000, 60 * 1000);
+        ConnectWatchdog.Attempt attempt = connects.watch(new IdleChannel(), 60 * 1000);
+        scheduler.start();
+        try {
+            assertNull(inquiry.mStarts.poll(300, TimeUnit.MILLISECONDS));
+            assertEquals(1, scheduler.getDeferredCount());
+
+            attempt.finish();
+            inquiry.awaitStart();
+            Thread.sleep(20);
+            assertTrue(scheduler.getScanMillis() > 0);
+            assertTrue(scheduler.getIdleMillis() >= 300);
+        } finally {
+            scheduler.stop();
+            connects.shutdown();
+        }
+    }
+
+    static class FakeInquiry implements DiscoveryScheduler.Inquiry {
+        final LinkedBlockingQueue<Long> mStarts = new LinkedBlockingQueue<>();
+        volatile boolean mRunning;
+        volatile int mCancels;
+
+        @Override
+        public boolean start() {
+            mRunning = true;
+            mStarts.add(System.currentTimeMillis());
+            return true;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return mRunning;
+        }
+
+        @Override
+        public boolean cancel() {
+            mCancels++;
+            mRunning = false;
+            return true;
+        }
+
+        void awaitStart() throws InterruptedException {
+            assertNotNull("no inquiry started", mStarts.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static class IdleChannel implements Channel {
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "00:00:00:00:00:09";
+        }
+
+        @Override
+        public String getRemoteName() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
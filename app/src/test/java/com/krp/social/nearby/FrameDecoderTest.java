@@ -0,0 +1,108 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void feed_oneByteAtATime() throws Exception {
+        byte[] wire = encode(Frame.TYPE_PROFILE, payload(300));
+        FrameDecoder decoder = new FrameDecoder();
+        for (int i = 0; i < wire.length; i++) {
+            assertFalse(decoder.hasFrame());
+            assertEquals(1, decoder.feed(wire, i, 1));
+        }
+        Frame frame = decoder.takeFrame();
+        assertEquals(Frame.TYPE_PROFILE, frame.type);
+        assertArrayEquals(payload(300), frame.payload);
+    }
+
+    @Test
+    public void feed_stopsAtFrameBoundary() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(wire);
+        writer.write(Frame.TYPE_PROFILE, payload(10));
+        writer.write(Frame.TYPE_DISCONNECT, null);
+        byte[] bytes = wire.toByteArray();
+
+        FrameDecoder decoder = new FrameDecoder();
+        int consumed = decoder.feed(bytes, 0, bytes.length);
+        assertEquals(Frame.HEADER_SIZE + 10, consumed);
+        assertEquals(Frame.TYPE_PROFILE, decoder.takeFrame().type);
+
+        decoder.feed(bytes, consumed, bytes.length - consumed);
+        Frame frame = decoder.takeFrame();
+        assertEquals(Frame.TYPE_DISCONNECT, frame.type);
+        assertEquals(0, frame.payload.length);
+    }
+
+    @Test
+    public void readFrame_payloadBiggerThanOneRead() throws Exception {
+        byte[] big = payload(200 * 1024);
+        Frame frame = new FrameDecoder().readFrame(
+                new TrickleInputStream(encode(Frame.TYPE_PROFILE, big), 1000));
+        assertArrayEquals(big, frame.payload);
+    }
+
+    @Test
+    public void readFrame_cleanEndOfStream() throws Exception {
+        assertNull(new FrameDecoder().readFrame(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test(expected = EOFException.class)
+    public void readFrame_truncatedPayload() throws Exception {
+        byte[] wire = encode(Frame.TYPE_PROFILE, payload(100));
+        new FrameDecoder().readFrame(new ByteArrayInputStream(wire, 0, wire.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void feed_rejectsUnframedBytes() throws Exception {
+        byte[] legacy = "disconnect".getBytes("UTF-8");
+        new FrameDecoder().feed(legacy, 0, legacy.length);
+    }
+
+    private static byte[] encode(int type, byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameWriter(out).write(type, payload);
+        return out.toByteArray();
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    /**
+     * Hands out at most a few bytes per read, like a slow RFCOMM link.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final ByteArrayInputStream mIn;
+        private final int mMaxRead;
+
+        TrickleInputStream(byte[] bytes, int maxRead) {
+            mIn = new ByteArrayInputStream(bytes);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return mIn.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+}
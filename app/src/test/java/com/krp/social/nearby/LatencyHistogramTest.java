@@ -0,0 +1,35 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles_reportBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.recordMillis(3);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.recordMillis(100);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(4, histogram.getPercentileMillis(50));
+        assertEquals(4, histogram.getPercentileMillis(90));
+        assertEquals(128, histogram.getPercentileMillis(99));
+        assertEquals(12.7, histogram.getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void subMillisecond_andHuge_landInEdgeBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(200 * 1000);
+        histogram.recordMillis(10 * 60 * 1000);
+        long[] buckets = histogram.getBucketCounts();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[buckets.length - 1]);
+        assertEquals(1, histogram.getPercentileMillis(50));
+    }
+}
@@ -0,0 +1,313 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs streams over one multiplexer link between two endpoints of an in-memory network.
+ */
+public class MuxTransportTest {
+    private static final UUID SERVICE_A = UUID.fromString("00000000-0000-0000-0000-00000000000a");
+    private static final UUID SERVICE_B = UUID.fromString("00000000-0000-0000-0000-00000000000b");
+    private static final String BOB = "00:00:00:00:00:02";
+
+    @Test
+    public void streamsShareOneLink() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        CountingTransport aliceLinks = new CountingTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        MuxTransport alice = new MuxTransport(aliceLinks);
+        MuxTransport bob = new MuxTransport(new InMemoryTransport(network, BOB, "bob"));
+        ServerChannel serverA = bob.listen("a", SERVICE_A);
+        ServerChannel serverB = bob.listen("b", SERVICE_B);
+        try {
+            Channel a = connect(alice, SERVICE_A);
+            Channel b = connect(alice, SERVICE_B);
+            Channel acceptedA = serverA.accept();
+            Channel acceptedB = serverB.accept();
+
+            b.getOutputStream().write(new byte[]{2});
+            a.getOutputStream().write(new byte[]{1});
+            assertEquals(1, acceptedA.getInputStream().read());
+            assertEquals(2, acceptedB.getInputStream().read());
+            assertEquals("00:00:00:00:00:01", acceptedA.getRemoteAddress());
+
+            a.close();
+            assertEquals(-1, acceptedA.getInputStream().read());
+            assertEquals(1, aliceLinks.mConnects.get());
+            assertEquals(1, alice.getLinkCount());
+        } finally {
+            serverA.close();
+            serverB.close();
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    public void slowReaderDoesNotStallOtherStreams() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        MuxTransport alice = new MuxTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        MuxTransport bob = new MuxTransport(new InMemoryTransport(network, BOB, "bob"));
+        ServerChannel serverA = bob.listen("a", SERVICE_A);
+        ServerChannel serverB = bob.listen("b", SERVICE_B);
+        try {
+            final Channel bulk = connect(alice, SERVICE_A);
+            final byte[] data = new byte[4 * Multiplexer.INITIAL_WINDOW];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            final CountDownLatch written = new CountDownLatch(1);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        bulk.getOutputStream().write(data);
+                        bulk.getOutputStream().flush();
+                        written.countDown();
+                    } catch (IOException e) {
+                    }
+                }
+            }.start();
+            Channel acceptedBulk = serverA.accept();
+
+            // nobody reads the bulk stream, so it runs out of credit...
+            assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+
+            // ...while another stream still gets through
+            Channel chat = connect(alice, SERVICE_B);
+            chat.getOutputStream().write(new byte[]{42});
+            assertEquals(42, serverB.accept().getInputStream().read());
+
+            byte[] received = new byte[data.length];
+            new DataInputStream(acceptedBulk.getInputStream()).readFully(received);
+            assertArrayEquals(data, received);
+            assertTrue(written.await(5, TimeUnit.SECONDS));
+        } finally {
+            serverA.close();
+            serverB.close();
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    public void legacyPeer_fallsBackToDirectChannel() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        MuxTransport alice = new MuxTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        // bob predates the multiplexer, and his records say so
+        alice.setServiceRecordSource(new FixedRecords(SERVICE_A));
+        ServerChannel server = new InMemoryTransport(network, BOB, "bob").listen("a", SERVICE_A);
+        try {
+            Channel channel = connect(alice, SERVICE_A);
+            channel.getOutputStream().write(new byte[]{7});
+            assertEquals(7, server.accept().getInputStream().read());
+            assertEquals(0, alice.getLinkCount());
+        } finally {
+            server.close();
+            alice.close();
+        }
+    }
+
+    @Test
+    public void unreachablePeer_isNotPagedAgainDirectly() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        CountingTransport aliceLinks = new CountingTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        MuxTransport alice = new MuxTransport(aliceLinks);
+        // bob is out of reach, so nothing is known of his records
+        alice.setServiceRecordSource(new FixedRecords((UUID[]) null));
+        try {
+            connect(alice, SERVICE_A);
+            fail("connected to a device out of reach");
+        } catch (IOException e) {
+            assertEquals(1, aliceLinks.mAttempts.get());
+        } finally {
+            alice.close();
+        }
+    }
+
+    @Test
+    public void legacyPeer_isLinkedOnceUpdated() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        MuxTransport alice = new MuxTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        FixedRecords records = new FixedRecords(SERVICE_A);
+        alice.setServiceRecordSource(records);
+        alice.setLegacyTtl(0);
+        ServerChannel legacy = new InMemoryTransport(network, BOB, "bob").listen("a", SERVICE_A);
+        connect(alice, SERVICE_A).close();
+        legacy.close();
+        assertEquals(0, alice.getLinkCount());
+
+        // bob updated, and is not pinned to direct channels
+        MuxTransport bob = new MuxTransport(new InMemoryTransport(network, BOB, "bob"));
+        ServerChannel server = bob.listen("a", SERVICE_A);
+        records.mUuids = null;
+        try {
+            connect(alice, SERVICE_A);
+            server.accept();
+            assertEquals(1, alice.getLinkCount());
+        } finally {
+            server.close();
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownService_isRefused() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        MuxTransport alice = new MuxTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        alice.setLegacyFallbackEnabled(false);
+        MuxTransport bob = new MuxTransport(new InMemoryTransport(network, BOB, "bob"));
+        ServerChannel server = bob.listen("a", SERVICE_A);
+        try {
+            connect(alice, SERVICE_B);
+        } finally {
+            server.close();
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    public void connectionService_probeAndFetchShareOneLink() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        CountingTransport aliceLinks = new CountingTransport(
+                new InMemoryTransport(network, "00:00:00:00:00:01", "alice"));
+        final CountDownLatch done = new CountDownLatch(2);
+        BluetoothConnectionService alice = new BluetoothConnectionService(
+                new MuxTransport(aliceLinks), new ConnectionListener() {
+            @Override
+            public void onConnectionEvent(int what, Object obj) {
+                if (what == Constants.NEAR_BY_USER_FOUND || what == Constants.MESSAGE_READ_OBJ) {
+                    done.countDown();
+                }
+            }
+        }, profile("Alice"));
+        BluetoothConnectionService bob = new BluetoothConnectionService(
+                new MuxTransport(new InMemoryTransport(network, BOB, "bob")),
+                new ConnectionListener() {
+                    @Override
+                    public void onConnectionEvent(int what, Object obj) {
+                    }
+                }, profile("Bob"));
+        alice.start();
+        bob.start();
+        try {
+            alice.connect(BOB);
+            alice.fetch(BOB);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, aliceLinks.mConnects.get());
+        } finally {
+            alice.stop();
+            bob.stop();
+        }
+    }
+
+    private static Channel connect(Transport transport, UUID service) throws IOException {
+        Channel channel = transport.createChannel(BOB, service);
+        channel.connect();
+        return channel;
+    }
+
+    private static ProfileProvider profile(final String name) {
+        return new ProfileProvider() {
+            @Override
+            public User getLocalProfile() {
+                return new User(name, "30", false, "chess");
+            }
+        };
+    }
+
+    /**
+     * Service records which stay as set, whatever the device.
+     */
+    private static class FixedRecords implements ServiceRecordSource {
+        volatile UUID[] mUuids;
+
+        FixedRecords(UUID... uuids) {
+            mUuids = uuids;
+        }
+
+        @Override
+        public UUID[] getCachedUuids(String address) {
+            return mUuids;
+        }
+
+        @Override
+        public UUID[] fetchUuids(String address, long timeoutMillis) {
+            return mUuids;
+        }
+    }
+
+    /**
+     * Counts the connections made through the wrapped transport.
+     */
+    private static class CountingTransport implements Transport {
+        private final Transport mTransport;
+        final AtomicInteger mAttempts = new AtomicInteger();
+        final AtomicInteger mConnects = new AtomicInteger();
+
+        CountingTransport(Transport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public ServerChannel listen(String name, UUID service) throws IOException {
+            return mTransport.listen(name, service);
+        }
+
+        @Override
+        public Channel createChannel(String address, UUID service) throws IOException {
+            final Channel channel = mTransport.createChannel(address, service);
+            return new Channel() {
+                @Override
+                public void connect() throws IOException {
+                    mAttempts.incrementAndGet();
+                    channel.connect();
+                    mConnects.incrementAndGet();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return channel.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return channel.getOutputStream();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return channel.getRemoteAddress();
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return channel.getRemoteName();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NearByDiffTest {
+
+    @Test
+    public void sameUsersNeedNoSteps() {
+        List<User> users = users("a", "b", "c");
+        assertEquals(0, NearByDiff.compute(users, users("a", "b", "c")).getStepCount());
+
+        // one user moved to the front is one move, not four
+        NearByDiff diff = NearByDiff.compute(users("a", "b", "c", "d", "x"),
+                users("x", "a", "b", "c", "d"));
+        assertEquals(1, diff.getStepCount());
+        assertEquals(1, diff.getMoveCount());
+    }
+
+    @Test
+    public void stepsTurnTheOldListIntoTheNewOne() {
+        Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            List<User> oldList = randomUsers(random, "old");
+            List<User> newList = randomUsers(random, "new");
+
+            final List<String> applied = new ArrayList<>();
+            for (User user : oldList) {
+                applied.add(user.deviceAddress);
+            }
+            final List<Integer> changed = new ArrayList<>();
+            NearByDiff diff = NearByDiff.compute(oldList, newList);
+            diff.dispatchTo(new NearByDiff.Callback() {
+                @Override
+                public void onInserted(int position) {
+                    applied.add(position, null);
+                }
+
+                @Override
+                public void onRemoved(int position) {
+                    applied.remove(position);
+                }
+
+                @Override
+                public void onMoved(int fromPosition, int toPosition) {
+                    applied.add(toPosition, applied.remove(fromPosition));
+                }
+
+                @Override
+                public void onChanged(int position) {
+                    changed.add(position);
+                }
+            });
+
+            Map<String, User> before = new HashMap<>();
+            for (User user : oldList) {
+                before.put(user.deviceAddress, user);
+            }
+            List<Integer> renamed = new ArrayList<>();
+            List<Integer> keptOrder = new ArrayList<>();
+            assertEquals(newList.size(), applied.size());
+            for (int i = 0; i < newList.size(); i++) {
+                User user = newList.get(i);
+                User old = before.get(user.deviceAddress);
+                // new users show up as inserted rows, the others moved into place
+                assertEquals(old == null ? null : user.deviceAddress, applied.get(i));
+                if (old != null && !old.deviceName.equals(user.deviceName)) {
+                    renamed.add(i);
+                }
+            }
+            assertEquals(renamed, changed);
+
+            for (User user : oldList) {
+                int index = newList.indexOf(user);
+                if (index >= 0) {
+                    keptOrder.add(index);
+                }
+            }
+            assertEquals(keptOrder.size() - longestIncreasing(keptOrder), diff.getMoveCount());
+        }
+    }
+
+    private static List<User> randomUsers(Random random, String name) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            if (random.nextInt(3) > 0) {
+                users.add(new User(random.nextInt(5) == 0 ? name : "peer",
+                        "00:00:00:00:00:" + (10 + i)));
+            }
+        }
+        if (random.nextBoolean()) {
+            Collections.shuffle(users, random);
+        } else if (users.size() > 1) {
+            // mostly in order, as between two updates of the list
+            Collections.swap(users, random.nextInt(users.size()), random.nextInt(users.size()));
+        }
+        return users;
+    }
+
+    private static List<User> users(String... names) {
+        List<User> users = new ArrayList<>();
+        for (String name : Arrays.asList(names)) {
+            users.add(new User(name, name));
+        }
+        return users;
+    }
+
+    private static int longestIncreasing(List<Integer> values) {
+        int[] length = new int[values.size()];
+        int longest = 0;
+        for (int i = 0; i < values.size(); i++) {
+            length[i] = 1;
+            for (int j = 0; j < i; j++) {
+                if (values.get(j) < values.get(i)) {
+                    length[i] = Math.max(length[i], length[j] + 1);
+                }
+            }
+            longest = Math.max(longest, length[i]);
+        }
+        return longest;
+    }
+}
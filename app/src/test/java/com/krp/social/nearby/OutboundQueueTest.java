@@ -0,0 +1,161 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void smallFramesAreCoalescedInOrder() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        TestChannel channel = new TestChannel(new OutputStream() {
+            @Override
+            public void write(int b) {
+                wire.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    // the link is busy with the first write
+                    gate.await();
+                } catch (InterruptedException e) {
+                }
+                synchronized (wire) {
+                    wire.write(b, off, len);
+                }
+            }
+        });
+        OutboundQueue.Stats stats = new OutboundQueue.Stats();
+        OutboundQueue queue = new OutboundQueue(channel, "test", stats);
+        FrameWriter writer = new FrameWriter(queue);
+        for (int i = 0; i < 100; i++) {
+            writer.write(Frame.TYPE_PING, new byte[]{(byte) i});
+        }
+        gate.countDown();
+        assertTrue(queue.drain(5000));
+        queue.close();
+
+        FrameDecoder decoder = new FrameDecoder();
+        InputStream in;
+        synchronized (wire) {
+            in = new ByteArrayInputStream(wire.toByteArray());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, decoder.readFrame(in).payload[0]);
+        }
+        assertNull(decoder.readFrame(in));
+        assertEquals(100, stats.getQueuedCount());
+        assertTrue("writes " + stats.getWriteCount(), stats.getWriteCount() <= 3);
+        assertEquals(100 * (Frame.HEADER_SIZE + 1), stats.getBytesWritten());
+    }
+
+    @Test
+    public void fullQueueBlocksThenGivesUp() throws Exception {
+        final CountDownLatch never = new CountDownLatch(1);
+        TestChannel channel = new TestChannel(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    never.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        OutboundQueue.Stats stats = new OutboundQueue.Stats();
+        OutboundQueue queue = new OutboundQueue(channel, "test", stats, 1024);
+        queue.setBlockTimeout(100);
+        long startedAt = System.currentTimeMillis();
+        try {
+            queue.write(new byte[3000], 0, 3000);
+            fail("The stalled queue took everything");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - startedAt >= 100);
+        assertEquals(1024, queue.getQueuedBytes());
+        assertEquals(1, stats.getBlockedCount());
+        queue.close();
+        never.countDown();
+    }
+
+    @Test
+    public void writeFailureIsReportedAndClosesChannel() throws Exception {
+        TestChannel channel = new TestChannel(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Link lost");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Link lost");
+            }
+        });
+        OutboundQueue.Stats stats = new OutboundQueue.Stats();
+        OutboundQueue queue = new OutboundQueue(channel, "test", stats);
+        FrameWriter writer = new FrameWriter(queue);
+        writer.write(Frame.TYPE_PING, null);
+        assertFalse(queue.drain(5000));
+        assertNotNull(queue.getFailure());
+        assertTrue(channel.mClosed);
+        assertEquals(1, stats.getFailureCount());
+        try {
+            writer.write(Frame.TYPE_PING, null);
+            fail("The failure was dropped");
+        } catch (IOException e) {
+            assertSame(queue.getFailure(), e.getCause());
+        }
+    }
+
+    private static class TestChannel implements Channel {
+        private final OutputStream mOut;
+        volatile boolean mClosed;
+
+        TestChannel(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "00:00:00:00:00:02";
+        }
+
+        @Override
+        public String getRemoteName() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
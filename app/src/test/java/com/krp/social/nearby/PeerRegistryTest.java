@@ -0,0 +1,82 @@
+package com.krp.social.nearby;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerRegistryTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void updatesAreWrittenInOneBatchAndLoadedOnNextRun() throws Exception {
+        File file = new File(mFolder.getRoot(), "peers.dat");
+        PeerRegistry registry = new PeerRegistry(file);
+        registry.setFlushDelay(200);
+        for (int i = 0; i < 20; i++) {
+            Device device = new Device("00:00:00:00:00:0" + (i % 2), "peer" + (i % 2));
+            registry.seen(device);
+        }
+        registry.putProfile("00:00:00:00:00:01", 42, new User("Bob", "31", true, "hiking"));
+        assertFalse(file.exists());
+        Thread.sleep(400);
+        registry.awaitIdle();
+        assertEquals(21, registry.getUpdateCount());
+        assertEquals(1, registry.getWriteCount());
+
+        PeerRegistry next = new PeerRegistry(file);
+        List<PeerRegistry.Peer> peers = load(next);
+        assertEquals(2, peers.size());
+        PeerRegistry.Peer bob = peers.get(0);
+        assertEquals("00:00:00:00:00:01", bob.address);
+        assertEquals("peer1", bob.name);
+        assertTrue(bob.app);
+        assertEquals(42, bob.profileDigest);
+        assertEquals("hiking", bob.profile.interests);
+        assertNull(peers.get(1).profile);
+
+        // a changed digest drops the profile, it has to be fetched again
+        Device changed = new Device("00:00:00:00:00:01", null);
+        changed.profileDigest = 43;
+        next.seen(changed);
+        assertNull(next.getPeers().get(0).profile);
+        assertEquals("peer1", next.getPeers().get(0).name);
+    }
+
+    @Test
+    public void damagedFileOnlyCostsTheWarmStart() throws Exception {
+        File file = new File(mFolder.getRoot(), "peers.dat");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{0x4E, 0x42, 0x50, 0x52, 1, 0, 0, 0, 5});
+        out.close();
+
+        PeerRegistry registry = new PeerRegistry(file);
+        assertTrue(load(registry).isEmpty());
+        assertEquals(1, registry.getFailureCount());
+
+        registry.seen(new Device("00:00:00:00:00:02", "bob"));
+        registry.flush();
+        registry.awaitIdle();
+        assertEquals(1, load(new PeerRegistry(file)).size());
+    }
+
+    private static List<PeerRegistry.Peer> load(PeerRegistry registry) throws Exception {
+        final LinkedBlockingQueue<List<PeerRegistry.Peer>> loaded =
+                new LinkedBlockingQueue<>();
+        registry.load(new PeerRegistry.LoadListener() {
+            @Override
+            public void onPeersLoaded(List<PeerRegistry.Peer> peers) {
+                loaded.add(peers);
+            }
+        });
+        return loaded.poll(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,35 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PeerSessionTest {
+    private static final UUID SERVICE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    @Test
+    public void pingToSilentPeer_givesUpAtDeadline() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ServerChannel server = new InMemoryTransport(network, "00:00:00:00:00:02", "bob")
+                .listen("fetch", SERVICE);
+        Channel channel = new InMemoryTransport(network, "00:00:00:00:00:01", "alice")
+                .createChannel("00:00:00:00:00:02", SERVICE);
+        channel.connect();
+        // accepted, but the PING is never answered
+        Channel peer = server.accept();
+        PeerSession session = new PeerSession("00:00:00:00:00:02", channel);
+        try {
+            long start = System.currentTimeMillis();
+            assertFalse(session.ping(200));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("ping took " + elapsed + " ms", elapsed >= 150 && elapsed < 2000);
+            assertTrue(session.isClosed());
+        } finally {
+            session.abort();
+            peer.close();
+            server.close();
+        }
+    }
+}
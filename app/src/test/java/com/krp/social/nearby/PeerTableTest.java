@@ -0,0 +1,80 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerTableTest {
+    private final List<String> mRemoved = new ArrayList<>();
+    private final PeerTable.Listener mListener = new PeerTable.Listener() {
+        @Override
+        public void onPeerRemoved(Device device) {
+            mRemoved.add(device.address);
+        }
+    };
+
+    @Test
+    public void peersNotSeenAgainExpire() {
+        PeerTable table = new PeerTable(10, 1000, 100, mListener);
+        table.put(new Device("00:00:00:00:00:01", "alice"), 0);
+        table.put(new Device("00:00:00:00:00:02", "bob"), 0);
+        for (long now = 0; now <= 900; now += 100) {
+            table.touch("00:00:00:00:00:02", now);
+            table.expire(now);
+        }
+        assertEquals(2, table.size());
+
+        table.expire(1000);
+        assertEquals(1, table.size());
+        assertEquals("[00:00:00:00:00:01]", mRemoved.toString());
+
+        // seen for the last time at 900
+        table.expire(1899);
+        assertTrue(table.contains("00:00:00:00:00:02"));
+        table.expire(1900);
+        assertEquals(0, table.size());
+        assertEquals(2, table.getExpiredCount());
+    }
+
+    @Test
+    public void longTtlsTakeSeveralTurnsOfTheWheel() {
+        PeerTable table = new PeerTable(10, 60 * 1000, 100, mListener);
+        table.put(new Device("00:00:00:00:00:01", "alice"), 0);
+        // the app was in the background, the wheel jumps ahead
+        table.expire(30 * 1000);
+        assertEquals(1, table.size());
+        for (long now = 30 * 1000; now < 60 * 1000; now += 100) {
+            table.expire(now);
+        }
+        assertEquals(1, table.size());
+        table.expire(60 * 1000);
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void fullTableEvictsTheLeastRecentlySeen() {
+        PeerTable table = new PeerTable(2, 1000, 100, mListener);
+        table.put(new Device("00:00:00:00:00:01", "alice"), 0);
+        table.put(new Device("00:00:00:00:00:02", "bob"), 0);
+        table.touch("00:00:00:00:00:01", 10);
+        table.put(new Device("00:00:00:00:00:03", "carol"), 20);
+
+        assertEquals(2, table.size());
+        assertNull(table.get("00:00:00:00:00:02"));
+        assertEquals("[00:00:00:00:00:02]", mRemoved.toString());
+        assertEquals(1, table.getEvictedCount());
+
+        // evicted peers leave the wheel too
+        table.expire(1009);
+        assertEquals("[00:00:00:00:00:02]", mRemoved.toString());
+        // deadlines are rounded up to the next tick
+        table.expire(1099);
+        assertEquals(2, table.size());
+        table.expire(1100);
+        assertEquals("[00:00:00:00:00:02, 00:00:00:00:00:01, 00:00:00:00:00:03]",
+                mRemoved.toString());
+    }
+}
@@ -0,0 +1,134 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProbeSchedulerTest {
+
+    @Test
+    public void strongSignalsGoFirstAndWeakOnesAge() throws Exception {
+        ProbeScheduler scheduler = new ProbeScheduler(1, 8);
+        CountDownLatch busy = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(4);
+        try {
+            scheduler.submit(new Blocker(busy));
+            scheduler.submit(new Probe("far", order, done), -90, 0);
+            scheduler.submit(new Probe("near", order, done), -40, 100);
+            scheduler.submit(new Probe("unknown", order, done), ProbeScheduler.RSSI_UNKNOWN, 200);
+            // queued long after the far device, which has aged past it meanwhile
+            scheduler.submit(new Probe("nearLate", order, done), -40, 10 * 1000);
+            busy.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("near", "unknown", "far", "nearLate"), order);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void fullQueueDropsTheWeakest() throws Exception {
+        ProbeScheduler scheduler = new ProbeScheduler(1, 2);
+        CountDownLatch busy = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2);
+        try {
+            scheduler.submit(new Blocker(busy));
+            Probe far = new Probe("far", order, done);
+            assertTrue(scheduler.submit(far, -95, 0));
+            assertTrue(scheduler.submit(new Probe("mid", order, done), -70, 0));
+            assertTrue(scheduler.submit(new Probe("near", order, done), -40, 0));
+            assertFalse(scheduler.submit(new Probe("farther", order, done), -99, 0));
+            busy.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals(Arrays.asList("near", "mid"), order);
+            assertTrue(far.mDropped);
+            assertEquals(1, scheduler.getEvictedCount());
+            assertEquals(1, scheduler.getRejectedCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrencyAndQueueAreCapped() throws Exception {
+        ProbeScheduler scheduler = new ProbeScheduler(2, 3);
+        CountDownLatch busy = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(scheduler.submit(new Blocker(busy)));
+            }
+            // two run, the other two wait
+            Thread.sleep(100);
+            assertEquals(2, scheduler.getActiveCount());
+            assertEquals(2, scheduler.getQueueDepth());
+
+            Probe queued = new Probe("queued", order, done);
+            assertTrue(scheduler.submit(queued));
+            assertEquals(3, scheduler.getQueueDepth());
+            // full of probes ranked as high
+            assertFalse(scheduler.submit(new Probe("late", order, done)));
+            assertEquals(3, scheduler.getQueueDepth());
+            assertEquals(2, scheduler.getActiveCount());
+
+            // probes still queued are told they will never run
+            scheduler.shutdown();
+            assertTrue(queued.mDropped);
+            assertTrue(order.isEmpty());
+        } finally {
+            busy.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    private static class Blocker implements Runnable {
+        private final CountDownLatch mBusy;
+
+        Blocker(CountDownLatch busy) {
+            mBusy = busy;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mBusy.await();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private static class Probe implements ProbeScheduler.DroppableProbe {
+        private final String mName;
+        private final List<String> mOrder;
+        private final CountDownLatch mDone;
+        volatile boolean mDropped;
+
+        Probe(String name, List<String> order, CountDownLatch done) {
+            mName = name;
+            mOrder = order;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            mOrder.add(mName);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onDropped() {
+            mDropped = true;
+        }
+    }
+}
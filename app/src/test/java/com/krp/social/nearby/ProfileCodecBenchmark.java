@@ -0,0 +1,116 @@
+package com.krp.social.nearby;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ProfileCodec} with the ':' separated string format it replaced.
+ *
+ * Run the main method from the IDE; it prints the bytes on air for each profile size
+ * and then the encode/decode ns/op of both formats.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfileCodecBenchmark {
+
+    @Param({"short", "long"})
+    public String profile;
+
+    private User mUser;
+    private ProfileCodec mCodec;
+    private byte[] mBinary;
+    private byte[] mString;
+
+    @Setup
+    public void setUp() throws IOException {
+        mUser = user(profile);
+        mCodec = new ProfileCodec();
+        int length = mCodec.encode(mUser);
+        mBinary = new byte[length];
+        System.arraycopy(mCodec.getBuffer(), 0, mBinary, 0, length);
+        mString = encodeString(mUser);
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        return mCodec.encode(mUser);
+    }
+
+    @Benchmark
+    public User decodeBinary() throws IOException {
+        return mCodec.decode(mBinary);
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return encodeString(mUser);
+    }
+
+    @Benchmark
+    public User decodeString() {
+        return decodeString(mString);
+    }
+
+    /**
+     * The format ConnectedSenderThread used to send.
+     */
+    private static byte[] encodeString(User user) {
+        return new StringBuilder()
+                .append(user.username).append(":")
+                .append(user.age).append(":")
+                .append(user.male).append(":")
+                .append(user.interests).toString().getBytes();
+    }
+
+    /**
+     * The parsing DashboardActivity used to do.
+     */
+    private static User decodeString(byte[] bytes) {
+        String[] inputs = new String(bytes).split(":");
+        return new User(inputs[0], inputs[1], Boolean.valueOf(inputs[2]), inputs[3]);
+    }
+
+    private static User user(String profile) {
+        if ("short".equals(profile)) {
+            return new User("Alice", "29", false, "chess, hiking");
+        }
+        StringBuilder interests = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            interests.append("interest number ").append(i).append(", ");
+        }
+        return new User("Alice Wonderland", "29", false, interests.toString());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (String profile : new String[]{"short", "long"}) {
+            User user = user(profile);
+            System.out.println(profile + " profile bytes on air: binary="
+                    + new ProfileCodec().encode(user) + " string=" + encodeString(user).length);
+        }
+
+        Options options = new OptionsBuilder()
+                .include(ProfileCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
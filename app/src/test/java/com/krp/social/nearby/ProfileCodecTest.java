@@ -0,0 +1,80 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ProfileCodecTest {
+
+    @Test
+    public void roundTrip_keepsSeparatorsAndNonAscii() throws Exception {
+        User user = roundTrip(new User("Jean:Luc", "42", true, "chess: go, café, 🚲"));
+        assertEquals("Jean:Luc", user.username);
+        assertEquals("42", user.age);
+        assertTrue(user.male);
+        assertEquals("chess: go, café, 🚲", user.interests);
+    }
+
+    @Test
+    public void roundTrip_ageWhichIsNotANumber() throws Exception {
+        assertEquals("twenty", roundTrip(new User("a", "twenty", false, "b")).age);
+        assertEquals("07", roundTrip(new User("a", "07", false, "b")).age);
+    }
+
+    @Test
+    public void roundTrip_missingFields() throws Exception {
+        User user = roundTrip(new User(null, null, false, null));
+        assertNull(user.username);
+        assertNull(user.age);
+        assertFalse(user.male);
+        assertNull(user.interests);
+    }
+
+    @Test
+    public void encode_isSmallerThanTheStringFormat() throws Exception {
+        User user = new User("Alice", "29", false, "chess, hiking");
+        int length = new ProfileCodec().encode(user);
+        // 2 header bytes + 1 byte age + (1 + 5) name + (1 + 13) interests
+        assertEquals(23, length);
+        assertTrue(length < "Alice:29:false:chess, hiking".getBytes("UTF-8").length);
+    }
+
+    @Test(expected = IOException.class)
+    public void decode_rejectsTruncatedProfile() throws Exception {
+        ProfileCodec codec = new ProfileCodec();
+        int length = codec.encode(new User("Alice", "29", false, "chess"));
+        codec.decode(codec.getBuffer(), 0, length - 1);
+    }
+
+    @Test
+    public void digest_followsTheProfileAndTracksChanges() throws Exception {
+        ProfileCodec codec = new ProfileCodec();
+        codec.encode(new User("Alice", "29", false, "chess"));
+        long digest = codec.digest();
+        codec.encode(new User("Alice", "30", false, "chess"));
+        assertTrue(digest != codec.digest());
+
+        codec.encode(new User("Alice", "29", false, "chess"));
+        assertEquals(digest, codec.digest());
+        byte[] payload = new byte[codec.appendDigest(digest)];
+        System.arraycopy(codec.getBuffer(), 0, payload, 0, payload.length);
+
+        assertEquals("chess", codec.decode(payload).interests);
+        assertEquals(digest, codec.decodeDigest(payload));
+
+        // a profile without digest, as older peers send it
+        int length = codec.encode(new User("Alice", "29", false, "chess"));
+        byte[] plain = new byte[length];
+        System.arraycopy(codec.getBuffer(), 0, plain, 0, length);
+        codec.decode(plain);
+        assertEquals(0, codec.decodeDigest(plain));
+    }
+
+    private static User roundTrip(User user) throws IOException {
+        ProfileCodec codec = new ProfileCodec();
+        int length = codec.encode(user);
+        return codec.decode(codec.getBuffer(), 0, length);
+    }
+}
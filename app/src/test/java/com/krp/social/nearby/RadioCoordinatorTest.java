@@ -0,0 +1,77 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RadioCoordinatorTest {
+
+    @Test
+    public void probeWaitsForTheInquiryToEnd() throws Exception {
+        DiscoverySchedulerTest.FakeInquiry inquiry = new DiscoverySchedulerTest.FakeInquiry();
+        ConnectWatchdog connects = new ConnectWatchdog();
+        DiscoveryScheduler scheduler = new DiscoveryScheduler(inquiry, connects);
+        scheduler.setIntervals(60 * 1000, 60 * 1000);
+        final RadioCoordinator radio = new RadioCoordinator();
+        radio.setDiscoveryScheduler(scheduler);
+        scheduler.start();
+        try {
+            inquiry.awaitStart();
+            final CountDownLatch probed = new CountDownLatch(1);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        radio.awaitProbeWindow();
+                        probed.countDown();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }.start();
+            assertFalse(probed.await(300, TimeUnit.MILLISECONDS));
+
+            scheduler.onInquiryFinished();
+            assertTrue(probed.await(2, TimeUnit.SECONDS));
+            assertEquals(1, radio.getHeldProbeCount());
+            assertTrue(radio.getHeldMillis() >= 300);
+        } finally {
+            scheduler.stop();
+            connects.shutdown();
+        }
+    }
+
+    @Test
+    public void fetchCutsTheInquiryShortAndItResumesAfter() throws Exception {
+        DiscoverySchedulerTest.FakeInquiry inquiry = new DiscoverySchedulerTest.FakeInquiry();
+        ConnectWatchdog connects = new ConnectWatchdog();
+        DiscoveryScheduler scheduler = new DiscoveryScheduler(inquiry, connects);
+        scheduler.setIntervals(60 * 1000, 60 * 1000);
+        RadioCoordinator radio = new RadioCoordinator();
+        radio.setDiscoveryScheduler(scheduler);
+        scheduler.start();
+        try {
+            inquiry.awaitStart();
+            scheduler.onPeerFound("00:00:00:00:00:02");
+
+            radio.beginFetch();
+            assertEquals(1, inquiry.mCancels);
+            assertEquals(1, scheduler.getCutShortCount());
+            // the radio reports the cancelled inquiry finished; none starts while held
+            scheduler.onInquiryFinished();
+            assertNull(inquiry.mStarts.poll(300, TimeUnit.MILLISECONDS));
+
+            radio.endFetch();
+            inquiry.awaitStart();
+            assertEquals(2, scheduler.getInquiryCount());
+            // half an inquiry left the pace alone
+            assertEquals(60 * 1000, scheduler.getIntervalMillis());
+            assertEquals(0, scheduler.getNewPeerCount());
+        } finally {
+            scheduler.stop();
+            connects.shutdown();
+        }
+    }
+}
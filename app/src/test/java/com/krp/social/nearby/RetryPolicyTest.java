@@ -0,0 +1,67 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+    private static final String PEER = "00:00:00:00:00:09";
+
+    @Test
+    public void backoffDoublesWithJitter() {
+        RetryPolicy policy = new RetryPolicy(new Random(1));
+        policy.setBackoff(1000, 8000);
+        policy.setCircuitBreaker(10, 60 * 1000);
+
+        long now = 0;
+        long expected = 1000;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(policy.allowAttempt(PEER, now));
+            policy.recordFailure(PEER, now);
+            long backoff = policy.getStats(PEER).getNextAttemptAt() - now;
+            assertTrue("backoff " + backoff, backoff >= expected * 0.8 && backoff <= expected * 1.2);
+
+            assertFalse(policy.allowAttempt(PEER, now + backoff - 1));
+            now += backoff;
+            expected = Math.min(expected * 2, 8000);
+        }
+        RetryPolicy.Stats stats = policy.getStats(PEER);
+        assertEquals(5, stats.getFailures());
+        assertEquals(5, stats.getSkipped());
+        assertEquals(RetryPolicy.STATE_CLOSED, stats.getState());
+    }
+
+    @Test
+    public void circuitOpensAndRecovers() {
+        RetryPolicy policy = new RetryPolicy(new Random(1));
+        policy.setBackoff(10, 10);
+        policy.setCircuitBreaker(3, 60 * 1000);
+
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            now += 100;
+            assertTrue(policy.allowAttempt(PEER, now));
+            policy.recordFailure(PEER, now);
+        }
+        assertEquals(RetryPolicy.STATE_OPEN, policy.getStats(PEER).getState());
+        assertFalse(policy.allowAttempt(PEER, now + 40 * 1000));
+
+        // a single trial after the cooldown, which fails and opens the circuit again
+        now += 80 * 1000;
+        assertTrue(policy.allowAttempt(PEER, now));
+        assertFalse(policy.allowAttempt(PEER, now));
+        policy.recordFailure(PEER, now);
+        assertEquals(RetryPolicy.STATE_OPEN, policy.getStats(PEER).getState());
+        assertFalse(policy.allowAttempt(PEER, now + 100));
+
+        // the device turns up on its own and is probed again right away
+        policy.recordSuccess(PEER, now + 200);
+        assertTrue(policy.allowAttempt(PEER, now + 200));
+        RetryPolicy.Stats stats = policy.getStats(PEER);
+        assertEquals(RetryPolicy.STATE_CLOSED, stats.getState());
+        assertEquals(0, stats.getConsecutiveFailures());
+        assertEquals(4, stats.getFailures());
+    }
+}
@@ -0,0 +1,83 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ServiceFilterTest {
+    private static final UUID SERVICE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID HEADSET = UUID.fromString("00001108-0000-1000-8000-00805f9b34fb");
+    private static final String PEER = "00:00:00:00:00:09";
+
+    @Test
+    public void staleCachedUuidsAreCheckedOverSdp() throws Exception {
+        StandInSource source = new StandInSource();
+        // the stack saw the device before the app was installed
+        source.mCached.put(PEER, new UUID[]{HEADSET});
+        source.mFetched.put(PEER, new UUID[]{HEADSET, SERVICE});
+        ServiceFilter filter = new ServiceFilter(source, SERVICE);
+
+        assertEquals(ServiceFilter.ADVERTISED, filter.check(PEER, 0));
+        assertEquals(1, source.mFetches);
+
+        // the answer is kept, the device is not asked again
+        source.mCached.put(PEER, new UUID[]{HEADSET, SERVICE});
+        assertEquals(ServiceFilter.ADVERTISED, filter.check(PEER, 1000));
+        assertEquals(1, source.mFetches);
+        assertEquals(1, filter.getCacheHitCount());
+    }
+
+    @Test
+    public void devicesWithoutTheServiceAreFilteredUntilTheTtlRunsOut() throws Exception {
+        StandInSource source = new StandInSource();
+        source.mFetched.put(PEER, new UUID[]{HEADSET});
+        ServiceFilter filter = new ServiceFilter(source, SERVICE);
+        filter.setTtls(60 * 1000, 1000);
+
+        assertEquals(ServiceFilter.NOT_ADVERTISED, filter.check(PEER, 0));
+        assertEquals(ServiceFilter.NOT_ADVERTISED, filter.check(PEER, 999));
+        assertEquals(1, source.mFetches);
+        assertEquals(2, filter.getFilteredCount());
+
+        // the app got installed meanwhile
+        source.mFetched.put(PEER, new UUID[]{HEADSET, SERVICE});
+        assertEquals(ServiceFilter.ADVERTISED, filter.check(PEER, 1000));
+        assertEquals(2, source.mFetches);
+    }
+
+    @Test
+    public void silentDevicesAreNotFiltered() throws Exception {
+        StandInSource source = new StandInSource();
+        ServiceFilter filter = new ServiceFilter(source, SERVICE);
+
+        assertEquals(ServiceFilter.UNKNOWN, filter.check(PEER, 0));
+        assertEquals(ServiceFilter.UNKNOWN, filter.check(PEER, 1));
+        // an unanswered query is not kept
+        assertEquals(2, source.mFetches);
+        assertEquals(2, filter.getUnknownCount());
+    }
+
+    /**
+     * Answers from maps instead of the Bluetooth stack.
+     */
+    static class StandInSource implements ServiceRecordSource {
+        final Map<String, UUID[]> mCached = new HashMap<>();
+        final Map<String, UUID[]> mFetched = new HashMap<>();
+        volatile int mFetches;
+
+        @Override
+        public UUID[] getCachedUuids(String address) {
+            return mCached.get(address);
+        }
+
+        @Override
+        public UUID[] fetchUuids(String address, long timeoutMillis) {
+            mFetches++;
+            return mFetched.get(address);
+        }
+    }
+}
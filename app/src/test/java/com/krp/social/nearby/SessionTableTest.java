@@ -0,0 +1,108 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionTableTest {
+
+    @Test
+    public void waitingSessions_takeTurnsAcrossDevices() throws Exception {
+        SessionTable table = new SessionTable("test", 1, 1);
+        List<String> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        BlockingSession blocker = new BlockingSession("a", false);
+        table.submit(blocker);
+        assertTrue(blocker.mStarted.await(5, TimeUnit.SECONDS));
+
+        table.submit(new RecordingSession("a", "a2", order, done));
+        table.submit(new RecordingSession("a", "a3", order, done));
+        table.submit(new RecordingSession("b", "b1", order, done));
+        assertEquals(3, table.getWaitingCount());
+
+        blocker.cancel();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a2", "b1", "a3"), order);
+        assertEquals(1, table.getPeakRunningCount());
+        table.shutdown();
+    }
+
+    @Test
+    public void idleSession_makesRoomForWaitingOne() throws Exception {
+        SessionTable table = new SessionTable("test", 1, 1);
+        BlockingSession idle = new BlockingSession("a", true);
+        table.submit(idle);
+        assertTrue(idle.mStarted.await(5, TimeUnit.SECONDS));
+
+        BlockingSession busy = new BlockingSession("b", false);
+        table.submit(busy);
+        assertTrue(busy.mStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, table.getEvictedCount());
+
+        // a session moving data is not cut off, the next one waits
+        BlockingSession waiting = new BlockingSession("c", false);
+        table.submit(waiting);
+        assertFalse(waiting.mStarted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, table.getEvictedCount());
+
+        table.shutdown();
+        assertFalse(table.submit(new BlockingSession("d", false)));
+    }
+
+    private static class BlockingSession extends SessionTable.Session {
+        private final boolean mmIdle;
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mCancelled = new CountDownLatch(1);
+
+        BlockingSession(String address, boolean idle) {
+            super(address);
+            mmIdle = idle;
+        }
+
+        @Override
+        public void run() {
+            setIdle(mmIdle);
+            mStarted.countDown();
+            try {
+                mCancelled.await();
+            } catch (InterruptedException e) {
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled.countDown();
+        }
+    }
+
+    private static class RecordingSession extends SessionTable.Session {
+        private final String mmName;
+        private final List<String> mmOrder;
+        private final CountDownLatch mmDone;
+
+        RecordingSession(String address, String name, List<String> order, CountDownLatch done) {
+            super(address);
+            mmName = name;
+            mmOrder = order;
+            mmDone = done;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mmOrder) {
+                mmOrder.add(mmName);
+            }
+            mmDone.countDown();
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
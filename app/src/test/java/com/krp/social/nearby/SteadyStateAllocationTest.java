@@ -0,0 +1,139 @@
+package com.krp.social.nearby;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts the bytes allocated by a warm fetch session: FETCH, PROFILE, PING and PONG
+ * written and read on both ends. Apart from noise of the measurement itself, nothing
+ * should be allocated per message.
+ */
+public class SteadyStateAllocationTest {
+    private static final int WARM_UP = 1000;
+    private static final int MESSAGES = 10000;
+
+    @Test
+    public void warmFetchSessionAllocatesNothingPerMessage() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        Pipe toSender = new Pipe();
+        Pipe toRequester = new Pipe();
+        Exchange exchange = new Exchange(toSender, toRequester);
+        for (int i = 0; i < WARM_UP; i++) {
+            exchange.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MESSAGES; i++) {
+            exchange.run();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue("allocated " + allocated + " bytes for " + MESSAGES + " exchanges",
+                allocated < 1024);
+        assertEquals(WARM_UP + MESSAGES, exchange.mDigests);
+    }
+
+    /**
+     * Both ends of a kept-alive fetch session, run on one thread.
+     */
+    private static class Exchange {
+        private final FrameWriter mRequesterWriter;
+        private final FrameWriter mSenderWriter;
+        private final FrameDecoder mRequesterDecoder = new FrameDecoder(BufferPool.shared());
+        private final FrameDecoder mSenderDecoder = new FrameDecoder(BufferPool.shared());
+        private final InputStream mRequesterIn;
+        private final InputStream mSenderIn;
+        private final ProfileCodec mCodec = new ProfileCodec();
+        private final User mProfile = new User("Bob", "31", true, "hiking, chess, café");
+        private long mLastDigest;
+        int mDigests;
+
+        Exchange(Pipe toSender, Pipe toRequester) {
+            mRequesterWriter = new FrameWriter(toSender.mOut);
+            mSenderWriter = new FrameWriter(toRequester.mOut);
+            mSenderIn = toSender.mIn;
+            mRequesterIn = toRequester.mIn;
+        }
+
+        void run() throws IOException {
+            mRequesterWriter.write(Frame.TYPE_FETCH, null);
+            assertEquals(Frame.TYPE_FETCH, mSenderDecoder.readFrame(mSenderIn).type);
+            int length = mCodec.encode(mProfile);
+            mSenderWriter.write(Frame.TYPE_PROFILE, mCodec.getBuffer(), 0, length);
+
+            Frame profile = mRequesterDecoder.readFrame(mRequesterIn);
+            long digest = ProfileCodec.digest(profile.payload, 0, profile.length);
+            if (mLastDigest != 0 && digest != mLastDigest) {
+                throw new AssertionError("Digest changed");
+            }
+            mLastDigest = digest;
+            mDigests++;
+
+            mRequesterWriter.write(Frame.TYPE_PING, null);
+            assertEquals(Frame.TYPE_PING, mSenderDecoder.readFrame(mSenderIn).type);
+            mSenderWriter.write(Frame.TYPE_PONG, null);
+            assertEquals(Frame.TYPE_PONG, mRequesterDecoder.readFrame(mRequesterIn).type);
+        }
+    }
+
+    /**
+     * A byte ring from an OutputStream to an InputStream which allocates nothing.
+     */
+    private static class Pipe {
+        private final byte[] mRing = new byte[4096];
+        private int mReadPos;
+        private int mCount;
+
+        final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+                mRing[(mReadPos + mCount++) % mRing.length] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                for (int i = 0; i < len; i++) {
+                    write(b[off + i]);
+                }
+            }
+        };
+
+        final InputStream mIn = new InputStream() {
+            @Override
+            public int read() {
+                if (mCount == 0) {
+                    return -1;
+                }
+                int b = mRing[mReadPos] & 0xff;
+                mReadPos = (mReadPos + 1) % mRing.length;
+                mCount--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (mCount == 0) {
+                    return -1;
+                }
+                int n = Math.min(len, mCount);
+                for (int i = 0; i < n; i++) {
+                    b[off + i] = (byte) read();
+                }
+                return n;
+            }
+        };
+    }
+}